@@ -0,0 +1,69 @@
+package jdmusicbot;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-message cost of finding the command of a chat message. linearScan is the startsWith loop App used before the
+ * CommandDispatcher, dispatcher is the indexed lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandDispatchBenchmark {
+
+	private static final String[] NAMES = { "help", "ping", "join", "play", "search", "list", "stop", "pause", "resume",
+			"skip", "clear", "loop", "unloop", "repeat", "test", "leave" };
+
+	@Param({ "chatter", "command", "unknown" })
+	public String kind;
+
+	private String content;
+	private Map<String, CommandInfo> commands;
+	private CommandDispatcher dispatcher;
+
+	@Setup
+	public void setup() {
+		commands = new HashMap<>();
+		dispatcher = new CommandDispatcher(App.CMD_PREFIX_CHAR);
+		for (String name : NAMES) {
+			CommandInfo info = new CommandInfo(name, name, event -> {});
+			commands.put(name, info);
+			dispatcher.register(name, info);
+		}
+		switch (kind) {
+		case "chatter":
+			content = "did anyone see the game yesterday? that last minute goal was insane";
+			break;
+		case "command":
+			content = App.CMD_PREFIX + "search never gonna give you up";
+			break;
+		default:
+			content = App.CMD_PREFIX + "hashtag without any meaning";
+		}
+	}
+
+	@Benchmark
+	public CommandInfo linearScan() {
+		for (Map.Entry<String, CommandInfo> entry : commands.entrySet()) {
+			if (content.startsWith(App.CMD_PREFIX + entry.getKey()))
+				return entry.getValue();
+		}
+		return null;
+	}
+
+	@Benchmark
+	public CommandInfo dispatcher() {
+		return dispatcher.resolve(content);
+	}
+}
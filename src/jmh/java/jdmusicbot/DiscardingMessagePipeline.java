@@ -0,0 +1,30 @@
+package jdmusicbot;
+
+import net.dv8tion.jda.api.entities.MessageChannel;
+
+/**
+ * MessagePipeline that only counts the lines posted to it, so benchmarks measure the scheduler and not Discord.
+ */
+public class DiscardingMessagePipeline extends MessagePipeline {
+
+	private long lines;
+	private long chars;
+
+	public DiscardingMessagePipeline() {
+		super(0);
+	}
+
+	@Override
+	public void post(MessageChannel channel, String line, String key) {
+		lines++;
+		chars += line.length();
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	public long getChars() {
+		return chars;
+	}
+}
@@ -0,0 +1,143 @@
+package jdmusicbot;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventListener;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+/**
+ * AudioPlayer that never decodes anything. provide(MutableAudioFrame) stores Opus frames of varying size (cycling
+ * through {@link #FRAME_SIZES} sizes between 1 byte and the maximum DISCORD_OPUS chunk) and marks the first byte of
+ * every frame with its sequence number, so send handlers can be checked for cutting or mixing up frames.
+ */
+public class FakeAudioPlayer implements AudioPlayer {
+
+	public static final int FRAME_SIZES = 256;
+
+	private final byte[] data;
+	private final int[] sizes;
+	private long sequence;
+	private volatile AudioTrack playingTrack;
+	private volatile boolean paused;
+	private int volume = 100;
+
+	public FakeAudioPlayer() {
+		int maxSize = StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize();
+		this.data = new byte[maxSize];
+		this.sizes = new int[FRAME_SIZES];
+		Random random = new Random(42);
+		for (int i = 0; i < FRAME_SIZES; i++)
+			sizes[i] = 1 + random.nextInt(maxSize);
+	}
+
+	/**
+	 * @return the size of the frame with the given sequence number
+	 */
+	public int sizeOf(long sequence) {
+		return sizes[(int) (sequence % FRAME_SIZES)];
+	}
+
+	/**
+	 * @return the first byte of the frame with the given sequence number
+	 */
+	public static byte markerOf(long sequence) {
+		return (byte) sequence;
+	}
+
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame) {
+		long s = sequence++;
+		data[0] = markerOf(s);
+		targetFrame.store(data, 0, sizeOf(s));
+		return true;
+	}
+
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame, long timeout, TimeUnit unit) {
+		return provide(targetFrame);
+	}
+
+	@Override
+	public AudioFrame provide() {
+		throw new UnsupportedOperationException("Only the MutableAudioFrame path is faked");
+	}
+
+	@Override
+	public AudioFrame provide(long timeout, TimeUnit unit) {
+		return provide();
+	}
+
+	@Override
+	public AudioTrack getPlayingTrack() {
+		return playingTrack;
+	}
+
+	@Override
+	public void playTrack(AudioTrack track) {
+		startTrack(track, false);
+	}
+
+	@Override
+	public boolean startTrack(AudioTrack track, boolean noInterrupt) {
+		if (noInterrupt && playingTrack != null)
+			return false;
+		playingTrack = track;
+		return true;
+	}
+
+	@Override
+	public void stopTrack() {
+		playingTrack = null;
+	}
+
+	@Override
+	public int getVolume() {
+		return volume;
+	}
+
+	@Override
+	public void setVolume(int volume) {
+		this.volume = volume;
+	}
+
+	@Override
+	public void setFilterFactory(PcmFilterFactory factory) {
+	}
+
+	@Override
+	public void setFrameBufferDuration(Integer duration) {
+	}
+
+	@Override
+	public boolean isPaused() {
+		return paused;
+	}
+
+	@Override
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+	}
+
+	@Override
+	public void destroy() {
+		playingTrack = null;
+	}
+
+	@Override
+	public void addListener(AudioEventListener listener) {
+	}
+
+	@Override
+	public void removeListener(AudioEventListener listener) {
+	}
+
+	@Override
+	public void checkCleanup(long threshold) {
+	}
+}
@@ -0,0 +1,20 @@
+package jdmusicbot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * Track that only carries its info, for benchmarks that queue tracks but never play them.
+ */
+public class FakeAudioTrack extends BaseAudioTrack {
+
+	public FakeAudioTrack(String identifier, long length) {
+		super(new AudioTrackInfo("Track " + identifier, "Benchmark", length, identifier, false, "https://example.com/" + identifier));
+	}
+
+	@Override
+	public void process(LocalAudioTrackExecutor executor) {
+		throw new UnsupportedOperationException("FakeAudioTrack can't be played");
+	}
+}
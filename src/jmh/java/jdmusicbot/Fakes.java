@@ -0,0 +1,99 @@
+package jdmusicbot;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+
+/**
+ * Local fakes of JDA's interfaces, so the benchmarks run offline without a gateway connection. Every fake is a dynamic
+ * proxy: methods with a configured answer return it, methods returning another interface return a fake of that
+ * interface (so chains like sendMessage(...).queue() just do nothing) and everything else returns the default value of
+ * its return type.
+ */
+public final class Fakes {
+
+	private Fakes() {
+	}
+
+	/**
+	 * @param type the interface to fake
+	 * @param answers return values by method name
+	 * @return a fake of the interface
+	 */
+	public static <T> T of(Class<T> type, Map<String, Object> answers) {
+		Map<Class<?>, Object> children = new HashMap<>();
+		Object fake = Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+			String name = method.getName();
+			if (answers.containsKey(name))
+				return answers.get(name);
+			switch (name) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Fake" + type.getSimpleName();
+			}
+			Class<?> result = method.getReturnType();
+			if (result.isInterface()) {
+				synchronized (children) {
+					return children.computeIfAbsent(result, r -> of(r, new HashMap<>()));
+				}
+			}
+			return defaultValue(result);
+		});
+		return type.cast(fake);
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return false;
+		if (type == char.class)
+			return '\0';
+		if (type == byte.class)
+			return (byte) 0;
+		if (type == short.class)
+			return (short) 0;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		if (type == float.class)
+			return 0f;
+		if (type == double.class)
+			return 0d;
+		if (type == String.class)
+			return "fake";
+		return null;
+	}
+
+	/**
+	 * @return a text channel whose sendMessage(...).queue() does nothing
+	 */
+	public static TextChannel channel(long id, String name) {
+		Map<String, Object> answers = new HashMap<>();
+		answers.put("getIdLong", id);
+		answers.put("getId", Long.toString(id));
+		answers.put("getName", name);
+		return of(TextChannel.class, answers);
+	}
+
+	/**
+	 * @return a received guild message with the given content, written in the given channel
+	 */
+	public static GuildMessageReceivedEvent guildMessage(String content, MessageChannel channel) {
+		Map<String, Object> answers = new HashMap<>();
+		answers.put("getContentRaw", content);
+		answers.put("getChannel", channel);
+		answers.put("getTextChannel", channel);
+		answers.put("getIdLong", 1L);
+		Message message = of(Message.class, answers);
+		return new GuildMessageReceivedEvent(of(JDA.class, new HashMap<>()), 0, message);
+	}
+}
@@ -0,0 +1,279 @@
+package jdmusicbot;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sedmelluq.discord.lavaplayer.filter.AudioFilter;
+import com.sedmelluq.discord.lavaplayer.filter.FloatPcmAudioFilter;
+import com.sedmelluq.discord.lavaplayer.filter.UniversalPcmAudioFilter;
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusDecoder;
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusEncoder;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+
+/**
+ * Cost of one 20ms stereo frame of a filtered stream. processFrame only runs the AudioFilters chain, i.e. the DSP a
+ * filter adds. transcodeFrame runs a real Opus packet through lavaplayer's Opus decoder, the chain and the Opus encoder
+ * at the default quality, which is what every frame of a guild with an active filter costs. With filter=none it
+ * measures decoding and encoding alone. One core has 20ms per frame for all streams it serves, so 20ms divided by the
+ * transcodeFrame score is the number of filtered streams a core can keep up with. The gc profiler has to show no
+ * allocations per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterChainBenchmark {
+
+	private static final AudioDataFormat FORMAT = StandardAudioDataFormats.DISCORD_OPUS;
+
+	/* Opus packets decoded in turn by transcodeFrame, one second of audio */
+	private static final int PACKETS = 50;
+
+	@Param({ "none", "volume", "eq", "speed", "all" })
+	public String filter;
+
+	private final CountingOutput output = new CountingOutput();
+	private float[][] decoded;
+	private float[][] frame;
+	private FloatPcmAudioFilter input;
+
+	private ByteBuffer[] packets;
+	private int[] packetLengths;
+	private int nextPacket;
+	private OpusDecoder decoder;
+	private ShortBuffer pcm;
+	private EncodingOutput encoding;
+	private FloatPcmAudioFilter transcodeInput;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		Random random = new Random(42);
+		decoded = new float[FORMAT.channelCount][FORMAT.chunkSampleCount];
+		for (float[] channel : decoded)
+			for (int i = 0; i < channel.length; i++)
+				channel[i] = (random.nextFloat() * 2 - 1) * 0.5f;
+		frame = new float[FORMAT.channelCount][FORMAT.chunkSampleCount];
+
+		AudioFilters filters = new AudioFilters(new FakeAudioPlayer());
+		if (filter.equals("volume") || filter.equals("all"))
+			filters.setVolume(80);
+		if (filter.equals("eq") || filter.equals("all")) {
+			for (int band = 0; band < AudioFilters.EQ_BANDS.length; band++)
+				filters.setEqGain(band, band % 2 == 0 ? 6 : -6);
+		}
+		if (filter.equals("speed") || filter.equals("all"))
+			filters.setSpeed(1.25);
+		input = chain(filters, output);
+		verify(filters);
+
+		packets = encodePackets();
+		decoder = new OpusDecoder(FORMAT.sampleRate, FORMAT.channelCount);
+		pcm = directShorts(FORMAT.chunkSampleCount * FORMAT.channelCount);
+		encoding = new EncodingOutput();
+		transcodeInput = chain(filters, encoding);
+	}
+
+	@TearDown
+	public void tearDown() {
+		decoder.close();
+		encoding.encoder.close();
+	}
+
+	private FloatPcmAudioFilter chain(AudioFilters filters, UniversalPcmAudioFilter sink) {
+		/* without a filter lavaplayer wouldn't decode at all, the chain is skipped to measure decoding and encoding alone */
+		if (filter.equals("none"))
+			return sink;
+		List<AudioFilter> chain = filters.buildChain(null, FORMAT, sink);
+		return (FloatPcmAudioFilter) chain.get(0);
+	}
+
+	/**
+	 * @return Opus packets of a few tones with some noise, encoded like a track lavaplayer streams
+	 */
+	private ByteBuffer[] encodePackets() {
+		Random random = new Random(7);
+		OpusEncoder encoder = new OpusEncoder(FORMAT.sampleRate, FORMAT.channelCount, AudioConfiguration.OPUS_QUALITY_MAX);
+		ShortBuffer samples = directShorts(FORMAT.chunkSampleCount * FORMAT.channelCount);
+		ByteBuffer encoded = ByteBuffer.allocateDirect(FORMAT.maximumChunkSize());
+		ByteBuffer[] result = new ByteBuffer[PACKETS];
+		packetLengths = new int[PACKETS];
+		int t = 0;
+		for (int p = 0; p < PACKETS; p++) {
+			samples.clear();
+			for (int i = 0; i < FORMAT.chunkSampleCount; i++, t++) {
+				double value = 0.3 * Math.sin(2 * Math.PI * 220 * t / FORMAT.sampleRate) + 0.2 * Math.sin(2 * Math.PI * 1760 * t / FORMAT.sampleRate)
+						+ 0.05 * (random.nextDouble() * 2 - 1);
+				for (int c = 0; c < FORMAT.channelCount; c++)
+					samples.put((short) (value * Short.MAX_VALUE));
+			}
+			samples.flip();
+			encoded.clear();
+			int length = encoder.encode(samples, FORMAT.chunkSampleCount, encoded);
+			result[p] = ByteBuffer.allocateDirect(length);
+			for (int i = 0; i < length; i++)
+				result[p].put(i, encoded.get(i));
+			packetLengths[p] = length;
+		}
+		encoder.close();
+		return result;
+	}
+
+	private static ShortBuffer directShorts(int count) {
+		return ByteBuffer.allocateDirect(count * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+	}
+
+	/**
+	 * Checks that the speed stage hands on the expected number of samples over many frames
+	 */
+	private void verify(AudioFilters filters) throws InterruptedException {
+		FloatPcmAudioFilter chain = chain(filters, output);
+		long before = output.samples;
+		int frames = 500;
+		for (int i = 0; i < frames; i++)
+			chain.process(copy(), 0, FORMAT.chunkSampleCount);
+		double expected = frames * FORMAT.chunkSampleCount / filters.getSpeed();
+		long produced = output.samples - before;
+		if (Math.abs(produced - expected) > 2)
+			throw new IllegalStateException("Chain produced " + produced + " samples, expected " + expected);
+	}
+
+	private float[][] copy() {
+		for (int c = 0; c < decoded.length; c++)
+			System.arraycopy(decoded[c], 0, frame[c], 0, decoded[c].length);
+		return frame;
+	}
+
+	@Benchmark
+	public long processFrame() throws InterruptedException {
+		input.process(copy(), 0, FORMAT.chunkSampleCount);
+		return output.samples;
+	}
+
+	@Benchmark
+	public long transcodeFrame() throws InterruptedException {
+		int index = nextPacket;
+		nextPacket = (index + 1) % PACKETS;
+		ByteBuffer packet = packets[index];
+		packet.clear();
+		packet.limit(packetLengths[index]);
+		pcm.clear();
+		int samples = decoder.decode(packet, pcm);
+		/* lavaplayer hands the filters planar floats from -1 to 1 */
+		int channels = FORMAT.channelCount;
+		for (int c = 0; c < channels; c++) {
+			float[] channel = frame[c];
+			for (int i = 0; i < samples; i++)
+				channel[i] = pcm.get(i * channels + c) / 32768f;
+		}
+		transcodeInput.process(frame, 0, samples);
+		return encoding.bytes;
+	}
+
+	/**
+	 * Converts the filtered samples back to interleaved shorts and encodes every complete 20ms frame with Opus, like
+	 * the end of lavaplayer's filter chain
+	 */
+	private static class EncodingOutput implements UniversalPcmAudioFilter {
+		final OpusEncoder encoder = new OpusEncoder(FORMAT.sampleRate, FORMAT.channelCount, AudioConfiguration.OPUS_QUALITY_MAX);
+		final ShortBuffer pending = directShorts(FORMAT.chunkSampleCount * FORMAT.channelCount);
+		final ByteBuffer packet = ByteBuffer.allocateDirect(FORMAT.maximumChunkSize());
+		long bytes;
+
+		@Override
+		public void process(float[][] input, int offset, int length) {
+			int channels = input.length;
+			for (int i = offset; i < offset + length; i++) {
+				for (int c = 0; c < channels; c++) {
+					float sample = input[c][i];
+					pending.put((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, (int) (sample * 32768f))));
+				}
+				if (!pending.hasRemaining()) {
+					pending.flip();
+					packet.clear();
+					bytes += encoder.encode(pending, FORMAT.chunkSampleCount, packet);
+					pending.clear();
+				}
+			}
+		}
+
+		@Override
+		public void process(short[] input, int offset, int length) {
+		}
+
+		@Override
+		public void process(ShortBuffer buffer) {
+		}
+
+		@Override
+		public void process(short[][] input, int offset, int length) {
+		}
+
+		@Override
+		public void seekPerformed(long requestedTime, long providedTime) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Stands in for lavaplayer's encoder, it only looks at the samples so the work can't be optimized away
+	 */
+	private static class CountingOutput implements UniversalPcmAudioFilter {
+		long samples;
+		float sum;
+
+		@Override
+		public void process(float[][] input, int offset, int length) {
+			samples += length;
+			sum += input[0][offset] + input[input.length - 1][offset + length - 1];
+		}
+
+		@Override
+		public void process(short[] input, int offset, int length) {
+			samples += length;
+		}
+
+		@Override
+		public void process(ShortBuffer buffer) {
+			samples += buffer.remaining();
+		}
+
+		@Override
+		public void process(short[][] input, int offset, int length) {
+			samples += length;
+		}
+
+		@Override
+		public void seekPerformed(long requestedTime, long providedTime) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package jdmusicbot;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Cost of a log call while four threads log at the same time. sync writes under the Logger's lock, DROP and BLOCK
+ * hand the records to the asynchronous writer with the respective overflow strategy. Output goes to a stream that
+ * discards everything, so only the Logger itself is measured. debugDisabled is a debug call while the loglevel is INFO.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class LoggerBenchmark {
+
+	private static final Logger LOGGER = new Logger("Benchmark-Logger");
+
+	@Param({ "sync", "DROP", "BLOCK" })
+	public String mode;
+
+	@Setup
+	public void setup() {
+		Logger.removePrintStream(System.out);
+		Logger.addPrintStream(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		Logger.setLoglevel(Logger.Loglevel.INFO);
+		if (!mode.equals("sync"))
+			Logger.startAsync(App.LOG_BUFFER_SIZE, Logger.Overflow.valueOf(mode));
+	}
+
+	@Benchmark
+	public void info() {
+		LOGGER.info("Queued new AudioTrack: {} [{}]", "Never Gonna Give You Up", 213);
+	}
+
+	@Benchmark
+	public void debugDisabled() {
+		LOGGER.debug("Starting... next AudioTrack: {}", "Never Gonna Give You Up");
+	}
+}
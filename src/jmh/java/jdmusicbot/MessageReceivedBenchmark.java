@@ -0,0 +1,57 @@
+package jdmusicbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+
+/**
+ * Per-message cost of App.onGuildMessageReceived for every message JDA hands to the bot: plain chatter that is no
+ * command, an unknown command and #ping, which is answered through a faked channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageReceivedBenchmark {
+
+	@Param({ "chatter", "unknown", "ping" })
+	public String kind;
+
+	private App app;
+	private GuildMessageReceivedEvent event;
+
+	@Setup
+	public void setup() throws IOException {
+		Logger.setLoglevel(Logger.Loglevel.INFO);
+		File dataFolder = Files.createTempDirectory("jdmusicbot-jmh").toFile();
+		app = new App(dataFolder, BotConfig.defaults(), new ShardStartup(System.nanoTime()));
+		String content;
+		switch (kind) {
+		case "chatter":
+			content = "did anyone see the game yesterday? that last minute goal was insane";
+			break;
+		case "ping":
+			content = App.CMD_PREFIX + "ping";
+			break;
+		default:
+			content = App.CMD_PREFIX + "hashtag without any meaning";
+		}
+		event = Fakes.guildMessage(content, Fakes.channel(1, "benchmark"));
+	}
+
+	@Benchmark
+	public void onGuildMessageReceived() {
+		app.onGuildMessageReceived(event);
+	}
+}
@@ -0,0 +1,69 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Cost of appending a loaded playlist to a queue. perTrackOffer is what queuePlaylist did before (summing the length
+ * with a stream, removing the started track from the head of the list and offering every track to a
+ * LinkedBlockingQueue), treapOffer offers every track to the TrackQueue and offerAll appends the playlist in pages
+ * like TrackScheduler.queueAll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaylistIngestBenchmark {
+
+	@Param({ "100", "5000" })
+	public int tracks;
+
+	private List<AudioTrack> playlist;
+
+	@Setup
+	public void setup() {
+		playlist = new ArrayList<>(tracks);
+		for (int i = 0; i < tracks; i++)
+			playlist.add(new FakeAudioTrack(String.valueOf(i), 60_000 + i * 1000L));
+	}
+
+	@Benchmark
+	public Object perTrackOffer() {
+		List<AudioTrack> list = new ArrayList<>(playlist);
+		long length = list.stream().mapToLong(track -> track.getInfo().length).reduce(0, Long::sum);
+		LinkedBlockingQueue<AudioTrack> queue = new LinkedBlockingQueue<>();
+		list.remove(0);
+		list.forEach(track -> queue.offer(track));
+		return length + queue.size();
+	}
+
+	@Benchmark
+	public Object treapOffer() {
+		TrackQueue queue = new TrackQueue();
+		for (int i = 1; i < playlist.size(); i++)
+			queue.offer(playlist.get(i));
+		return queue.getTotalDuration();
+	}
+
+	@Benchmark
+	public Object offerAll() {
+		TrackQueue queue = new TrackQueue();
+		List<AudioTrack> rest = playlist.subList(1, playlist.size());
+		long length = 0;
+		for (int from = 0; from < rest.size(); from += TrackScheduler.INGEST_PAGE_SIZE)
+			length += queue.offerAll(rest.subList(from, Math.min(rest.size(), from + TrackScheduler.INGEST_PAGE_SIZE)));
+		return length;
+	}
+}
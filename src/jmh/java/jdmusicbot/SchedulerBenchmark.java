@@ -0,0 +1,90 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist;
+
+import net.dv8tion.jda.api.entities.MessageChannel;
+
+/**
+ * TrackScheduler.queuePlaylist and showQueue on a FakeAudioPlayer that is already playing, so every track of the
+ * playlist goes to the queue. Messages end in a DiscardingMessagePipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SchedulerBenchmark {
+
+	@Param({ "100", "5000" })
+	public int tracks;
+
+	private final MessageChannel channel = Fakes.channel(1, "benchmark");
+	private final DiscardingMessagePipeline messages = new DiscardingMessagePipeline();
+	private AudioPlaylist playlist;
+	/* holds the whole playlist for the showQueue benchmarks */
+	private TrackScheduler filled;
+
+	@Setup
+	public void setup() {
+		Logger.setLoglevel(Logger.Loglevel.INFO);
+		List<AudioTrack> list = new ArrayList<>(tracks);
+		for (int i = 0; i < tracks; i++)
+			list.add(new FakeAudioTrack(String.valueOf(i), 60_000 + i * 1000L));
+		playlist = new BasicAudioPlaylist("Benchmark", list, null, false);
+		filled = playingScheduler();
+		filled.queuePlaylist(playlist);
+	}
+
+	private TrackScheduler playingScheduler() {
+		TrackScheduler scheduler = new TrackScheduler(new FakeAudioPlayer(), messages);
+		scheduler.setOutputChannel(channel);
+		/* started through the scheduler, so it knows that something is playing */
+		scheduler.queue(new FakeAudioTrack("playing", 180_000));
+		return scheduler;
+	}
+
+	/**
+	 * A scheduler with an empty queue for every call of queuePlaylist
+	 */
+	@State(Scope.Thread)
+	public static class Empty {
+		TrackScheduler scheduler;
+
+		@Setup(Level.Invocation)
+		public void setup(SchedulerBenchmark benchmark) {
+			scheduler = benchmark.playingScheduler();
+		}
+	}
+
+	@Benchmark
+	public TrackScheduler queuePlaylist(Empty empty) {
+		empty.scheduler.queuePlaylist(playlist);
+		return empty.scheduler;
+	}
+
+	@Benchmark
+	public long showQueuePage() {
+		filled.showQueue(1);
+		return messages.getChars();
+	}
+
+	@Benchmark
+	public long showQueueAll() {
+		filled.showQueue();
+		return messages.getChars();
+	}
+}
@@ -0,0 +1,66 @@
+package jdmusicbot;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+/**
+ * Cost of one canProvide()/provide20MsAudio() round as JDA's send thread does it every 20ms, fed by a FakeAudioPlayer
+ * with frames of varying size. Before measuring, both send handlers are checked to hand out every frame with exactly
+ * the size the player stored and in the right order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SendHandlerBenchmark {
+
+	private AudioPlayerSendHandler handler;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		verify(new AudioPlayerSendHandler(new FakeAudioPlayer()), new FakeAudioPlayer());
+		FakeAudioPlayer prefetched = new FakeAudioPlayer();
+		PrefetchingAudioSendHandler prefetcher = new PrefetchingAudioSendHandler(prefetched, 50);
+		try {
+			verify(prefetcher, new FakeAudioPlayer());
+		} finally {
+			prefetcher.close();
+		}
+		handler = new AudioPlayerSendHandler(new FakeAudioPlayer());
+	}
+
+	/**
+	 * Reads two rounds of all frame sizes from the handler and compares them with the frames the reference player produces
+	 */
+	private static void verify(AudioSendHandler handler, FakeAudioPlayer reference) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		for (long sequence = 0; sequence < 2 * FakeAudioPlayer.FRAME_SIZES; sequence++) {
+			/* the prefetching handler only has frames once its prefetch thread topped the ring up */
+			while (!handler.canProvide()) {
+				if (System.currentTimeMillis() > deadline)
+					throw new IllegalStateException(handler.getClass().getSimpleName() + " provided no frame " + sequence);
+				Thread.sleep(1);
+			}
+			ByteBuffer frame = handler.provide20MsAudio();
+			if (frame.position() != 0 || frame.remaining() != reference.sizeOf(sequence) || frame.get(0) != FakeAudioPlayer.markerOf(sequence))
+				throw new IllegalStateException(handler.getClass().getSimpleName() + " handed out frame " + sequence + " with "
+						+ frame.remaining() + " bytes at position " + frame.position() + ", expected " + reference.sizeOf(sequence));
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer provideFrame() {
+		if (!handler.canProvide())
+			return null;
+		return handler.provide20MsAudio();
+	}
+}
@@ -0,0 +1,68 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+
+/**
+ * Cost of rendering a queue listing into messages. regexSplit is what showQueue did before (String concatenation with
+ * String.format per line and the look-behind regex to cut the result into chunks of 1000 characters), chunker writes
+ * the same lines with the MessageChunker into chunks split on line boundaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShowQueueBenchmark {
+
+	@Param({ "10", "500", "5000" })
+	public int tracks;
+
+	private List<AudioTrack> queue;
+	private MessageChunker chunker;
+
+	@Setup
+	public void setup() {
+		queue = new ArrayList<>(tracks);
+		for (int i = 0; i < tracks; i++)
+			queue.add(new FakeAudioTrack(String.valueOf(i), 60_000 + i * 1000L));
+		chunker = new MessageChunker(MessagePipeline.MAX_BODY_LENGTH);
+	}
+
+	@Benchmark
+	public void regexSplit(Blackhole bh) {
+		String output = String.format("Currently running Queue: %d Tracks\n", queue.size());
+		for (int i = 0; i < queue.size(); i++) {
+			AudioTrackInfo info = queue.get(i).getInfo();
+			output += String.format("%d. %s [%d:%02d]\n", i + 1, info.title, (info.length / 1000) / 60, (info.length / 1000) % 60);
+		}
+		String[] outputs = output.split("(?s)(?<=\\G.{1000})");
+		for (String out : outputs)
+			bh.consume(App.MSG_PREFIX + out + App.MSG_POSTFIX);
+	}
+
+	@Benchmark
+	public void chunker(Blackhole bh) {
+		Consumer<String> sink = bh::consume;
+		chunker.begin(sink);
+		chunker.append("Currently running Queue: ").append(queue.size()).append(" Tracks").endLine();
+		for (int i = 0; i < queue.size(); i++) {
+			AudioTrackInfo info = queue.get(i).getInfo();
+			chunker.append(i + 1).append(". ").append(info.title).append(" [").appendDuration(info.length).append(']').endLine();
+		}
+		chunker.finish();
+	}
+}
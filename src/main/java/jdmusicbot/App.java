@@ -4,43 +4,92 @@
 package jdmusicbot;
 
 import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.security.auth.login.LoginException;
 
-import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
-import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
-import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import com.sedmelluq.discord.lavaplayer.source.bandcamp.BandcampAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.beam.BeamAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.http.HttpAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.soundcloud.SoundCloudAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.twitch.TwitchStreamAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.vimeo.VimeoAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 
 import net.dv8tion.jda.api.AccountType;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
-import net.dv8tion.jda.api.audio.AudioSendHandler;
 import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.managers.AudioManager;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
 
 
 public class App extends ListenerAdapter {
 
+	private static Logger LOG = new Logger("App-Logger");
+
 	private Logger logger = new Logger("Command-Logger");
 
-	public static final String CMD_PREFIX = "#";
+	public static final char CMD_PREFIX_CHAR = '#';
+	public static final String CMD_PREFIX = String.valueOf(CMD_PREFIX_CHAR);
 	public static final String MSG_PREFIX = "```";
 	public static final String MSG_POSTFIX = "```";
 
-	private AudioSendHandler provider;
+	private static final String TOKEN = "YOUR TOKEN HERE";
+
+	/* Number of log records that can be pending before new ones are dropped */
+	public static final int LOG_BUFFER_SIZE = 8192;
+
+	/* Guilds without any tracks are evicted after this many milliseconds without a command */
+	public static final long PLAYER_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	/* How long an entry of the resolved-track cache stays valid */
+	public static final long TRACK_CACHE_TTL = TimeUnit.MINUTES.toMillis(30);
+
+	/* Status lines of a channel posted within this many milliseconds are sent as one message */
+	public static final long MESSAGE_BATCH_WINDOW = 250;
 
-	private AudioPlayerManager playerManager;
-	private TrackScheduler trackScheduler;
+	/* Commands that may be pending per guild and over all guilds before new ones are rejected */
+	public static final int MAX_GUILD_COMMANDS = 16;
+	public static final int MAX_PENDING_COMMANDS = 4096;
 
-	private Map<String, CommandInfo> commands = new HashMap<String, CommandInfo>();
+	/* Milliseconds between two writes of changed queues to the journal */
+	public static final long QUEUE_JOURNAL_INTERVAL = TimeUnit.SECONDS.toMillis(2);
+	/* Milliseconds between two writes of the changed search index */
+	public static final long SEARCH_INDEX_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	private BotConfig config;
+	private DefaultAudioPlayerManager playerManager;
+	private TrackCache trackCache;
+	private QueueJournal journal;
+	private SearchIndex searchIndex;
+	private SearchFanout searchFanout;
+	private BroadcastHub broadcastHub;
+	private GuildAudioRegistry audioRegistry;
+	private MessagePipeline messages;
+	private CommandExecutor executor;
+	private ShardStartup startup;
+	private IdleReaper idleReaper;
+
+	private CommandDispatcher commands = new CommandDispatcher(CMD_PREFIX_CHAR);
 
 	public static void main(String[] args) {
+        long started = System.nanoTime();
         String logFolder = System.getenv("XDG_DATA_HOME");
         if (logFolder == null) {
             logFolder = System.getenv("HOME");
@@ -50,30 +99,141 @@ public class App extends ListenerAdapter {
                 logFolder += "/.local/share";
         }
         Logger.addLogFile(new File(logFolder + "/jdmusicbot.log"));
-
+        File dataFolder = new File(logFolder);
+        /* e.g. JDMUSICBOT_LOGLEVEL=INFO in production, so debug output isn't even built */
+        String loglevel = System.getenv("JDMUSICBOT_LOGLEVEL");
+        if (loglevel != null) {
+            try {
+                Logger.setLoglevel(Logger.Loglevel.valueOf(loglevel.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Unknown loglevel {}, keeping {}", loglevel, Logger.getLoglevel());
+            }
+        }
+        /* Event and audio threads only enqueue their log records, a background thread does the formatting and file I/O */
+        Logger.startAsync(LOG_BUFFER_SIZE, Logger.Overflow.DROP);
+
+		/* Tunables come from the environment, jdmusicbot.properties in the data folder (or the file in JDMUSICBOT_CONFIG) and the selected profile */
+		String configFile = System.getenv("JDMUSICBOT_CONFIG");
+		BotConfig config = BotConfig.load(configFile != null ? new File(configFile) : new File(dataFolder, "jdmusicbot.properties"));
+
+		ShardStartup startup = new ShardStartup(started);
+		App app = new App(dataFolder, config, startup);
+		List<Object> listeners = new ArrayList<>(Arrays.asList(app, startup));
+		if (app.idleReaper != null)
+			listeners.add(app.idleReaper);
 		try {
-			 JDA jdabuild = JDABuilder.createDefault("YOUR TOKEN HERE")
-				.addEventListeners(new App())
-				.build();
-			 jdabuild.awaitReady();
+			if (config.shards == 0) {
+				/*
+				 * Commands only need guild messages, joining the author's voice channel only needs their voice state. Members are
+				 * cached while they are in a voice channel and never chunked, presences, activities and emotes aren't cached at all
+				 */
+				JDABuilder jdaBuilder = config.leanGateway
+					? JDABuilder.create(TOKEN, GatewayIntent.GUILD_MESSAGES, GatewayIntent.GUILD_VOICE_STATES)
+						.disableCache(CacheFlag.ACTIVITY, CacheFlag.CLIENT_STATUS, CacheFlag.EMOTE, CacheFlag.MEMBER_OVERRIDES)
+						.setMemberCachePolicy(MemberCachePolicy.VOICE)
+						.setChunkingFilter(ChunkingFilter.NONE)
+					: JDABuilder.createDefault(TOKEN);
+				JDA jdabuild = jdaBuilder
+					.addEventListeners(listeners.toArray())
+					.build();
+				startup.expect(1);
+				jdabuild.awaitReady();
+			} else {
+				/* Every shard is an own gateway connection, the SessionController logs in as many of them at once as Discord allows */
+				DefaultShardManagerBuilder builder = (config.leanGateway
+					? DefaultShardManagerBuilder.create(TOKEN, GatewayIntent.GUILD_MESSAGES, GatewayIntent.GUILD_VOICE_STATES)
+						.disableCache(CacheFlag.ACTIVITY, CacheFlag.CLIENT_STATUS, CacheFlag.EMOTE, CacheFlag.MEMBER_OVERRIDES)
+						.setMemberCachePolicy(MemberCachePolicy.VOICE)
+						.setChunkingFilter(ChunkingFilter.NONE)
+					: DefaultShardManagerBuilder.createDefault(TOKEN))
+					.setShardsTotal(config.shards)
+					.setSessionController(new BucketedSessionController(config.identifyConcurrency))
+					.addEventListeners(listeners.toArray());
+				boolean range = config.shardMin >= 0 && config.shardMax >= config.shardMin;
+				if (range && config.shards > 0)
+					builder.setShards(config.shardMin, config.shardMax);
+				else if (range)
+					LOG.warn("A shard range needs the total number of shards to be set, starting all shards");
+				ShardManager shardManager = builder.build();
+				startup.expect(range && config.shards > 0 ? config.shardMax - config.shardMin + 1 : shardManager.getShardsTotal());
+			}
 		} catch (LoginException | InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
 
-	private App() {
+	App(File dataFolder, BotConfig config, ShardStartup startup) {
+		this.config = config;
+		this.startup = startup;
+		logger.info("Configuration: {}", config);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "App-Shutdown"));
+
 		/* Lavaplayer */
 		playerManager = new DefaultAudioPlayerManager();
-		AudioSourceManagers.registerRemoteSources(playerManager);
+		playerManager.setItemLoaderThreadPoolSize(config.loaderThreads);
+		playerManager.setFrameBufferDuration(config.frameBufferMillis);
+		playerManager.setTrackStuckThreshold(config.trackStuckMillis);
+		playerManager.setPlayerCleanupThreshold(config.playerCleanupMillis);
+		playerManager.getConfiguration().setOpusEncodingQuality(config.opusQuality);
+		playerManager.getConfiguration().setResamplingQuality(config.resamplingQuality);
+		/* #volume, #eq and #speed change the filters of the playing track instead of waiting for the next one */
+		playerManager.getConfiguration().setFilterHotSwapEnabled(true);
+		registerSources(config.sources);
+
+		/* Queues are written to a journal in the background and restored when their guild becomes active again after a restart */
+		journal = new QueueJournal(new File(dataFolder, "jdmusicbot-queues.journal"), playerManager, QUEUE_JOURNAL_INTERVAL);
+		try {
+			journal.open();
+		} catch (IOException e) {
+			logger.error("Failed to open the Queue journal. Queues won't survive a restart", e);
+			journal = null;
+		}
 
-		AudioPlayer player = playerManager.createPlayer();
+		/* Resolved urls and search queries are answered from the cache instead of asking YouTube/SoundCloud again */
+		trackCache = new TrackCache(playerManager, config.trackCacheSize, TRACK_CACHE_TTL);
+
+		/* #search is answered from the tracks the bot already played if one of them matches well, before YouTube is asked */
+		if (config.searchIndexSize > 0) {
+			searchIndex = new SearchIndex(playerManager, new File(dataFolder, "jdmusicbot-search.index"), config.searchIndexSize, SEARCH_INDEX_INTERVAL);
+			try {
+				searchIndex.open();
+			} catch (IOException e) {
+				logger.error("Failed to read the search index, starting with an empty one", e);
+			}
+		}
 
-		/* Register our TrackScheduler that is receiving all audio events from lavaplayer (like events for starting or ending tracks). It makes sense to also make it responsible for scheduling tracks */
-		trackScheduler = new TrackScheduler(player);
-		player.addListener(trackScheduler);
+		/* #search asks all search sources at once and takes the first result, a slow provider can't stall it past the deadline */
+		searchFanout = new SearchFanout(trackCache, searchSources(config), config.searchDeadlineMillis);
+
+		/* #broadcast decodes a track once and sends the same Opus frames to every guild listening to it */
+		broadcastHub = new BroadcastHub(playerManager, trackCache);
+
+		/* Status messages of the TrackSchedulers are batched per channel, so busy guilds don't run into Discords rate limit */
+		messages = new MessagePipeline(MESSAGE_BATCH_WINDOW);
+
+		/* Every guild gets its own AudioPlayer, TrackScheduler and AudioSendHandler. They are created lazily on the first command of a guild */
+		audioRegistry = new GuildAudioRegistry(playerManager, config.maxPlayers, PLAYER_IDLE_TIMEOUT, config.prefetchFrames,
+				TimeUnit.SECONDS.toMillis(config.preloadSeconds), journal, searchIndex, messages);
+
+		/* Metrics of the components created above, everything else records into Metrics directly */
+		Metrics.gauge("jdmusicbot_track_cache_tracks", "AudioTracks in the track cache", trackCache::getCachedTracks);
+		Metrics.gauge("jdmusicbot_message_queue_depth", "Status lines waiting to be sent", messages::getQueueDepth);
+		Metrics.gauge("jdmusicbot_message_latency_avg_seconds", "Average time from posting a status line until Discord accepted it", () -> messages.getAverageLatency() / 1000);
+		Metrics.gauge("jdmusicbot_message_latency_max_seconds", "Highest time from posting a status line until Discord accepted it", () -> messages.getMaxLatency() / 1000);
+		if (config.metricsPort > 0) {
+			try {
+				new MetricsServer(config.metricsPort).start();
+			} catch (IOException e) {
+				logger.error("Failed to start the metrics endpoint on port " + config.metricsPort, e);
+			}
+		}
 
-		/* Link JDA and Lavaplayer together */ 
-		provider = new AudioPlayerSendHandler(player);
+		/* Commands run on their guild's lane of a shared pool, so a slow guild doesn't hold up JDA's event thread */
+		executor = new CommandExecutor(config.commandThreads, MAX_GUILD_COMMANDS, MAX_PENDING_COMMANDS);
+
+		/* Voice connections and AudioPlayers of guilds that stopped listening are freed, their queues are parked in the journal */
+		if (config.idleTimeoutSeconds > 0)
+			idleReaper = new IdleReaper(audioRegistry, broadcastHub, executor, TimeUnit.SECONDS.toMillis(config.idleTimeoutSeconds));
 
 		/* Initialize Command Queue */
 		initializeCommands();
@@ -81,47 +241,188 @@ public class App extends ListenerAdapter {
 		//logger.debug("Logged out as " + client.getSelf().block().getUsername());
 	}
 
+	/**
+	 * Runs as shutdown hook. Stops taking commands, writes the queues and the search index and closes the log last, so
+	 * nothing that is logged while shutting down gets lost
+	 */
+	private void shutdown() {
+		if (executor != null)
+			executor.shutdown(TimeUnit.SECONDS.toMillis(5));
+		if (journal != null)
+			journal.shutdown();
+		if (searchIndex != null)
+			searchIndex.shutdown();
+		Logger.shutdown();
+	}
+
+	/**
+	 * Registers only the given source managers instead of everything AudioSourceManagers.registerRemoteSources knows, each
+	 * of them brings its own http client and threads
+	 */
+	private void registerSources(List<String> sources) {
+		for (String source : sources) {
+			switch (source) {
+			case "youtube":
+				playerManager.registerSourceManager(new YoutubeAudioSourceManager(true));
+				break;
+			case "soundcloud":
+				playerManager.registerSourceManager(SoundCloudAudioSourceManager.createDefault());
+				break;
+			case "bandcamp":
+				playerManager.registerSourceManager(new BandcampAudioSourceManager());
+				break;
+			case "vimeo":
+				playerManager.registerSourceManager(new VimeoAudioSourceManager());
+				break;
+			case "twitch":
+				playerManager.registerSourceManager(new TwitchStreamAudioSourceManager());
+				break;
+			case "beam":
+				playerManager.registerSourceManager(new BeamAudioSourceManager());
+				break;
+			case "http":
+				playerManager.registerSourceManager(new HttpAudioSourceManager());
+				break;
+			default:
+				logger.warn("Unknown source {}, known sources: youtube, soundcloud, bandcamp, vimeo, twitch, beam, http", source);
+			}
+		}
+	}
+
+	/**
+	 * @return the configured search prefixes whose source manager is registered, ytsearch if none is left
+	 */
+	private List<String> searchSources(BotConfig config) {
+		List<String> searches = new ArrayList<>();
+		for (String search : config.searchSources) {
+			String source;
+			switch (search) {
+			case "ytsearch":
+				source = "youtube";
+				break;
+			case "scsearch":
+				source = "soundcloud";
+				break;
+			default:
+				logger.warn("Unknown search source {}, known search sources: ytsearch, scsearch", search);
+				continue;
+			}
+			if (config.sources.contains(source))
+				searches.add(search);
+			else
+				logger.warn("Search source {} needs the source {}, which isn't registered", search, source);
+		}
+		if (searches.isEmpty())
+			searches.add("ytsearch");
+		return searches;
+	}
+
 
 	@Override
 	public void onGuildMessageReceived(GuildMessageReceivedEvent event) {
 		//if (event.getGuild().getSelfMember().hasPermission(event.getChannel(), Permission.MESSAGE_WRITE))
-		event.getGuild().getAudioManager().setSendingHandler(provider);
+		CommandInfo info = commands.resolve(event.getMessage().getContentRaw());
+		if (info != null) {
+			boolean accepted = executor.submit(event.getGuild().getIdLong(), () -> {
+				long start = System.nanoTime();
+				try {
+					info.cmd.execute(event);
+				} finally {
+					info.latency.record(System.nanoTime() - start);
+				}
+			});
+			if (!accepted) {
+				logger.warn("Rejected command of Guild {}. Too many pending commands", event.getGuild().getIdLong());
+				event.getChannel().sendMessage(MSG_PREFIX + "Too many pending commands. Please try again later" + MSG_POSTFIX).queue();
+			}
+		}
+        super.onGuildMessageReceived(event);
+    }
+
+    /**
+     * Wraps a command that needs the audio engine of the guild it was sent in. The engine is looked up (or created)
+     * first, linked to the guild's AudioManager and the channel of the message becomes the scheduler's output channel.
+     */
+    private Command withScheduler(BiConsumer<GuildMessageReceivedEvent, TrackScheduler> cmd) {
+        return withAudio((event, audio) -> cmd.accept(event, audio.getScheduler()));
+    }
 
-		String content = event.getMessage().getContentRaw();
-        for (final Map.Entry<String, CommandInfo> entry : commands.entrySet()) {
-            if (content.startsWith(CMD_PREFIX + entry.getKey())) {
-                /* Set Bot Output Channel for more Output */
-                trackScheduler.setOutputChannel(event.getChannel());
-                entry.getValue().cmd.execute(event);
-                break;
+    /**
+     * Like {@link #withScheduler} for commands that need more of the guild's engine than its TrackScheduler
+     */
+    private Command withAudio(BiConsumer<GuildMessageReceivedEvent, GuildAudio> cmd) {
+        return event -> {
+            int shardId = event.getJDA().getShardInfo().getShardId();
+            GuildAudio audio = audioRegistry.get(shardId, event.getGuild().getIdLong());
+            if (audio == null) {
+                event.getChannel().sendMessage(MSG_PREFIX + "Too many active Audioplayers. Please try again later" + MSG_POSTFIX).queue();
+                return;
             }
+            if (idleReaper != null)
+                idleReaper.watch(event.getJDA(), shardId, audio);
+            AudioManager audioManager = event.getGuild().getAudioManager();
+            /* a guild listening to a broadcast keeps its send handler until it leaves the broadcast */
+            if (audioManager.getSendingHandler() != audio.getSendHandler() && broadcastHub.getSubscriber(event.getGuild().getIdLong()) == null)
+                audioManager.setSendingHandler(audio.getSendHandler());
+            /* Set Bot Output Channel for more Output */
+            audio.getScheduler().setOutputChannel(event.getChannel());
+            cmd.accept(event, audio);
+        };
+    }
+
+    /**
+     * Lets the guild leave the broadcast it listens to and gives the voice connection back to its own AudioPlayer
+     */
+    private void leaveBroadcast(GuildMessageReceivedEvent event, GuildAudio audio) {
+        if (broadcastHub.leave(event.getGuild().getIdLong())) {
+            event.getGuild().getAudioManager().setSendingHandler(audio.getSendHandler());
+            reply(event, "Left the broadcast");
         }
-        super.onGuildMessageReceived(event);
+    }
+
+    /**
+     * Gives the guild its own AudioPlayer back after the broadcast it listened to ended on its own, unless the guild
+     * moved on already
+     */
+    private void releaseBroadcast(AudioManager audioManager, int shardId, long guildId, Broadcast.Subscriber ended) {
+        if (audioManager.getSendingHandler() == ended) {
+            GuildAudio current = audioRegistry.getIfPresent(shardId, guildId);
+            audioManager.setSendingHandler(current != null ? current.getSendHandler() : null);
+        }
+    }
+
+    private static void reply(GuildMessageReceivedEvent event, String msg) {
+        event.getChannel().sendMessage(MSG_PREFIX + msg + MSG_POSTFIX).queue();
+    }
+
+    /**
+     * Appends count, median and 99th percentile of a latency histogram
+     */
+    private static MessageChunker appendLatency(MessageChunker chunker, Histogram latency) {
+        return chunker.append(latency.getCount()).append(String.format(" times, p50 %.1f ms, p99 %.1f ms", latency.getQuantile(0.5) * 1000, latency.getQuantile(0.99) * 1000));
     }
 
     private void initializeCommands() {
         /* help Command */
-        commands.put("help", new CommandInfo("help", "Show the Help Message", event -> {
+        commands.register("help", new CommandInfo("help", "Show the Help Message", event -> {
             MessageChannel channel = event.getChannel();
-            StringBuilder builder = new StringBuilder();
-            for (final Map.Entry<String, CommandInfo> entry : commands.entrySet()) {
-                CommandInfo info = entry.getValue();
-                builder.append("Command/Usage: ");
-                builder.append(CMD_PREFIX + info.usage);
-                builder.append("\nDescription: ");
-                builder.append(info.description);
-                builder.append("\n\n");
-            }
-            channel.sendMessage(MSG_PREFIX + builder.toString() + MSG_POSTFIX).queue();
+            /* The help text can be longer than one message, the chunker splits it on line boundaries */
+            MessageChunker chunker = new MessageChunker(MessagePipeline.MAX_BODY_LENGTH).begin(chunk -> channel.sendMessage(MSG_PREFIX + chunk + MSG_POSTFIX).queue());
+            for (CommandInfo info : commands.getCommands()) {
+                chunker.append("Command/Usage: ").append(CMD_PREFIX).append(info.usage).endLine();
+                chunker.append("Description: ").append(info.description).endLine();
+                chunker.endLine();
+            }
+            chunker.finish();
         }));
 
         /* ping Command */
-        commands.put("ping", new CommandInfo("ping", "get yourself a pong", event -> {
+        commands.register("ping", new CommandInfo("ping", "get yourself a pong", event -> {
             event.getMessage().getChannel().sendMessage(MSG_PREFIX + "Pong" + MSG_POSTFIX).queue();
         }));
 
         /* join Command */
-        commands.put("join", new CommandInfo("join", "let JDMusicBot join your voice channel", event -> {
+        commands.register("join", new CommandInfo("join", "let JDMusicBot join your voice channel", event -> {
             AudioManager audioManager = event.getGuild().getAudioManager();
             if (!audioManager.isConnected()) {
                 logger.debug("At join Command: Try to Join VoiceChannel");
@@ -131,7 +432,9 @@ public class App extends ListenerAdapter {
         }));
 
         /* play Command */
-        commands.put("play", new CommandInfo("play [youtube-video-link or Soundcloud or ...]", "Let the JDMusicBot join your voice channel. If no Track is currently playing it's directly started and if not it's appended to the Audio-Queue", event -> {
+        commands.register("play", new CommandInfo("play [youtube-video-link or Soundcloud or ...]", "Let the JDMusicBot join your voice channel. If no Track is currently playing it's directly started and if not it's appended to the Audio-Queue", withAudio((event, audio) -> {
+            TrackScheduler trackScheduler = audio.getScheduler();
+            leaveBroadcast(event, audio);
             AudioManager audioManager = event.getGuild().getAudioManager();
             if (!audioManager.isConnected()) {
                 logger.debug("At play Command: Try to Join VoiceChannel");
@@ -140,11 +443,13 @@ public class App extends ListenerAdapter {
             }
             logger.debug("At play Command: Load Audio-Track");
             String url = event.getMessage().getContentRaw().split(" ")[1];
-            playerManager.loadItem(url, trackScheduler);
-        }));
+            trackCache.loadItem(url, trackScheduler);
+        })));
 
         /* search Command */
-        commands.put("search", new CommandInfo("search [youtube-search-query]", "Search for an Youtube Video and play the first result", event -> {
+        commands.register("search", new CommandInfo("search [search-query]", "Search YouTube and SoundCloud and play the first result", withAudio((event, audio) -> {
+            TrackScheduler trackScheduler = audio.getScheduler();
+            leaveBroadcast(event, audio);
             AudioManager audioManager = event.getGuild().getAudioManager();
             if (!audioManager.isConnected()) {
                 logger.debug("At play Command: Try to Join VoiceChannel");
@@ -153,64 +458,237 @@ public class App extends ListenerAdapter {
             }
             logger.debug("At play Command: Load Audio-Track");
             String search = event.getMessage().getContentRaw().split(" ", 2)[1];
-            playerManager.loadItem("ytsearch: " + search, trackScheduler);
-        }));
+            AudioTrack known = searchIndex != null ? searchIndex.search(search) : null;
+            if (known != null) {
+                logger.debug("At search Command: Found {} in the search index", known.getInfo().title);
+                trackScheduler.trackLoaded(known);
+                return;
+            }
+            searchFanout.search(search, trackScheduler);
+        })));
 
         /* list Command */
-        commands.put("list", new CommandInfo("list [count]", "Lists the next 10 Tracks or the next [count] tracks if specified", event -> {
+        commands.register("list", new CommandInfo("list [page or all]", "Lists the first page of the Queue (10 Tracks), the page [page] if specified or the entire Queue with all", withScheduler((event, trackScheduler) -> {
             String[] args = event.getMessage().getContentRaw().split(" ");
+            int page = 1;
+            if (args.length > 1 && args[1].equalsIgnoreCase("all")) {
+                trackScheduler.showQueue();
+                return;
+            }
             if (args.length > 1) {
-                int num;
                 try {
-                    num = Integer.parseInt(args[1]);
+                    page = Integer.parseInt(args[1]);
                 } catch (NumberFormatException e) {
-                    num = 10;
+                    page = 1;
                 }
-                trackScheduler.showQueue(num);
             }
-            else {
-                trackScheduler.showQueue(10);
+            trackScheduler.showQueue(page);
+        })));
+
+        /* remove Command */
+        commands.register("remove", new CommandInfo("remove [position]", "Removes the Track at [position] of the Queue", withScheduler((event, trackScheduler) -> {
+            String[] args = event.getMessage().getContentRaw().split(" ");
+            try {
+                trackScheduler.remove(Integer.parseInt(args[1]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                event.getChannel().sendMessage(MSG_PREFIX + "Usage: " + CMD_PREFIX + "remove [position]" + MSG_POSTFIX).queue();
             }
-        }));
+        })));
+
+        /* move Command */
+        commands.register("move", new CommandInfo("move [from] [to]", "Moves the Track at position [from] of the Queue to position [to]", withScheduler((event, trackScheduler) -> {
+            String[] args = event.getMessage().getContentRaw().split(" ");
+            try {
+                trackScheduler.move(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                event.getChannel().sendMessage(MSG_PREFIX + "Usage: " + CMD_PREFIX + "move [from] [to]" + MSG_POSTFIX).queue();
+            }
+        })));
+
+        /* shuffle Command */
+        commands.register("shuffle", new CommandInfo("shuffle", "Shuffles the entire Queue", withScheduler((event, trackScheduler) -> trackScheduler.shuffle())));
 
         /* stop Command */
-        commands.put("stop", new CommandInfo("stop", "Skips the currently playing AudioTrack and stops the Audioplayer", event -> trackScheduler.stopPlayer()));
+        commands.register("stop", new CommandInfo("stop", "Skips the currently playing AudioTrack and stops the Audioplayer", withScheduler((event, trackScheduler) -> trackScheduler.stopPlayer())));
 
         /* pause Command */
-        commands.put("pause", new CommandInfo("pause", "Pauses the Audioplayer", event -> trackScheduler.pausePlayer()));
+        commands.register("pause", new CommandInfo("pause", "Pauses the Audioplayer", withScheduler((event, trackScheduler) -> trackScheduler.pausePlayer())));
 
         /* resume Command */
-        commands.put("resume", new CommandInfo("resume", "Resumes the Audioplayer if it's paused or if it is stopped", event -> trackScheduler.resumePlayer()));
+        commands.register("resume", new CommandInfo("resume", "Resumes the Audioplayer if it's paused or if it is stopped", withAudio((event, audio) -> {
+            leaveBroadcast(event, audio);
+            audio.getScheduler().resumePlayer();
+        })));
 
         /* skip Command */
-        commands.put("skip", new CommandInfo("skip", "Skips the currently playing audio", event -> trackScheduler.nextTrack()));
+        commands.register("skip", new CommandInfo("skip", "Skips the currently playing audio", withScheduler((event, trackScheduler) -> trackScheduler.nextTrack())));
 
         /* clear Command */
-        commands.put("clear", new CommandInfo("clear", "Clears the entire Queue", event -> trackScheduler.clear()));
+        commands.register("clear", new CommandInfo("clear", "Clears the entire Queue", withScheduler((event, trackScheduler) -> trackScheduler.clear())));
 
         /* loop Command */
-        commands.put("loop", new CommandInfo("loop", "Loops the current Track", event -> trackScheduler.loop()));
+        commands.register("loop", new CommandInfo("loop", "Loops the current Track", withScheduler((event, trackScheduler) -> trackScheduler.loop())));
 
         /* unloop Command */
-        commands.put("unloop", new CommandInfo("unloop", "Stops the loop for the current AudioTrack", event -> trackScheduler.unloop()));
+        commands.register("unloop", new CommandInfo("unloop", "Stops the loop for the current AudioTrack", withScheduler((event, trackScheduler) -> trackScheduler.unloop())));
+
+        /* volume Command */
+        commands.register("volume", new CommandInfo("volume [0-" + AudioFilters.MAX_VOLUME + "]", "Shows or sets the volume in percent", withAudio((event, audio) -> {
+            String[] args = event.getMessage().getContentRaw().split(" ");
+            AudioFilters filters = audio.getFilters();
+            try {
+                if (args.length > 1)
+                    filters.setVolume(Integer.parseInt(args[1]));
+                reply(event, "Volume: " + filters.getVolume() + "%");
+            } catch (NumberFormatException e) {
+                reply(event, "Usage: " + CMD_PREFIX + "volume [0-" + AudioFilters.MAX_VOLUME + "]");
+            }
+        })));
+
+        /* eq Command */
+        commands.register("eq", new CommandInfo("eq [band gain or reset]", "Shows the equalizer, sets the gain of a band (1-" + AudioFilters.EQ_BANDS.length + ") in dB or resets all bands", withAudio((event, audio) -> {
+            String[] args = event.getMessage().getContentRaw().split(" ");
+            AudioFilters filters = audio.getFilters();
+            try {
+                if (args.length == 2 && args[1].equalsIgnoreCase("reset")) {
+                    filters.resetEq();
+                } else if (args.length > 2) {
+                    int band = Integer.parseInt(args[1]);
+                    if (band < 1 || band > AudioFilters.EQ_BANDS.length)
+                        throw new NumberFormatException();
+                    filters.setEqGain(band - 1, Float.parseFloat(args[2]));
+                } else if (args.length != 1) {
+                    throw new NumberFormatException();
+                }
+                StringBuilder eq = new StringBuilder("Equalizer:");
+                float[] gains = filters.getEqGains();
+                for (int i = 0; i < gains.length; i++)
+                    eq.append(String.format("%n%d. %5.0f Hz: %+.1f dB", i + 1, AudioFilters.EQ_BANDS[i], gains[i]));
+                reply(event, eq.toString());
+            } catch (NumberFormatException e) {
+                reply(event, "Usage: " + CMD_PREFIX + "eq [band (1-" + AudioFilters.EQ_BANDS.length + ") gain (-" + (int) AudioFilters.EQ_MAX_GAIN + " to " + (int) AudioFilters.EQ_MAX_GAIN + " dB) or reset]");
+            }
+        })));
+
+        /* speed Command */
+        commands.register("speed", new CommandInfo("speed [" + AudioFilters.MIN_SPEED + "-" + AudioFilters.MAX_SPEED + "]", "Shows or sets the playback speed, the pitch changes with it (1.25 is nightcore)", withAudio((event, audio) -> {
+            String[] args = event.getMessage().getContentRaw().split(" ");
+            AudioFilters filters = audio.getFilters();
+            try {
+                if (args.length > 1)
+                    filters.setSpeed(Double.parseDouble(args[1]));
+                reply(event, String.format("Speed: %.2fx", filters.getSpeed()));
+            } catch (NumberFormatException e) {
+                reply(event, "Usage: " + CMD_PREFIX + "speed [" + AudioFilters.MIN_SPEED + "-" + AudioFilters.MAX_SPEED + "]");
+            }
+        })));
 
         /* repeat Command */
-        commands.put("repeat", new CommandInfo("repeat", "Tell the JDMusicBot to repeat it's last played Track (last Played Track = Track is already over)", event -> trackScheduler.repeat()));
+        commands.register("repeat", new CommandInfo("repeat", "Tell the JDMusicBot to repeat it's last played Track (last Played Track = Track is already over)", withScheduler((event, trackScheduler) -> trackScheduler.repeat())));
 
         /* test Command */
-        commands.put("test", new CommandInfo("test", "Test", event -> {
+        commands.register("test", new CommandInfo("test", "Test", withScheduler((event, trackScheduler) -> {
             //MessageChannel channel = event.getMessage().getChannel();
             //client.getGuilds().collectList().block().forEach(guild -> channel.createMessage(MSG_PREFIX + "Group-ID: " + guild.getId().asString() + "\nGroup-Name: " + guild.getName() + MSG_POSTFIX).block());
             //channel.createMessage(MSG_PREFIX + "Self-ID: " + client.getSelfId().get().asString() + "\nSelf-Name: " + client.getSelf().block().getUsername() + MSG_POSTFIX).block();
-            playerManager.loadItem("https://www.youtube.com/watch?v=fzQ6gRAEoy0", trackScheduler);
-        }));
+            trackCache.loadItem("https://www.youtube.com/watch?v=fzQ6gRAEoy0", trackScheduler);
+        })));
+
+        /* broadcast Command */
+        commands.register("broadcast", new CommandInfo("broadcast [link or stop]", "Listen to the same Track as other Discord-Servers, it's only decoded once for all of them. Without argument the running broadcasts are listed, stop returns to the own Audio-Queue", withAudio((event, audio) -> {
+            String[] args = event.getMessage().getContentRaw().split(" ", 2);
+            long guildId = event.getGuild().getIdLong();
+            if (args.length < 2) {
+                MessageChannel channel = event.getChannel();
+                MessageChunker chunker = new MessageChunker(MessagePipeline.MAX_BODY_LENGTH).begin(chunk -> channel.sendMessage(MSG_PREFIX + chunk + MSG_POSTFIX).queue());
+                List<Broadcast> broadcasts = broadcastHub.getBroadcasts();
+                chunker.append("Broadcasts: ").append(broadcasts.size()).endLine();
+                for (Broadcast broadcast : broadcasts)
+                    chunker.append("  ").append(broadcast.getTitle()).append(" (").append(broadcast.getIdentifier()).append("): ").append(broadcast.getSubscriberCount()).append(" Guilds").endLine();
+                chunker.finish();
+                return;
+            }
+            if (args[1].trim().equalsIgnoreCase("stop")) {
+                if (broadcastHub.getSubscriber(guildId) == null)
+                    reply(event, "This Discord-Server doesn't listen to a broadcast");
+                else
+                    leaveBroadcast(event, audio);
+                return;
+            }
+            AudioManager audioManager = event.getGuild().getAudioManager();
+            if (!audioManager.isConnected()) {
+                logger.debug("At broadcast Command: Try to Join VoiceChannel");
+                audioManager.openAudioConnection(event.getMember().getVoiceState().getChannel());
+                logger.debug("At broadcast Command: Tried to Join VoiceChannel. Either Successed or is timed out.");
+            }
+            /* the own AudioPlayer would keep decoding for nobody */
+            if (audio.getPlayer().getPlayingTrack() != null && !audio.getPlayer().isPaused())
+                audio.getScheduler().pausePlayer();
+            int shardId = event.getJDA().getShardInfo().getShardId();
+            Broadcast.Subscriber subscriber = broadcastHub.join(guildId, args[1], msg -> reply(event, msg), ended -> {
+                Runnable release = () -> releaseBroadcast(audioManager, shardId, guildId, ended);
+                /* a full lane must not keep the guild on the ended broadcast */
+                if (!executor.submit(guildId, release))
+                    release.run();
+            });
+            audioManager.setSendingHandler(subscriber != null ? subscriber : audio.getSendHandler());
+        })));
 
         /* leave Command */
-        commands.put("leave", new CommandInfo("leave", "Tell the JDMusicBot to leave it's current voice-channel", event -> {
+        commands.register("leave", new CommandInfo("leave", "Tell the JDMusicBot to leave it's current voice-channel", event -> {
             logger.debug("At leave Command: Disconnect from VoiceChannel of Discord-Server");
+            broadcastHub.leave(event.getGuild().getIdLong());
             event.getGuild().getAudioManager().closeAudioConnection();
             event.getChannel().sendMessage(MSG_PREFIX + "Disconnected from VoiceChannel" + MSG_POSTFIX).queue();
         }));
 
+        /* stats Command */
+        commands.register("stats", new CommandInfo("stats", "Show playback, queue and command statistics of the JDMusicBot", event -> {
+            MessageChannel channel = event.getChannel();
+            MessageChunker chunker = new MessageChunker(MessagePipeline.MAX_BODY_LENGTH).begin(chunk -> channel.sendMessage(MSG_PREFIX + chunk + MSG_POSTFIX).queue());
+            long queued = 0;
+            int longest = 0;
+            List<GuildAudio> audios = audioRegistry.getAll();
+            for (GuildAudio audio : audios) {
+                int size = audio.getScheduler().getQueueSize();
+                queued += size;
+                longest = Math.max(longest, size);
+            }
+            chunker.append("Shard: ").append(event.getJDA().getShardInfo().getShardId()).append(", ready: ").append(startup.getReadyShards()).append(" of ").append(startup.getExpectedShards());
+            if (startup.getStartupDuration() > 0)
+                chunker.append(" after ").append(startup.getStartupDuration()).append(" ms");
+            chunker.endLine();
+            chunker.append("Guilds: ").append(startup.getGuilds()).append(", heap per Guild after startup: ").append(startup.getHeapPerGuild() / 1024).append(" KiB").endLine();
+            chunker.append("Guilds with Audioplayers: ").append(audios.size()).append(" (").append(audioRegistry.getPlayerCount()).append(" Audioplayers), queued Tracks: ").append(queued).append(" (longest Queue: ").append(longest).append(')').endLine();
+            long provided = Metrics.FRAMES_PROVIDED.get();
+            long missed = Metrics.FRAMES_MISSED.get();
+            chunker.append("Frames provided: ").append(provided).append(", missed: ").append(missed).endLine();
+            if (config.prefetchFrames > 0)
+                chunker.append("Prefetch underruns: ").append(PrefetchingAudioSendHandler.UNDERRUNS.get()).append(", buffered frames: ").append(audioRegistry.getPrefetchedFrames()).endLine();
+            appendLatency(chunker.append("Gaps between Tracks: "), Metrics.TRACK_GAP).append(", preloaded: ").append(Metrics.PRELOADED_TRACKS.get()).endLine();
+            chunker.append("Tracks stuck: ").append(Metrics.TRACKS_STUCK.get()).append(", exceptions: ").append(Metrics.TRACK_EXCEPTIONS.get()).endLine();
+            chunker.append("Track cache hits: ").append(trackCache.getHits()).append(", misses: ").append(trackCache.getMisses()).append(", evictions: ").append(trackCache.getEvictions()).endLine();
+            appendLatency(chunker.append("Loading: "), Metrics.LOAD_DURATION).endLine();
+            if (searchIndex != null)
+                appendLatency(chunker.append("Search index: ").append(searchIndex.size()).append(" Tracks, hits: ").append(searchIndex.getHits())
+                    .append(", misses: ").append(searchIndex.getMisses()).append(", lookups: "), searchIndex.getLatency()).endLine();
+            for (int i = 0; i < searchFanout.getSources().size(); i++)
+                appendLatency(chunker.append("Search ").append(searchFanout.getSources().get(i)).append(": won ").append(searchFanout.getWins(i)).append(", cancelled ").append(searchFanout.getCancelled(i)).append(", answered "), searchFanout.getLatency(i)).endLine();
+            chunker.append("Searches timed out: ").append(searchFanout.getTimeouts()).endLine();
+            chunker.append("Broadcasts: ").append(broadcastHub.getBroadcastCount()).append(", listening Guilds: ").append(broadcastHub.getListenerCount()).endLine();
+            chunker.append("Messages waiting: ").append(messages.getQueueDepth()).append(", latency avg/max: ")
+                .append(String.format("%.0f/%.0f ms", messages.getAverageLatency(), messages.getMaxLatency())).endLine();
+            chunker.append("Status lines posted: ").append(messages.getPostedLines()).append(", sent: ").append(messages.getSentLines()).append(" in ").append(messages.getSentMessages())
+                .append(" Messages, superseded: ").append(messages.getSupersededLines()).append(", failed Messages: ").append(messages.getFailedMessages()).endLine();
+            chunker.append("Commands pending: ").append(executor.getPending()).append(", rejected: ").append(executor.getShed()).endLine();
+            chunker.append("Commands:").endLine();
+            for (String name : commands.getNames()) {
+                Histogram latency = commands.get(name).latency;
+                if (latency.getCount() > 0)
+                    appendLatency(chunker.append("  ").append(CMD_PREFIX).append(name).append(": "), latency).endLine();
+            }
+            chunker.finish();
+        }));
+
     }
 }
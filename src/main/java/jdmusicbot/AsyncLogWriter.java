@@ -0,0 +1,269 @@
+package jdmusicbot;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer of the {@link Logger}. Logging threads publish records into a bounded lock free ring buffer
+ * (multiple producers, single consumer) of preallocated slots. A single writer thread drains the ring, formats the
+ * records with a clock that is only recomputed once per second and writes them in batches to all PrintStreams and
+ * through a direct ByteBuffer to all log file channels. An idle writer parks until a producer publishes a record.
+ */
+class AsyncLogWriter implements Runnable {
+
+	private static final int BATCH_SIZE = 256;
+
+	private final Slot[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Logger.Overflow overflow;
+	private final Thread thread;
+	private volatile boolean running = true;
+	/* set by the writer before it parks, producers only unpark it while it is set */
+	private volatile boolean waiting;
+	/* System.nanoTime() until which the stopping writer waits for records that are still being published */
+	private volatile long deadline;
+
+	/* only touched by the writer thread */
+	private long head;
+	private final StringBuilder batch = new StringBuilder(8192);
+	private final ByteBuffer bytes = ByteBuffer.allocateDirect(64 * 1024);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private final char[] clock = new char[11];
+	private long clockSecond = Long.MIN_VALUE;
+
+	/**
+	 * @param capacity the number of records the ring can hold. Rounded up to the next power of two
+	 * @param overflow what to do if a record is published while the ring is full
+	 */
+	AsyncLogWriter(int capacity, Logger.Overflow overflow) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.slots = new Slot[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.overflow = overflow;
+		this.thread = new Thread(this, "Logger-Writer");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer thread after it has written every record published so far
+	 *
+	 * @param timeout milliseconds to wait for the writer thread
+	 */
+	void shutdown(long timeout) {
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return how many records were dropped because the ring was full
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Hands a record over to the writer thread
+	 *
+	 * @return false if the record wasn't accepted and the caller has to write it itself (writer already stopped)
+	 */
+	boolean publish(long time, Logger.Loglevel level, String name, String msg, Throwable t) {
+		for (;;) {
+			if (!running)
+				return false;
+			long pos = tail.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots[index].set(time, level, name, msg, t);
+					/* a volatile write, a writer that checks the slot after setting waiting either sees it or is unparked */
+					sequences.set(index, pos + 1);
+					if (waiting)
+						LockSupport.unpark(thread);
+					return true;
+				}
+			} else if (diff < 0) {
+				// ring is full
+				if (overflow == Logger.Overflow.DROP) {
+					dropped.incrementAndGet();
+					return true;
+				}
+				LockSupport.parkNanos(10_000);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (drain() > 0)
+				continue;
+			waiting = true;
+			if (running && !isReadable())
+				LockSupport.park(this);
+			waiting = false;
+		}
+		// producers that passed the running check before shutdown may still be writing their slots
+		while (head != tail.get() && System.nanoTime() - deadline < 0) {
+			if (drain() == 0)
+				Thread.yield();
+		}
+		while (drain() > 0)
+			;
+	}
+
+	/**
+	 * @return true if the next record is published or records were dropped
+	 */
+	private boolean isReadable() {
+		return sequences.get((int) head & mask) == head + 1 || dropped.get() > 0;
+	}
+
+	/**
+	 * Writes up to one batch of records
+	 *
+	 * @return the number of written records
+	 */
+	private int drain() {
+		int count = 0;
+		while (count < BATCH_SIZE) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1)
+				break;
+			Slot slot = slots[index];
+			format(slot);
+			slot.clear();
+			sequences.lazySet(index, head + slots.length);
+			head++;
+			count++;
+		}
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			appendClock(System.currentTimeMillis());
+			batch.append("[WARN] [Logger] Dropped ").append(lost).append(" log records because the buffer was full\n");
+		}
+		if (batch.length() > 0)
+			write();
+		return count;
+	}
+
+	private void format(Slot slot) {
+		if (slot.msg != null) {
+			appendClock(slot.time);
+			batch.append('[').append(slot.level.tag).append("] [").append(slot.name).append("] ").append(slot.msg).append('\n');
+		}
+		if (slot.t != null) {
+			StringWriter sw = new StringWriter();
+			slot.t.printStackTrace(new PrintWriter(sw, true));
+			appendClock(slot.time);
+			batch.append('[').append(slot.level.tag).append("] [").append(slot.name).append("] ").append(sw);
+		}
+	}
+
+	private void appendClock(long millis) {
+		long second = millis / 1000;
+		if (second != clockSecond) {
+			clockSecond = second;
+			Logger.formatClock(millis, clock);
+		}
+		batch.append(clock);
+	}
+
+	private void write() {
+		List<PrintStream> streams = Logger.getPrintStreams();
+		List<FileChannel> files = Logger.getFileChannels();
+		if (!streams.isEmpty()) {
+			String text = batch.toString();
+			for (PrintStream stream : streams)
+				stream.print(text);
+		}
+		if (!files.isEmpty()) {
+			CharBuffer chars = CharBuffer.wrap(batch);
+			encoder.reset();
+			for (;;) {
+				CoderResult result = encoder.encode(chars, bytes, true);
+				if (result.isOverflow()) {
+					writeBytes(files);
+					continue;
+				}
+				encoder.flush(bytes);
+				writeBytes(files);
+				break;
+			}
+		}
+		batch.setLength(0);
+	}
+
+	private void writeBytes(List<FileChannel> files) {
+		bytes.flip();
+		int limit = bytes.limit();
+		for (FileChannel file : files) {
+			bytes.limit(limit);
+			bytes.position(0);
+			try {
+				while (bytes.hasRemaining())
+					file.write(bytes);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		bytes.clear();
+	}
+
+	/**
+	 * Preallocated and reused storage of a single log record
+	 */
+	private static final class Slot {
+		long time;
+		Logger.Loglevel level;
+		String name;
+		String msg;
+		Throwable t;
+
+		void set(long time, Logger.Loglevel level, String name, String msg, Throwable t) {
+			this.time = time;
+			this.level = level;
+			this.name = name;
+			this.msg = msg;
+			this.t = t;
+		}
+
+		void clear() {
+			this.level = null;
+			this.name = null;
+			this.msg = null;
+			this.t = null;
+		}
+	}
+}
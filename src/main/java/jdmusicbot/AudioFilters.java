@@ -0,0 +1,371 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sedmelluq.discord.lavaplayer.filter.AudioFilter;
+import com.sedmelluq.discord.lavaplayer.filter.FloatPcmAudioFilter;
+import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory;
+import com.sedmelluq.discord.lavaplayer.filter.UniversalPcmAudioFilter;
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Volume, equalizer and speed of a guild. As long as every setting is neutral no filter factory is set on the
+ * AudioPlayer, so lavaplayer passes Opus frames through without decoding them. Once a setting differs, the factory is
+ * set and lavaplayer decodes every frame, runs it through the chain speed, equalizer, volume and encodes it again.
+ *
+ * The chain always contains all three stages, a neutral stage passes the samples on untouched. Settings are read by the
+ * stages on every call, so changes take effect within the frame buffer of the player without rebuilding the chain.
+ * The stages work on buffers allocated when the chain is built and don't allocate while processing.
+ */
+public class AudioFilters implements PcmFilterFactory {
+
+	/* center frequencies of the equalizer bands in Hz, the equalizer is written for exactly five */
+	public static final float[] EQ_BANDS = { 60, 250, 1000, 4000, 12000 };
+	public static final float EQ_MAX_GAIN = 12;
+	public static final int MAX_VOLUME = 200;
+	public static final double MIN_SPEED = 0.5;
+	public static final double MAX_SPEED = 2.0;
+	/* bandwidth of the peaking filters, about 1.4 octaves */
+	private static final double EQ_Q = 1.0;
+
+	private final AudioPlayer player;
+	private volatile int volume = 100;
+	private volatile double speed = 1.0;
+	/* replaced as a whole, the stages recompute their coefficients when they see a new array */
+	private volatile float[] eqGains = new float[EQ_BANDS.length];
+
+	/**
+	 * @param player the player the filters are applied to
+	 */
+	public AudioFilters(AudioPlayer player) {
+		this.player = player;
+	}
+
+	/**
+	 * @param volume volume in percent from 0 to {@link #MAX_VOLUME}
+	 */
+	public void setVolume(int volume) {
+		this.volume = Math.max(0, Math.min(MAX_VOLUME, volume));
+		apply();
+	}
+
+	public int getVolume() {
+		return volume;
+	}
+
+	/**
+	 * @param speed playback speed from {@link #MIN_SPEED} to {@link #MAX_SPEED}, pitch changes with it
+	 */
+	public void setSpeed(double speed) {
+		this.speed = Double.isNaN(speed) ? 1.0 : Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+		apply();
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @param band index into {@link #EQ_BANDS}
+	 * @param gain gain in dB from -{@link #EQ_MAX_GAIN} to {@link #EQ_MAX_GAIN}
+	 */
+	public synchronized void setEqGain(int band, float gain) {
+		float[] gains = eqGains.clone();
+		gains[band] = Float.isNaN(gain) ? 0 : Math.max(-EQ_MAX_GAIN, Math.min(EQ_MAX_GAIN, gain));
+		eqGains = gains;
+		apply();
+	}
+
+	/**
+	 * @return a copy of the gains of all bands in dB
+	 */
+	public float[] getEqGains() {
+		return eqGains.clone();
+	}
+
+	/**
+	 * Sets all bands back to 0 dB
+	 */
+	public synchronized void resetEq() {
+		eqGains = new float[EQ_BANDS.length];
+		apply();
+	}
+
+	/**
+	 * @return true if any setting isn't neutral and the audio has to be decoded
+	 */
+	public boolean isActive() {
+		return volume != 100 || speed != 1.0 || !isFlat(eqGains);
+	}
+
+	private static boolean isFlat(float[] gains) {
+		for (float gain : gains) {
+			if (gain != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets or removes the filter factory of the player, depending on whether any filter is active
+	 */
+	private synchronized void apply() {
+		player.setFilterFactory(isActive() ? this : null);
+	}
+
+	@Override
+	public List<AudioFilter> buildChain(AudioTrack track, AudioDataFormat format, UniversalPcmAudioFilter output) {
+		VolumeStage volumeStage = new VolumeStage(output, format.channelCount);
+		EqualizerStage equalizer = new EqualizerStage(volumeStage, format.channelCount, format.sampleRate);
+		SpeedStage speedStage = new SpeedStage(equalizer, format.channelCount, format.chunkSampleCount);
+		List<AudioFilter> chain = new ArrayList<>(3);
+		chain.add(speedStage);
+		chain.add(equalizer);
+		chain.add(volumeStage);
+		return chain;
+	}
+
+	/**
+	 * Multiplies every sample with the volume
+	 */
+	private final class VolumeStage implements FloatPcmAudioFilter {
+		private final FloatPcmAudioFilter next;
+		private final int channels;
+
+		VolumeStage(FloatPcmAudioFilter next, int channels) {
+			this.next = next;
+			this.channels = channels;
+		}
+
+		@Override
+		public void process(float[][] input, int offset, int length) throws InterruptedException {
+			int percent = volume;
+			if (percent != 100) {
+				float gain = percent / 100f;
+				for (int c = 0; c < channels; c++) {
+					float[] samples = input[c];
+					for (int i = offset; i < offset + length; i++)
+						samples[i] *= gain;
+				}
+			}
+			next.process(input, offset, length);
+		}
+
+		@Override
+		public void seekPerformed(long requestedTime, long providedTime) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * A peaking biquad (RBJ audio EQ cookbook) per band and channel in transposed direct form II. All bands are run in
+	 * one pass over the samples with the state in local variables, so the recursions of the bands overlap instead of
+	 * running one after another. A band without gain passes the samples through unchanged
+	 */
+	private final class EqualizerStage implements FloatPcmAudioFilter {
+		private final FloatPcmAudioFilter next;
+		private final int channels;
+		private final int sampleRate;
+		/* b0, b1, b2, a1, a2 per band, normalized by a0 */
+		private final double[] coefficients = new double[EQ_BANDS.length * 5];
+		/* z1, z2 per channel and band */
+		private final double[][] history;
+		private float[] gains;
+		private boolean flat = true;
+
+		EqualizerStage(FloatPcmAudioFilter next, int channels, int sampleRate) {
+			this.next = next;
+			this.channels = channels;
+			this.sampleRate = sampleRate;
+			this.history = new double[channels][EQ_BANDS.length * 2];
+		}
+
+		private void update(float[] gains) {
+			flat = true;
+			for (int band = 0; band < EQ_BANDS.length; band++) {
+				int k = band * 5;
+				boolean was = this.gains != null && this.gains[band] != 0;
+				if (gains[band] == 0 || EQ_BANDS[band] >= sampleRate / 2) {
+					coefficients[k] = 1;
+					coefficients[k + 1] = coefficients[k + 2] = coefficients[k + 3] = coefficients[k + 4] = 0;
+					continue;
+				}
+				/* a band that was off starts from silence instead of the samples it saw back then */
+				if (!was) {
+					for (double[] state : history)
+						state[band * 2] = state[band * 2 + 1] = 0;
+				}
+				flat = false;
+				double a = Math.pow(10, gains[band] / 40.0);
+				double w0 = 2 * Math.PI * EQ_BANDS[band] / sampleRate;
+				double alpha = Math.sin(w0) / (2 * EQ_Q);
+				double cos = Math.cos(w0);
+				double a0 = 1 + alpha / a;
+				coefficients[k] = (1 + alpha * a) / a0;
+				coefficients[k + 1] = -2 * cos / a0;
+				coefficients[k + 2] = (1 - alpha * a) / a0;
+				coefficients[k + 3] = -2 * cos / a0;
+				coefficients[k + 4] = (1 - alpha / a) / a0;
+			}
+			this.gains = gains;
+		}
+
+		@Override
+		public void process(float[][] input, int offset, int length) throws InterruptedException {
+			float[] current = eqGains;
+			if (current != gains)
+				update(current);
+			if (!flat) {
+				for (int c = 0; c < channels; c++)
+					filter(input[c], offset, offset + length, history[c]);
+			}
+			next.process(input, offset, length);
+		}
+
+		/**
+		 * Runs the five bands over the samples of one channel
+		 */
+		private void filter(float[] samples, int from, int to, double[] state) {
+			double[] k = coefficients;
+			double b00 = k[0], b01 = k[1], b02 = k[2], a01 = k[3], a02 = k[4];
+			double b10 = k[5], b11 = k[6], b12 = k[7], a11 = k[8], a12 = k[9];
+			double b20 = k[10], b21 = k[11], b22 = k[12], a21 = k[13], a22 = k[14];
+			double b30 = k[15], b31 = k[16], b32 = k[17], a31 = k[18], a32 = k[19];
+			double b40 = k[20], b41 = k[21], b42 = k[22], a41 = k[23], a42 = k[24];
+			double z01 = state[0], z02 = state[1], z11 = state[2], z12 = state[3], z21 = state[4], z22 = state[5];
+			double z31 = state[6], z32 = state[7], z41 = state[8], z42 = state[9];
+			for (int i = from; i < to; i++) {
+				double x = samples[i];
+				double y = b00 * x + z01;
+				z01 = b01 * x - a01 * y + z02;
+				z02 = b02 * x - a02 * y;
+				x = y;
+				y = b10 * x + z11;
+				z11 = b11 * x - a11 * y + z12;
+				z12 = b12 * x - a12 * y;
+				x = y;
+				y = b20 * x + z21;
+				z21 = b21 * x - a21 * y + z22;
+				z22 = b22 * x - a22 * y;
+				x = y;
+				y = b30 * x + z31;
+				z31 = b31 * x - a31 * y + z32;
+				z32 = b32 * x - a32 * y;
+				x = y;
+				y = b40 * x + z41;
+				z41 = b41 * x - a41 * y + z42;
+				z42 = b42 * x - a42 * y;
+				samples[i] = (float) y;
+			}
+			state[0] = z01;
+			state[1] = z02;
+			state[2] = z11;
+			state[3] = z12;
+			state[4] = z21;
+			state[5] = z22;
+			state[6] = z31;
+			state[7] = z32;
+			state[8] = z41;
+			state[9] = z42;
+		}
+
+		@Override
+		public void seekPerformed(long requestedTime, long providedTime) {
+			for (double[] state : history)
+				Arrays.fill(state, 0);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Plays the samples faster or slower by resampling them with linear interpolation, so tempo and pitch change
+	 * together like a record played at another speed
+	 */
+	private final class SpeedStage implements FloatPcmAudioFilter {
+		private final FloatPcmAudioFilter next;
+		private final int channels;
+		private final float[][] output;
+		/* last input sample of every channel, it's interpolated with the first sample of the next call */
+		private final float[] last;
+		/* position of the next output sample relative to the current input, -1 is the last sample of the previous input */
+		private double position;
+
+		SpeedStage(FloatPcmAudioFilter next, int channels, int chunkSampleCount) {
+			this.next = next;
+			this.channels = channels;
+			this.output = new float[channels][chunkSampleCount];
+			this.last = new float[channels];
+		}
+
+		@Override
+		public void process(float[][] input, int offset, int length) throws InterruptedException {
+			double step = speed;
+			if (step == 1.0) {
+				if (length > 0) {
+					for (int c = 0; c < channels; c++)
+						last[c] = input[c][offset + length - 1];
+					position = 0;
+				}
+				next.process(input, offset, length);
+				return;
+			}
+			int size = output[0].length;
+			int count = 0;
+			double pos = position;
+			while (pos < length - 1) {
+				int index = (int) Math.floor(pos);
+				float fraction = (float) (pos - index);
+				for (int c = 0; c < channels; c++) {
+					float[] samples = input[c];
+					float from = index < 0 ? last[c] : samples[offset + index];
+					float to = samples[offset + index + 1];
+					output[c][count] = from + (to - from) * fraction;
+				}
+				pos += step;
+				if (++count == size) {
+					next.process(output, 0, count);
+					count = 0;
+				}
+			}
+			if (count > 0)
+				next.process(output, 0, count);
+			if (length > 0) {
+				for (int c = 0; c < channels; c++)
+					last[c] = input[c][offset + length - 1];
+				position = pos - length;
+			}
+		}
+
+		@Override
+		public void seekPerformed(long requestedTime, long providedTime) {
+			position = 0;
+			Arrays.fill(last, 0);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
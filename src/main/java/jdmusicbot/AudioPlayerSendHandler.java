@@ -12,6 +12,9 @@ import net.dv8tion.jda.api.audio.AudioSendHandler;
  *   This is a wrapper around AudioPlayer which makes it behave as an AudioSendHandler for JDA. As JDA calls canProvide
  *    before every call to provide20MsAudio(), we pull the frame in canProvide() and use the frame we already pulled in
  *     provide20MsAudio().
+ *   lavaplayer writes each Opus frame straight into a single direct buffer that is sized for the largest possible
+ *    DISCORD_OPUS frame, and exactly that buffer is handed to JDA. The frame bounds are taken from the frame itself
+ *     so we don't rely on where MutableAudioFrame leaves the buffer's position.
  */
 public class AudioPlayerSendHandler implements AudioSendHandler {
 	private final AudioPlayer audioPlayer;
@@ -23,21 +26,31 @@ public class AudioPlayerSendHandler implements AudioSendHandler {
 	 */
 	public AudioPlayerSendHandler(AudioPlayer audioPlayer) {
 		this.audioPlayer = audioPlayer;
-		this.buffer = ByteBuffer.allocate(1024);
+		this.buffer = ByteBuffer.allocateDirect(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
 		this.frame = new MutableAudioFrame();
 		this.frame.setBuffer(buffer);
 	}
 
 	@Override
 	public boolean canProvide() {
+		// let lavaplayer write the next frame from the start of the buffer, whatever JDA did with it before
+		buffer.clear();
+		frame.setBuffer(buffer);
 		// returns true if audio was provided
-		return audioPlayer.provide(frame);
+		if (audioPlayer.provide(frame)) {
+			Metrics.FRAMES_PROVIDED.increment();
+			return true;
+		}
+		if (audioPlayer.getPlayingTrack() != null && !audioPlayer.isPaused())
+			Metrics.FRAMES_MISSED.increment();
+		return false;
 	}
 
 	@Override
 	public ByteBuffer provide20MsAudio() {
-		// flip to make it a read buffer
-		buffer.flip();
+		// expose exactly the bytes of the frame as a read buffer
+		buffer.position(0);
+		buffer.limit(frame.getDataLength());
 		return buffer;
 	}
 
@@ -0,0 +1,293 @@
+package jdmusicbot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+
+/**
+ * Settings of the bot that can be tuned per deployment. Every setting is looked up as
+ * <ol>
+ * <li>the environment variable JDMUSICBOT_ followed by the key in upper case with dots replaced by underscores, e.g.
+ * JDMUSICBOT_PREFETCH_FRAMES for prefetch.frames</li>
+ * <li>the key in the properties file</li>
+ * <li>the key in the selected profile (see {@link #PROFILES})</li>
+ * <li>the built-in default</li>
+ * </ol>
+ * Invalid values are reported and replaced by the built-in default.
+ */
+public final class BotConfig {
+
+	/**
+	 * Named sets of defaults, selected with the key profile (or JDMUSICBOT_PROFILE). Keys set in the file or the
+	 * environment win over the profile
+	 */
+	public static final Map<String, Map<String, String>> PROFILES;
+	static {
+		Map<String, Map<String, String>> profiles = new HashMap<>();
+		/* commands, pause, volume and filters take effect within a second, loading and stuck tracks are handled quickly */
+		profiles.put("low-latency", profile(
+				"frame.buffer.ms", "1000",
+				"loader.threads", "16",
+				"track.stuck.ms", "5000",
+				"opus.quality", "10",
+				"resampling.quality", "HIGH",
+				"prefetch.frames", "0",
+				"preload.seconds", "5"));
+		/* as many guilds as possible per process: cheaper encoding, one AudioPlayer per guild, idle guilds freed early */
+		profiles.put("high-density", profile(
+				"frame.buffer.ms", "3000",
+				"loader.threads", "4",
+				"track.stuck.ms", "10000",
+				"player.cleanup.ms", "30000",
+				"opus.quality", "5",
+				"resampling.quality", "LOW",
+				"prefetch.frames", "0",
+				"preload.seconds", "0",
+				"idle.timeout.seconds", "120",
+				"max.players", "2000",
+				"lean.gateway", "true"));
+		PROFILES = Collections.unmodifiableMap(profiles);
+	}
+
+	private final Logger logger = new Logger("BotConfig-Logger");
+
+	private final Properties file;
+	private final boolean environment;
+	private final Map<String, String> profile;
+	private final String profileName;
+
+	/* ------------------------ LAVAPLAYER ------------------------ */
+
+	/* Threads resolving urls and search queries */
+	public final int loaderThreads;
+	/* Milliseconds of audio every AudioPlayer decodes ahead. Pause, volume and filters take effect after that much audio */
+	public final int frameBufferMillis;
+	/* Opus encoder complexity from 0 (cheapest) to 10 (best) */
+	public final int opusQuality;
+	public final AudioConfiguration.ResamplingQuality resamplingQuality;
+	/* Milliseconds without a frame after which a track counts as stuck and onTrackStuck skips it */
+	public final long trackStuckMillis;
+	/* Milliseconds without provide() after which lavaplayer ends a track with CLEANUP */
+	public final long playerCleanupMillis;
+	/* Source managers to register, see App#registerSources */
+	public final List<String> sources;
+
+	/* ------------------------ BOT ------------------------ */
+
+	/* Upper bound of concurrently alive AudioPlayers (one or two per guild) */
+	public final int maxPlayers;
+	/* Frames (20ms each) buffered ahead of JDA's send thread per guild, 0 disables the jitter buffer */
+	public final int prefetchFrames;
+	/* Seconds before the end of a track the next one starts loading, so songs follow each other without a gap. 0 disables it */
+	public final int preloadSeconds;
+	/* Seconds a guild may play nothing or sit in an empty voice channel before its connection and AudioPlayer are freed, 0 keeps them forever */
+	public final int idleTimeoutSeconds;
+	/* Upper bound of tracks kept in the resolved-track cache */
+	public final int trackCacheSize;
+	/* Upper bound of tracks in the local #search index */
+	public final int searchIndexSize;
+	/* Search prefixes #search asks at the same time, the first one that finds something wins */
+	public final List<String> searchSources;
+	/* Milliseconds after which a #search that no source answered fails */
+	public final int searchDeadlineMillis;
+	/* Platform threads running commands, 0 runs them on virtual threads when the JDK has them */
+	public final int commandThreads;
+	/* Port of the Prometheus endpoint at /metrics, 0 disables it */
+	public final int metricsPort;
+	/* Total number of shards, 0 starts a single unsharded connection and -1 uses the number Discord recommends */
+	public final int shards;
+	/* First and last shard id this process starts, -1 starts all shards */
+	public final int shardMin;
+	public final int shardMax;
+	/* Shards that may identify at the same time, the max_concurrency Discord reports for the bot */
+	public final int identifyConcurrency;
+	/* Only subscribe to guild messages and voice states and only cache members in voice channels */
+	public final boolean leanGateway;
+
+	private BotConfig(Properties file, boolean environment) {
+		this.file = file;
+		this.environment = environment;
+		String name = lookup("profile", null);
+		Map<String, String> selected = name == null ? null : PROFILES.get(name.toLowerCase(Locale.ROOT));
+		if (name != null && selected == null)
+			logger.warn("Unknown profile {}, known profiles: {}", name, PROFILES.keySet());
+		this.profile = selected != null ? selected : Collections.<String, String>emptyMap();
+		this.profileName = selected != null ? name.toLowerCase(Locale.ROOT) : "default";
+
+		this.loaderThreads = getInt("loader.threads", 10, 1, 256);
+		this.frameBufferMillis = getInt("frame.buffer.ms", 5000, 200, 60000);
+		this.opusQuality = getInt("opus.quality", AudioConfiguration.OPUS_QUALITY_MAX, 0, AudioConfiguration.OPUS_QUALITY_MAX);
+		this.resamplingQuality = getEnum("resampling.quality", AudioConfiguration.ResamplingQuality.LOW, AudioConfiguration.ResamplingQuality.class);
+		this.trackStuckMillis = getInt("track.stuck.ms", 10000, 1000, Integer.MAX_VALUE);
+		this.playerCleanupMillis = getInt("player.cleanup.ms", 60000, 1000, Integer.MAX_VALUE);
+		this.sources = getList("sources", "youtube,soundcloud");
+
+		this.maxPlayers = getInt("max.players", 500, 1, Integer.MAX_VALUE);
+		/* the jitter buffer needs at least 2 frames, one for JDA and one being filled */
+		this.prefetchFrames = getIntOrZero("prefetch.frames", 0, 2, 1000);
+		this.preloadSeconds = getInt("preload.seconds", 5, 0, 60);
+		this.idleTimeoutSeconds = getInt("idle.timeout.seconds", 300, 0, Integer.MAX_VALUE);
+		this.trackCacheSize = getInt("track.cache.size", 10000, 0, Integer.MAX_VALUE);
+		this.searchIndexSize = getInt("search.index.size", 50000, 0, Integer.MAX_VALUE);
+		this.searchSources = getList("search.sources", "ytsearch,scsearch");
+		this.searchDeadlineMillis = getInt("search.deadline.ms", 5000, 100, 600000);
+		this.commandThreads = getInt("command.threads", 0, 0, 1024);
+		this.metricsPort = getInt("metrics.port", 0, 0, 65535);
+		this.shards = getInt("shards", 0, -1, Integer.MAX_VALUE);
+		this.shardMin = getInt("shard.min", -1, -1, Integer.MAX_VALUE);
+		this.shardMax = getInt("shard.max", -1, -1, Integer.MAX_VALUE);
+		this.identifyConcurrency = getInt("identify.concurrency", 1, 1, 1024);
+		this.leanGateway = getBoolean("lean.gateway", true);
+	}
+
+	/**
+	 * @return the built-in defaults, ignoring the environment
+	 */
+	public static BotConfig defaults() {
+		return new BotConfig(null, false);
+	}
+
+	/**
+	 * Loads the settings from the given properties file (if it exists) and the environment
+	 *
+	 * @param file the properties file, may be null or missing
+	 */
+	public static BotConfig load(File file) {
+		Properties properties = new Properties();
+		if (file != null && file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				properties.load(in);
+			} catch (IOException e) {
+				new Logger("BotConfig-Logger").error("Failed to read config file " + file, e);
+			}
+		}
+		return new BotConfig(properties, true);
+	}
+
+	/**
+	 * @return the name of the selected profile or default
+	 */
+	public String getProfile() {
+		return profileName;
+	}
+
+	/**
+	 * @return the environment variable the given key is read from
+	 */
+	public static String envName(String key) {
+		return "JDMUSICBOT_" + key.toUpperCase(Locale.ROOT).replace('.', '_');
+	}
+
+	private String lookup(String key, String defaultValue) {
+		String value = environment ? System.getenv(envName(key)) : null;
+		if (value == null && file != null)
+			value = file.getProperty(key);
+		/* null while the profile itself is looked up */
+		if (value == null && profile != null)
+			value = profile.get(key);
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	private int getInt(String key, int defaultValue, int min, int max) {
+		String value = lookup(key, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			int parsed = Integer.parseInt(value);
+			if (parsed >= min && parsed <= max)
+				return parsed;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		logger.warn("Invalid value for {}: {}. Expected a number from {} to {}, using {}", key, value, min, max, defaultValue);
+		return defaultValue;
+	}
+
+	/**
+	 * Like {@link #getInt} for settings where 0 disables something and any other value has to be from min to max
+	 */
+	private int getIntOrZero(String key, int defaultValue, int min, int max) {
+		String value = lookup(key, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			int parsed = Integer.parseInt(value);
+			if (parsed == 0 || (parsed >= min && parsed <= max))
+				return parsed;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		logger.warn("Invalid value for {}: {}. Expected 0 or a number from {} to {}, using {}", key, value, min, max, defaultValue);
+		return defaultValue;
+	}
+
+	private boolean getBoolean(String key, boolean defaultValue) {
+		String value = lookup(key, null);
+		if (value == null)
+			return defaultValue;
+		switch (value.toLowerCase(Locale.ROOT)) {
+		case "1":
+		case "true":
+		case "yes":
+			return true;
+		case "0":
+		case "false":
+		case "no":
+			return false;
+		default:
+			logger.warn("Invalid value for {}: {}. Expected true or false, using {}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private <E extends Enum<E>> E getEnum(String key, E defaultValue, Class<E> type) {
+		String value = lookup(key, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			logger.warn("Invalid value for {}: {}. Expected one of {}, using {}", key, value, Arrays.toString(type.getEnumConstants()), defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private List<String> getList(String key, String defaultValue) {
+		List<String> values = new ArrayList<>();
+		for (String value : lookup(key, defaultValue).split(",")) {
+			if (!value.trim().isEmpty())
+				values.add(value.trim().toLowerCase(Locale.ROOT));
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	private static Map<String, String> profile(String... entries) {
+		Map<String, String> profile = new HashMap<>();
+		for (int i = 0; i < entries.length; i += 2)
+			profile.put(entries[i], entries[i + 1]);
+		return Collections.unmodifiableMap(profile);
+	}
+
+	@Override
+	public String toString() {
+		return "profile=" + profileName + ", loader.threads=" + loaderThreads + ", frame.buffer.ms=" + frameBufferMillis
+				+ ", opus.quality=" + opusQuality + ", resampling.quality=" + resamplingQuality + ", track.stuck.ms="
+				+ trackStuckMillis + ", player.cleanup.ms=" + playerCleanupMillis + ", sources=" + sources
+				+ ", max.players=" + maxPlayers + ", prefetch.frames=" + prefetchFrames + ", preload.seconds=" + preloadSeconds + ", idle.timeout.seconds="
+				+ idleTimeoutSeconds + ", track.cache.size=" + trackCacheSize + ", search.index.size=" + searchIndexSize + ", search.sources=" + searchSources
+				+ ", search.deadline.ms=" + searchDeadlineMillis + ", command.threads=" + commandThreads
+				+ ", metrics.port=" + metricsPort + ", shards=" + shards + ", shard.min=" + shardMin + ", shard.max="
+				+ shardMax + ", identify.concurrency=" + identifyConcurrency + ", lean.gateway=" + leanGateway;
+	}
+}
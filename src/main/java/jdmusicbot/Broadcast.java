@@ -0,0 +1,208 @@
+package jdmusicbot;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+/**
+ * One AudioPlayer whose Opus frames are sent to many guilds. A producer task pulls one frame every 20ms into a fixed
+ * ring of preallocated direct ByteBuffers, so the track is decoded and encoded once no matter how many guilds listen.
+ * Every guild gets a {@link Subscriber} with its own read position in the ring, which hands out read-only views of the
+ * slots instead of copies. A subscriber that falls behind skips ahead and drops frames, the producer never waits for a
+ * subscriber.
+ */
+public class Broadcast {
+
+	/* 20ms frames kept in the ring, about 1.3 seconds of audio */
+	public static final int RING_FRAMES = 64;
+	/* a subscriber more than this many frames behind skips to the newest frames */
+	public static final int MAX_LAG = RING_FRAMES / 2;
+	/* frames a new or resynced subscriber starts behind the producer, absorbs the jitter between both clocks */
+	public static final int START_LAG = 3;
+
+	private static final long FRAME_MS = 20;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+	private static final ScheduledExecutorService PRODUCER = Executors.newScheduledThreadPool(
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+				Thread thread = new Thread(r, "Broadcast-Producer-" + THREAD_COUNT.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private static final Counter DROPPED_FRAMES = Metrics.counter("jdmusicbot_broadcast_dropped_frames_total", "Frames broadcast subscribers skipped because they fell behind");
+
+	private final Logger logger = new Logger("Broadcast-Logger");
+
+	private final String identifier;
+	private final AudioPlayer player;
+	private final MutableAudioFrame frame = new MutableAudioFrame();
+	private final ByteBuffer[] slots = new ByteBuffer[RING_FRAMES];
+	private final int[] lengths = new int[RING_FRAMES];
+	private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+	private final ScheduledFuture<?> task;
+
+	/* written by the producer only, publishing it makes the slot and length of the frame before it visible */
+	private volatile long head;
+	private volatile String title;
+
+	/**
+	 * @param identifier what the broadcast plays, e.g. the url it was started with
+	 * @param player the player the frames are taken from, owned by the broadcast from now on
+	 */
+	public Broadcast(String identifier, AudioPlayer player) {
+		this.identifier = identifier;
+		this.title = identifier;
+		this.player = player;
+		int frameSize = StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize();
+		for (int i = 0; i < RING_FRAMES; i++)
+			slots[i] = ByteBuffer.allocateDirect(frameSize);
+		this.task = PRODUCER.scheduleAtFixedRate(this::produce, 0, FRAME_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes the next frame of the player into the ring. Runs every 20ms, a late run is caught up right away
+	 */
+	private void produce() {
+		try {
+			long h = head;
+			int index = (int) (h % RING_FRAMES);
+			ByteBuffer slot = slots[index];
+			slot.clear();
+			frame.setBuffer(slot);
+			if (!player.provide(frame))
+				return;
+			lengths[index] = frame.getDataLength();
+			head = h + 1;
+		} catch (RuntimeException e) {
+			/* letting it escape would end the producer task, every listening guild would go silent */
+			logger.error("Failed to produce a frame of the broadcast of " + identifier, e);
+		}
+	}
+
+	/**
+	 * @return a new send handler that starts with the current frames of the broadcast
+	 */
+	public Subscriber subscribe() {
+		Subscriber subscriber = new Subscriber();
+		subscribers.add(subscriber);
+		return subscriber;
+	}
+
+	/**
+	 * @return true if it was the last subscriber
+	 */
+	public boolean unsubscribe(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+		return subscribers.isEmpty();
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * @return the title of the track that is broadcast or the identifier while it is loaded
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	void setTitle(String title) {
+		this.title = title;
+	}
+
+	public AudioPlayer getPlayer() {
+		return player;
+	}
+
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * @return how many frames were produced
+	 */
+	public long getProducedFrames() {
+		return head;
+	}
+
+	/**
+	 * Stops producing and destroys the player. Subscribers don't provide anything afterwards
+	 */
+	public void close() {
+		task.cancel(false);
+		subscribers.clear();
+		player.destroy();
+	}
+
+	/**
+	 * The AudioSendHandler of one guild listening to the broadcast. Only used by the guild's JDA send thread
+	 */
+	public final class Subscriber implements AudioSendHandler {
+		/* read-only views of the slots, the position and limit of a view belong to this subscriber */
+		private final ByteBuffer[] views = new ByteBuffer[RING_FRAMES];
+		private long cursor;
+		private volatile long dropped;
+
+		Subscriber() {
+			for (int i = 0; i < RING_FRAMES; i++)
+				views[i] = slots[i].asReadOnlyBuffer();
+			cursor = Math.max(0, head - START_LAG);
+		}
+
+		@Override
+		public boolean canProvide() {
+			long h = head;
+			long lag = h - cursor;
+			if (lag > MAX_LAG) {
+				long skipped = lag - START_LAG;
+				cursor += skipped;
+				dropped += skipped;
+				DROPPED_FRAMES.add(skipped);
+			}
+			return cursor < h;
+		}
+
+		@Override
+		public ByteBuffer provide20MsAudio() {
+			long c = cursor;
+			if (c >= head)
+				return null;
+			int index = (int) (c % RING_FRAMES);
+			ByteBuffer view = views[index];
+			view.clear();
+			view.limit(lengths[index]);
+			cursor = c + 1;
+			Metrics.FRAMES_PROVIDED.increment();
+			return view;
+		}
+
+		@Override
+		public boolean isOpus() {
+			return true;
+		}
+
+		/**
+		 * @return how many frames this subscriber skipped because it fell behind
+		 */
+		public long getDroppedFrames() {
+			return dropped;
+		}
+
+		public Broadcast getBroadcast() {
+			return Broadcast.this;
+		}
+	}
+}
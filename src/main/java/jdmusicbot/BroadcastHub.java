@@ -0,0 +1,214 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+
+/**
+ * Keeps the running {@link Broadcast}s and which guild listens to which. Guilds that join the same identifier share
+ * one broadcast, so its track is only loaded, decoded and encoded once. A broadcast is started by the first guild that
+ * joins it and closed when the last one leaves, its track can't be loaded or its track ends. A broadcast that ends on
+ * its own hands every listening guild back to its own send handler.
+ */
+public class BroadcastHub {
+
+	private final Logger logger = new Logger("BroadcastHub-Logger");
+
+	private final AudioPlayerManager playerManager;
+	private final TrackCache trackCache;
+	/* both guarded by the lock of the hub */
+	private final Map<String, Broadcast> broadcasts = new HashMap<>();
+	private final Map<Long, Listener> listeners = new HashMap<>();
+
+	/**
+	 * @param playerManager creates the player of every broadcast
+	 * @param trackCache loads the tracks of the broadcasts
+	 */
+	public BroadcastHub(AudioPlayerManager playerManager, TrackCache trackCache) {
+		this.playerManager = playerManager;
+		this.trackCache = trackCache;
+		Metrics.gauge("jdmusicbot_broadcasts", "Running broadcasts", this::getBroadcastCount);
+		Metrics.gauge("jdmusicbot_broadcast_listeners", "Guilds listening to a broadcast", this::getListenerCount);
+	}
+
+	/**
+	 * Lets a guild listen to the broadcast of the given identifier, which is started if nobody listens to it yet. A
+	 * guild listening to another broadcast leaves that one first
+	 *
+	 * @param guildId the guild that joins
+	 * @param identifier url or search query of the track to broadcast
+	 * @param feedback receives status messages about the broadcast
+	 * @param release called with the send handler of the guild if the broadcast ends without the guild leaving it, has
+	 *            to give the guild its own send handler back
+	 * @return the send handler the guild's AudioManager has to use, null if the broadcast could not be started
+	 */
+	public synchronized Broadcast.Subscriber join(long guildId, String identifier, Consumer<String> feedback, Consumer<Broadcast.Subscriber> release) {
+		String key = TrackCache.normalize(identifier);
+		Listener current = listeners.get(guildId);
+		if (current != null && current.subscriber.getBroadcast().getIdentifier().equals(key))
+			return current.subscriber;
+		leave(guildId);
+		Broadcast broadcast = broadcasts.get(key);
+		boolean started = broadcast == null;
+		if (started) {
+			AudioPlayer player = playerManager.createPlayer();
+			broadcast = new Broadcast(key, player);
+			player.addListener(new EndHandler(broadcast));
+			broadcasts.put(key, broadcast);
+			logger.info("Starting broadcast of {}", key);
+		} else {
+			feedback.accept("Joined the broadcast of " + broadcast.getTitle() + " with " + broadcast.getSubscriberCount() + " other Guilds");
+		}
+		Listener listener = new Listener(broadcast.subscribe(), feedback, release);
+		listeners.put(guildId, listener);
+		if (started)
+			trackCache.loadItem(identifier, new StartHandler(broadcast, feedback));
+		/* a cached item that can't be broadcast fails right away */
+		return listeners.get(guildId) == listener ? listener.subscriber : null;
+	}
+
+	/**
+	 * Stops sending the broadcast to the guild, the broadcast is closed if it was the last listener
+	 *
+	 * @return true if the guild listened to a broadcast
+	 */
+	public synchronized boolean leave(long guildId) {
+		Listener listener = listeners.remove(guildId);
+		if (listener == null)
+			return false;
+		Broadcast broadcast = listener.subscriber.getBroadcast();
+		if (broadcast.unsubscribe(listener.subscriber))
+			close(broadcast);
+		return true;
+	}
+
+	/**
+	 * @return the send handler of the broadcast the guild listens to or null
+	 */
+	public synchronized Broadcast.Subscriber getSubscriber(long guildId) {
+		Listener listener = listeners.get(guildId);
+		return listener == null ? null : listener.subscriber;
+	}
+
+	public synchronized List<Broadcast> getBroadcasts() {
+		return new ArrayList<>(broadcasts.values());
+	}
+
+	public synchronized int getBroadcastCount() {
+		return broadcasts.size();
+	}
+
+	public synchronized int getListenerCount() {
+		return listeners.size();
+	}
+
+	private void close(Broadcast broadcast) {
+		if (broadcasts.remove(broadcast.getIdentifier(), broadcast)) {
+			broadcast.close();
+			logger.info("Closed broadcast of {} after {} frames", broadcast.getIdentifier(), broadcast.getProducedFrames());
+		}
+	}
+
+	/**
+	 * Ends a broadcast whose track couldn't be loaded or is over and gives its listeners their own send handlers back
+	 *
+	 * @param message sent to every listener, null to not notify them
+	 */
+	private synchronized void ended(Broadcast broadcast, String message) {
+		if (broadcasts.get(broadcast.getIdentifier()) != broadcast)
+			return;
+		List<Listener> released = new ArrayList<>();
+		listeners.values().removeIf(listener -> listener.subscriber.getBroadcast() == broadcast && released.add(listener));
+		close(broadcast);
+		for (Listener listener : released) {
+			listener.release.accept(listener.subscriber);
+			if (message != null)
+				listener.feedback.accept(message);
+		}
+	}
+
+	private static final class Listener {
+		final Broadcast.Subscriber subscriber;
+		final Consumer<String> feedback;
+		final Consumer<Broadcast.Subscriber> release;
+
+		Listener(Broadcast.Subscriber subscriber, Consumer<String> feedback, Consumer<Broadcast.Subscriber> release) {
+			this.subscriber = subscriber;
+			this.feedback = feedback;
+			this.release = release;
+		}
+	}
+
+	/**
+	 * Ends the broadcast once its track is over, a dead stream would otherwise keep it registered without audio
+	 */
+	private class EndHandler extends AudioEventAdapter {
+		private final Broadcast broadcast;
+
+		EndHandler(Broadcast broadcast) {
+			this.broadcast = broadcast;
+		}
+
+		@Override
+		public void onTrackException(AudioPlayer player, AudioTrack track, FriendlyException exception) {
+			/* the end event follows and ends the broadcast */
+			logger.warn("Broadcast of {} failed: {}", broadcast.getIdentifier(), exception.getMessage());
+		}
+
+		@Override
+		public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+			/* STOPPED and CLEANUP come from closing the broadcast */
+			if (endReason == AudioTrackEndReason.FINISHED || endReason == AudioTrackEndReason.LOAD_FAILED)
+				ended(broadcast, "The broadcast of " + broadcast.getTitle() + " ended, back to the own Queue");
+		}
+	}
+
+	private class StartHandler implements AudioLoadResultHandler {
+		private final Broadcast broadcast;
+		private final Consumer<String> feedback;
+
+		StartHandler(Broadcast broadcast, Consumer<String> feedback) {
+			this.broadcast = broadcast;
+			this.feedback = feedback;
+		}
+
+		@Override
+		public void trackLoaded(AudioTrack track) {
+			broadcast.setTitle(track.getInfo().title);
+			if (broadcast.getPlayer().startTrack(track, true))
+				feedback.accept("Broadcasting: " + track.getInfo().title);
+		}
+
+		@Override
+		public void playlistLoaded(AudioPlaylist playlist) {
+			AudioTrack track = playlist.getSelectedTrack() != null ? playlist.getSelectedTrack() : playlist.getTracks().isEmpty() ? null : playlist.getTracks().get(0);
+			if (track == null)
+				noMatches();
+			else
+				trackLoaded(track);
+		}
+
+		@Override
+		public void noMatches() {
+			feedback.accept("Nothing found to broadcast for " + broadcast.getIdentifier());
+			ended(broadcast, null);
+		}
+
+		@Override
+		public void loadFailed(FriendlyException exception) {
+			feedback.accept("Could not broadcast " + broadcast.getIdentifier() + ": " + exception.getMessage());
+			ended(broadcast, null);
+		}
+	}
+}
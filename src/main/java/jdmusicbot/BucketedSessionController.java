@@ -0,0 +1,102 @@
+package jdmusicbot;
+
+import java.util.ArrayDeque;
+
+import net.dv8tion.jda.api.utils.SessionControllerAdapter;
+
+/**
+ * SessionController that logs shards in concurrently. Discord allows max_concurrency identifies per 5 seconds, one in
+ * each bucket shard_id % max_concurrency. JDA's default controller identifies all shards one after another on a single
+ * thread, so startup takes 5 seconds per shard no matter how large max_concurrency is. This controller gives every bucket
+ * its own queue and worker, the buckets only wait for themselves.
+ */
+public class BucketedSessionController extends SessionControllerAdapter {
+
+	private final Logger logger = new Logger("SessionController-Logger");
+
+	private final Bucket[] buckets;
+
+	/**
+	 * @param concurrency max_concurrency of the bot as reported by /gateway/bot. 1 identifies one shard after another
+	 */
+	public BucketedSessionController(int concurrency) {
+		this.buckets = new Bucket[Math.max(1, concurrency)];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new Bucket(i);
+	}
+
+	@Override
+	public void appendSession(SessionConnectNode node) {
+		bucket(node).append(node);
+	}
+
+	@Override
+	public void removeSession(SessionConnectNode node) {
+		bucket(node).remove(node);
+	}
+
+	private Bucket bucket(SessionConnectNode node) {
+		return buckets[node.getShardInfo().getShardId() % buckets.length];
+	}
+
+	private final class Bucket implements Runnable {
+		final int id;
+		final ArrayDeque<SessionConnectNode> nodes = new ArrayDeque<>();
+		/* running worker of this bucket, null if the bucket ran dry */
+		Thread worker;
+		/* only touched by the worker */
+		long lastIdentify;
+
+		Bucket(int id) {
+			this.id = id;
+		}
+
+		synchronized void append(SessionConnectNode node) {
+			nodes.remove(node);
+			nodes.add(node);
+			if (worker == null) {
+				worker = new Thread(this, "SessionController-Bucket-" + id);
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+
+		synchronized void remove(SessionConnectNode node) {
+			nodes.remove(node);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long wait = lastIdentify + IDENTIFY_DELAY * 1000L - System.currentTimeMillis();
+					if (wait > 0)
+						Thread.sleep(wait);
+					SessionConnectNode node;
+					boolean last;
+					synchronized (this) {
+						node = nodes.poll();
+						if (node == null) {
+							worker = null;
+							return;
+						}
+						last = nodes.isEmpty();
+					}
+					try {
+						logger.debug("Identifying shard {} in bucket {}", node.getShardInfo().getShardString(), id);
+						node.run(last);
+					} catch (RuntimeException e) {
+						logger.error("Failed to identify shard " + node.getShardInfo().getShardString() + ", trying again", e);
+						append(node);
+					}
+					lastIdentify = System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					worker = null;
+				}
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the {@link CommandInfo} of a chat message. Messages that don't start with the command prefix are rejected
+ * by a single char comparison. For all others the command token (everything between the prefix and the first
+ * whitespace) is looked up in an open addressing hash table directly on the characters of the message, so resolving
+ * a command doesn't allocate at all.
+ */
+public class CommandDispatcher {
+
+	private final char prefix;
+	private final Map<String, CommandInfo> infos = new LinkedHashMap<>();
+	private volatile Entry[] table = new Entry[16];
+
+	/**
+	 * @param prefix the char every command has to start with
+	 */
+	public CommandDispatcher(char prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Registers a command and assigns its latency histogram. A command registered twice under the same name replaces the
+	 * previous one
+	 *
+	 * @param name the name of the command without the prefix
+	 * @param info the command to execute
+	 */
+	public synchronized void register(String name, CommandInfo info) {
+		if (name.isEmpty())
+			throw new IllegalArgumentException("Command name must not be empty");
+		info.latency = Metrics.latency("jdmusicbot_command_duration_seconds", "Time spent executing a command", "command", name);
+		infos.put(name, info);
+		// keep the load factor below 0.5 so probe sequences stay short
+		int capacity = table.length;
+		while (infos.size() * 2 > capacity)
+			capacity *= 2;
+		Entry[] newTable = new Entry[capacity];
+		for (Map.Entry<String, CommandInfo> entry : infos.entrySet())
+			insert(newTable, new Entry(entry.getKey(), entry.getValue()));
+		// publish the new table only once it's completely filled
+		this.table = newTable;
+	}
+
+	/**
+	 * @return all registered commands in registration order
+	 */
+	public synchronized Collection<CommandInfo> getCommands() {
+		return Collections.unmodifiableList(new ArrayList<>(infos.values()));
+	}
+
+	/**
+	 * @return the names of all registered commands in registration order
+	 */
+	public synchronized Collection<String> getNames() {
+		return Collections.unmodifiableList(new ArrayList<>(infos.keySet()));
+	}
+
+	/**
+	 * @param name the name of the command without the prefix
+	 * @return the command registered under the name or null
+	 */
+	public synchronized CommandInfo get(String name) {
+		return infos.get(name);
+	}
+
+	/**
+	 * Finds the command for the given message
+	 *
+	 * @param content the raw content of a message
+	 * @return the command matching the first token of content or null if content isn't a known command
+	 */
+	public CommandInfo resolve(String content) {
+		if (content.isEmpty() || content.charAt(0) != prefix)
+			return null;
+		int end = 1;
+		int hash = 0;
+		int length = content.length();
+		while (end < length) {
+			char c = content.charAt(end);
+			if (Character.isWhitespace(c))
+				break;
+			hash = 31 * hash + c;
+			end++;
+		}
+		int tokenLength = end - 1;
+		if (tokenLength == 0)
+			return null;
+
+		Entry[] table = this.table;
+		int mask = table.length - 1;
+		for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+			Entry entry = table[i];
+			if (entry == null)
+				return null;
+			if (entry.name.length() == tokenLength && content.regionMatches(1, entry.name, 0, tokenLength))
+				return entry.info;
+		}
+	}
+
+	private static void insert(Entry[] table, Entry entry) {
+		int mask = table.length - 1;
+		int i = spread(entry.name.hashCode()) & mask;
+		while (table[i] != null)
+			i = (i + 1) & mask;
+		table[i] = entry;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static final class Entry {
+		final String name;
+		final CommandInfo info;
+
+		Entry(String name, CommandInfo info) {
+			this.name = name;
+			this.info = info;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package jdmusicbot;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs commands off JDA's event thread. Every guild has its own lane: the commands of a guild run one after another in
+ * the order they were submitted, while the lanes of different guilds run in parallel on a shared pool. A lane only
+ * occupies a thread while it has work, a busy lane gives its thread back after a few commands so one guild can't
+ * starve the others.
+ *
+ * Both the depth of a single lane and the number of pending commands over all lanes are bounded. Commands beyond that
+ * are shed right away instead of piling up. On JDKs with virtual threads the pool can run every lane on a virtual
+ * thread, which is looked up via reflection so the bot still runs on Java 8.
+ */
+public class CommandExecutor {
+
+	/* commands a lane runs before it gives its thread back to other lanes */
+	private static final int BATCH_SIZE = 8;
+
+	private final Logger logger = new Logger("CommandExecutor-Logger");
+
+	private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+	private final ExecutorService pool;
+	private final boolean virtual;
+	private final int maxLaneDepth;
+	private final int maxPending;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final Counter shed = Metrics.counter("jdmusicbot_commands_shed_total", "Commands rejected because too many were pending");
+	private final Histogram wait = Metrics.latency("jdmusicbot_command_wait_seconds", "Time a command waited for its guild's lane");
+
+	/**
+	 * @param threads size of the shared pool of platform threads, 0 to use virtual threads if the JDK supports them (and
+	 *            one thread per core otherwise)
+	 * @param maxLaneDepth how many commands of a single guild may be pending
+	 * @param maxPending how many commands may be pending over all guilds
+	 */
+	public CommandExecutor(int threads, int maxLaneDepth, int maxPending) {
+		this.maxLaneDepth = maxLaneDepth;
+		this.maxPending = maxPending;
+		ExecutorService virtualPool = threads <= 0 ? newVirtualThreadPool() : null;
+		this.virtual = virtualPool != null;
+		if (virtualPool != null) {
+			this.pool = virtualPool;
+		} else {
+			AtomicInteger count = new AtomicInteger();
+			this.pool = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), r -> {
+				Thread thread = new Thread(r, "Command-Worker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		Metrics.gauge("jdmusicbot_commands_pending", "Commands waiting or running in the lanes of all guilds", pending::get);
+		logger.info("Running commands on {}", virtual ? "virtual threads" : "a pool of platform threads");
+	}
+
+	/**
+	 * @return Executors.newVirtualThreadPerTaskExecutor() if the running JDK has it, null otherwise
+	 */
+	private static ExecutorService newVirtualThreadPool() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the lanes run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Queues a command in the lane of its guild
+	 *
+	 * @param guildId the guild whose lane runs the command
+	 * @param command the command
+	 * @return false if the command was shed because the lane or the executor is full
+	 */
+	public boolean submit(long guildId, Runnable command) {
+		if (pending.incrementAndGet() > maxPending) {
+			pending.decrementAndGet();
+			shed.increment();
+			return false;
+		}
+		Task task = new Task(command, System.nanoTime());
+		while (true) {
+			Lane lane = lanes.computeIfAbsent(guildId, Lane::new);
+			synchronized (lane) {
+				/* the lane ran dry and was removed in the meantime */
+				if (lane.closed)
+					continue;
+				if (lane.tasks.size() >= maxLaneDepth) {
+					pending.decrementAndGet();
+					shed.increment();
+					return false;
+				}
+				lane.tasks.add(task);
+				if (!lane.running) {
+					lane.running = true;
+					schedule(lane);
+				}
+				return true;
+			}
+		}
+	}
+
+	private void schedule(Lane lane) {
+		try {
+			pool.execute(() -> drain(lane));
+		} catch (RejectedExecutionException e) {
+			/* only happens after shutdown, the pending commands are dropped */
+			synchronized (lane) {
+				pending.addAndGet(-lane.tasks.size());
+				lane.tasks.clear();
+				close(lane);
+			}
+		}
+	}
+
+	/**
+	 * Runs up to BATCH_SIZE commands of the lane, then either hands the lane back to the pool or closes it if it ran dry
+	 */
+	private void drain(Lane lane) {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			Task task;
+			synchronized (lane) {
+				task = lane.tasks.poll();
+				if (task == null) {
+					close(lane);
+					return;
+				}
+			}
+			wait.record(System.nanoTime() - task.submitted);
+			try {
+				task.command.run();
+			} catch (RuntimeException e) {
+				logger.error("Command of Guild " + lane.guildId + " failed", e);
+			} finally {
+				pending.decrementAndGet();
+			}
+		}
+		synchronized (lane) {
+			if (lane.tasks.isEmpty())
+				close(lane);
+			else
+				schedule(lane);
+		}
+	}
+
+	private void close(Lane lane) {
+		lane.running = false;
+		lane.closed = true;
+		lanes.remove(lane.guildId, lane);
+	}
+
+	/**
+	 * @return how many commands are waiting or running over all guilds
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * @return how many commands were rejected so far
+	 */
+	public long getShed() {
+		return shed.get();
+	}
+
+	/**
+	 * Stops accepting new lanes and waits for the running commands
+	 */
+	public void shutdown(long timeout) {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Task {
+		final Runnable command;
+		final long submitted;
+
+		Task(Runnable command, long submitted) {
+			this.command = command;
+			this.submitted = submitted;
+		}
+	}
+
+	private static final class Lane {
+		final long guildId;
+		final ArrayDeque<Task> tasks = new ArrayDeque<>();
+		/* a drain of this lane is scheduled or running */
+		boolean running;
+		/* removed from the lanes, new commands have to go to a new one */
+		boolean closed;
+
+		Lane(long guildId) {
+			this.guildId = guildId;
+		}
+	}
+}
@@ -5,6 +5,8 @@ public class CommandInfo {
 	public Command cmd;
 	public String description;
 	public String usage;
+	/* time spent in cmd, set when the command gets registered */
+	public Histogram latency;
 
 	public CommandInfo(String usage, String description, Command cmd) {
 		this.usage = usage;
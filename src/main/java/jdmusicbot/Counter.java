@@ -0,0 +1,39 @@
+package jdmusicbot;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonically increasing count. Backed by a striped LongAdder, so concurrent increments from the audio and event
+ * threads never contend on a single memory location.
+ */
+public class Counter extends Metric {
+
+	private final LongAdder value = new LongAdder();
+
+	Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void increment() {
+		value.increment();
+	}
+
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	@Override
+	protected String type() {
+		return "counter";
+	}
+
+	@Override
+	protected void write(StringBuilder out) {
+		appendSeries(out, "", null);
+		appendValue(out, value.sum());
+	}
+}
@@ -0,0 +1,311 @@
+package jdmusicbot;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventListener;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackEndEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackStartEvent;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+/**
+ * AudioPlayer made of two lavaplayer AudioPlayers, an active one that is played and a standby one. A few seconds
+ * before the active track ends, the track that comes next is started on the standby player, so it resolves its stream
+ * and decodes its first frames into the standby player's frame buffer while the current track is still playing. When
+ * the scheduler then starts exactly that track, the players switch roles within the provide() call that reported the
+ * end of the old track, so the next frame already comes from the new one.
+ *
+ * Listeners only see the events of the active player. The TrackStartEvent of a preloaded track is held back until the
+ * track is actually started.
+ */
+public class GaplessAudioPlayer implements AudioPlayer {
+
+	private final Logger logger = new Logger("GaplessAudioPlayer-Logger");
+
+	private final List<AudioEventListener> listeners = new CopyOnWriteArrayList<>();
+	private final long preloadWindow;
+	private volatile Supplier<AudioTrack> nextTrack = () -> null;
+
+	private volatile AudioPlayer active;
+	private volatile AudioPlayer standby;
+	/* the track given by nextTrack and the clone of it that is playing on the standby player */
+	private AudioTrack preloadedFor;
+	private AudioTrack preloaded;
+	private TrackStartEvent preloadedStart;
+
+	/* set while a TrackEndEvent that may start the next track is dispatched */
+	private volatile long endedAt;
+	/* time the last track ended if the next one didn't provide a frame yet, 0 otherwise */
+	private volatile long gapStart;
+
+	/**
+	 * @param first a fresh AudioPlayer
+	 * @param second another fresh AudioPlayer of the same manager
+	 * @param preloadWindow milliseconds before the end of a track the next track is started on the standby player
+	 */
+	public GaplessAudioPlayer(AudioPlayer first, AudioPlayer second, long preloadWindow) {
+		this.active = first;
+		this.standby = second;
+		this.preloadWindow = preloadWindow;
+		first.addListener(this::onEvent);
+		second.addListener(this::onEvent);
+	}
+
+	/**
+	 * @param nextTrack tells which track is going to be started after the current one, may return null
+	 */
+	public void setNextTrackSupplier(Supplier<AudioTrack> nextTrack) {
+		this.nextTrack = nextTrack;
+	}
+
+	private void onEvent(AudioEvent event) {
+		if (event.player != active) {
+			onStandbyEvent(event);
+			return;
+		}
+		if (event instanceof TrackEndEvent && ((TrackEndEvent) event).endReason.mayStartNext) {
+			/* the listener usually starts the next track right away, that's where the gap begins */
+			endedAt = System.nanoTime();
+			try {
+				dispatch(event);
+			} finally {
+				endedAt = 0;
+			}
+			return;
+		}
+		dispatch(event);
+	}
+
+	private synchronized void onStandbyEvent(AudioEvent event) {
+		if (event instanceof TrackStartEvent && ((TrackStartEvent) event).track == preloaded) {
+			preloadedStart = (TrackStartEvent) event;
+		} else if (event instanceof TrackEndEvent && ((TrackEndEvent) event).track == preloaded) {
+			/* loading failed or the track got cleaned up, the scheduler starts the track the usual way */
+			logger.debug("Preloading {} ended with {}", preloaded.getInfo().title, ((TrackEndEvent) event).endReason);
+			preloadedFor = null;
+			preloaded = null;
+			preloadedStart = null;
+		}
+	}
+
+	private void dispatch(AudioEvent event) {
+		for (AudioEventListener listener : listeners)
+			listener.onEvent(event);
+	}
+
+	/**
+	 * Preloads the next track if the active track is about to end. Called for every frame
+	 */
+	private void checkPreload() {
+		AudioPlayer player = active;
+		AudioTrack current = player.getPlayingTrack();
+		if (current == null || current.getInfo().isStream || current.getDuration() - current.getPosition() > preloadWindow)
+			return;
+		AudioTrack next = nextTrack.get();
+		AudioTrack discard = null;
+		AudioTrack clone = null;
+		synchronized (this) {
+			if (next == preloadedFor)
+				return;
+			discard = preloaded;
+			preloadedFor = next;
+			preloadedStart = null;
+			if (next != null) {
+				clone = next.makeClone();
+				if (next.getPosition() > 0 && clone.isSeekable())
+					clone.setPosition(next.getPosition());
+			}
+			preloaded = clone;
+		}
+		AudioPlayer spare = standby;
+		if (clone != null) {
+			logger.debug("Preloading next AudioTrack: {}", next.getInfo().title);
+			spare.startTrack(clone, false);
+		} else if (discard != null) {
+			spare.stopTrack();
+		}
+	}
+
+	private void provided() {
+		long start = gapStart;
+		if (start != 0) {
+			gapStart = 0;
+			Metrics.TRACK_GAP.record(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame) {
+		AudioPlayer player = active;
+		/* the players may have switched while the last frame of the old track was asked for */
+		boolean provided = player.provide(targetFrame) || (active != player && active.provide(targetFrame));
+		if (provided)
+			provided();
+		checkPreload();
+		return provided;
+	}
+
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+		AudioPlayer player = active;
+		boolean provided = player.provide(targetFrame, timeout, unit) || (active != player && active.provide(targetFrame, timeout, unit));
+		if (provided)
+			provided();
+		checkPreload();
+		return provided;
+	}
+
+	@Override
+	public AudioFrame provide() {
+		AudioPlayer player = active;
+		AudioFrame frame = player.provide();
+		if (frame == null && active != player)
+			frame = active.provide();
+		if (frame != null)
+			provided();
+		checkPreload();
+		return frame;
+	}
+
+	@Override
+	public AudioFrame provide(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+		AudioPlayer player = active;
+		AudioFrame frame = player.provide(timeout, unit);
+		if (frame == null && active != player)
+			frame = active.provide(timeout, unit);
+		if (frame != null)
+			provided();
+		checkPreload();
+		return frame;
+	}
+
+	@Override
+	public AudioTrack getPlayingTrack() {
+		return active.getPlayingTrack();
+	}
+
+	@Override
+	public void playTrack(AudioTrack track) {
+		startTrack(track, false);
+	}
+
+	@Override
+	public boolean startTrack(AudioTrack track, boolean noInterrupt) {
+		AudioPlayer previous = active;
+		if (noInterrupt && previous.getPlayingTrack() != null)
+			return false;
+		long ended = endedAt;
+		if (track != null && ended != 0)
+			gapStart = ended;
+		TrackStartEvent start = null;
+		boolean promote = false;
+		boolean discard = false;
+		AudioPlayer spare;
+		synchronized (this) {
+			spare = standby;
+			if (track != null && track == preloadedFor && preloaded != null && previous == active) {
+				promote = true;
+				start = preloadedStart;
+				active = spare;
+				standby = previous;
+			} else {
+				discard = preloaded != null;
+			}
+			preloadedFor = null;
+			preloaded = null;
+			preloadedStart = null;
+		}
+		if (!promote) {
+			if (discard)
+				spare.stopTrack();
+			return previous.startTrack(track, noInterrupt);
+		}
+		/* the old player is the standby player now, its events aren't passed on anymore */
+		previous.stopTrack();
+		if (previous.isPaused()) {
+			previous.setPaused(false);
+			spare.setPaused(true);
+		}
+		Metrics.PRELOADED_TRACKS.increment();
+		if (start != null)
+			dispatch(start);
+		return true;
+	}
+
+	@Override
+	public void stopTrack() {
+		AudioPlayer spare;
+		synchronized (this) {
+			spare = preloaded != null ? standby : null;
+			preloadedFor = null;
+			preloaded = null;
+			preloadedStart = null;
+		}
+		if (spare != null)
+			spare.stopTrack();
+		active.stopTrack();
+	}
+
+	@Override
+	public int getVolume() {
+		return active.getVolume();
+	}
+
+	@Override
+	public void setVolume(int volume) {
+		active.setVolume(volume);
+		standby.setVolume(volume);
+	}
+
+	@Override
+	public void setFilterFactory(PcmFilterFactory factory) {
+		active.setFilterFactory(factory);
+		standby.setFilterFactory(factory);
+	}
+
+	@Override
+	public void setFrameBufferDuration(Integer duration) {
+		active.setFrameBufferDuration(duration);
+		standby.setFrameBufferDuration(duration);
+	}
+
+	@Override
+	public boolean isPaused() {
+		return active.isPaused();
+	}
+
+	@Override
+	public void setPaused(boolean paused) {
+		active.setPaused(paused);
+	}
+
+	@Override
+	public void destroy() {
+		active.destroy();
+		standby.destroy();
+	}
+
+	@Override
+	public void addListener(AudioEventListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(AudioEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void checkCleanup(long threshold) {
+		active.checkCleanup(threshold);
+		standby.checkCleanup(threshold);
+	}
+}
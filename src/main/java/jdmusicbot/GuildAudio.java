@@ -0,0 +1,91 @@
+package jdmusicbot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+/**
+ * Holds the audio engine of a single guild: its own AudioPlayer, the TrackScheduler listening to it, the AudioFilters
+ * applied to it and the AudioSendHandler that links the player to the guild's AudioManager.
+ */
+public class GuildAudio {
+
+	private final long guildId;
+	private final AudioPlayer player;
+	private final TrackScheduler scheduler;
+	private final AudioFilters filters;
+	private final AudioSendHandler sendHandler;
+	private volatile long lastUsed;
+
+	/**
+	 * @param guildId the id of the guild this engine belongs to
+	 * @param player a fresh AudioPlayer exclusively used by this guild, a GaplessAudioPlayer preloads the track the
+	 *            scheduler starts next
+	 * @param prefetchFrames how many frames the send handler buffers ahead, 0 to pull frames directly on JDA's send thread
+	 * @param messages sends the status messages of the scheduler
+	 */
+	public GuildAudio(long guildId, AudioPlayer player, int prefetchFrames, MessagePipeline messages) {
+		this.guildId = guildId;
+		this.player = player;
+		this.scheduler = new TrackScheduler(player, messages);
+		this.player.addListener(scheduler);
+		this.filters = new AudioFilters(player);
+		if (player instanceof GaplessAudioPlayer)
+			((GaplessAudioPlayer) player).setNextTrackSupplier(scheduler::peekNext);
+		if (prefetchFrames > 0)
+			this.sendHandler = new PrefetchingAudioSendHandler(player, prefetchFrames);
+		else
+			this.sendHandler = new AudioPlayerSendHandler(player);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	public long getGuildId() {
+		return guildId;
+	}
+
+	public AudioPlayer getPlayer() {
+		return player;
+	}
+
+	public TrackScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public AudioFilters getFilters() {
+		return filters;
+	}
+
+	public AudioSendHandler getSendHandler() {
+		return sendHandler;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Marks this engine as used right now
+	 */
+	public void touch() {
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param now the current time in milliseconds
+	 * @param timeout milliseconds without usage after which an engine counts as idle
+	 * @return true if nothing is playing, nothing is queued and the engine wasn't used for at least timeout milliseconds
+	 */
+	public boolean isIdle(long now, long timeout) {
+		return player.getPlayingTrack() == null && scheduler.isQueueEmpty() && now - lastUsed >= timeout;
+	}
+
+	/**
+	 * Destroys the underlying AudioPlayer. This engine must not be used afterwards
+	 */
+	public void destroy() {
+		if (sendHandler instanceof PrefetchingAudioSendHandler)
+			((PrefetchingAudioSendHandler) sendHandler).close();
+		player.removeListener(scheduler);
+		player.destroy();
+	}
+}
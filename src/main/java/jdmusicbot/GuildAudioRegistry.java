@@ -0,0 +1,304 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+
+/**
+ * Keeps one {@link GuildAudio} per guild. Engines are created lazily on first use, idle engines are evicted
+ * periodically and the number of live engines (and therefore AudioPlayers) is capped. The engines are kept apart per
+ * shard, so the guilds of a shard can be looked at (and counted) without going through the guilds of all other shards.
+ */
+public class GuildAudioRegistry {
+
+	/* an engine used within this many milliseconds isn't evicted to make room, a #play of it may still be loading */
+	public static final long EVICTION_GRACE = TimeUnit.SECONDS.toMillis(30);
+
+	private final Logger logger = new Logger("GuildAudioRegistry-Logger");
+
+	private final AudioPlayerManager playerManager;
+	/* engines by guild id, per shard id */
+	private final Map<Integer, Map<Long, GuildAudio>> shards = new ConcurrentHashMap<>();
+	private final AtomicInteger live = new AtomicInteger();
+	/* AudioPlayers every engine owns, two while preloading */
+	private final int playersPerEngine;
+	/* engines that fit into the limit of AudioPlayers, at least one */
+	private final int maxEngines;
+	private final int maxPlayers;
+	private final long idleTimeout;
+	private final int prefetchFrames;
+	private final long preloadWindow;
+	private final QueueJournal journal;
+	private final SearchIndex searchIndex;
+	private final MessagePipeline messages;
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * @param playerManager the manager used to create the AudioPlayers
+	 * @param maxPlayers how many AudioPlayers may be alive at once. With preloading every engine owns two of them
+	 * @param idleTimeout milliseconds after which an unused engine without any tracks gets evicted
+	 * @param prefetchFrames how many frames each send handler buffers ahead, 0 disables prefetching
+	 * @param preloadWindow milliseconds before the end of a track the next one is preloaded, 0 disables preloading
+	 * @param journal persists and restores the queues of the engines, may be null
+	 * @param searchIndex learns the tracks the engines load and play, may be null
+	 * @param messages sends the status messages of the engines
+	 */
+	public GuildAudioRegistry(AudioPlayerManager playerManager, int maxPlayers, long idleTimeout, int prefetchFrames,
+			long preloadWindow, QueueJournal journal, SearchIndex searchIndex, MessagePipeline messages) {
+		this.playerManager = playerManager;
+		this.maxPlayers = maxPlayers;
+		this.playersPerEngine = preloadWindow > 0 ? 2 : 1;
+		this.maxEngines = Math.max(1, maxPlayers / playersPerEngine);
+		this.idleTimeout = idleTimeout;
+		this.prefetchFrames = prefetchFrames;
+		this.preloadWindow = preloadWindow;
+		this.journal = journal;
+		this.searchIndex = searchIndex;
+		this.messages = messages;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "GuildAudio-Sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Metrics.gauge("jdmusicbot_players", "AudioPlayers currently alive", this::getPlayerCount);
+		Metrics.gauge("jdmusicbot_prefetch_buffered_frames", "Frames buffered ahead by the send handlers of all engines", this::getPrefetchedFrames);
+		Metrics.register(new Metric("jdmusicbot_queue_length", "AudioTracks waiting in the queue of a guild", "") {
+			@Override
+			protected String type() {
+				return "gauge";
+			}
+
+			@Override
+			protected void write(StringBuilder out) {
+				for (Map.Entry<Integer, Map<Long, GuildAudio>> shard : shards.entrySet()) {
+					for (GuildAudio audio : shard.getValue().values()) {
+						out.append(name).append("{shard=\"").append(shard.getKey()).append("\",guild=\"").append(audio.getGuildId()).append("\"} ");
+						appendValue(out, audio.getScheduler().getQueueSize());
+					}
+				}
+			}
+		});
+		long period = Math.max(1000, idleTimeout / 2);
+		this.sweeper.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the engine of the given guild and creates it if there is none yet.
+	 *
+	 * @param shardId the id of the shard the guild belongs to
+	 * @param guildId the id of the guild
+	 * @return the engine of the guild or null if the maximum number of engines is reached and none of them is idle
+	 *         long enough, or if the engine could not be created
+	 */
+	public GuildAudio get(int shardId, long guildId) {
+		Map<Long, GuildAudio> audios = shard(shardId);
+		GuildAudio audio = audios.get(guildId);
+		if (audio == null) {
+			if (live.get() >= maxEngines)
+				evictLeastRecentlyUsed();
+			audio = audios.computeIfAbsent(guildId, this::create);
+			if (audio == null) {
+				/* a failed creation was logged already */
+				if (live.get() >= maxEngines)
+					logger.warn("Refused to create an AudioPlayer for Guild {}. Limit of {} AudioPlayers reached", guildId, maxPlayers);
+				return null;
+			}
+			/* decoding the saved queue inside computeIfAbsent would block every other guild of the same bin */
+			if (journal != null)
+				journal.restore(audio);
+		}
+		audio.touch();
+		return audio;
+	}
+
+	/**
+	 * @param shardId the id of the shard the guild belongs to
+	 * @param guildId the id of the guild
+	 * @return the engine of the guild or null if there is none. Never creates a new engine
+	 */
+	public GuildAudio getIfPresent(int shardId, long guildId) {
+		Map<Long, GuildAudio> audios = shards.get(shardId);
+		return audios == null ? null : audios.get(guildId);
+	}
+
+	/**
+	 * Removes and destroys the engine of the given guild if there is one
+	 *
+	 * @param shardId the id of the shard the guild belongs to
+	 * @param guildId the id of the guild
+	 */
+	public void remove(int shardId, long guildId) {
+		Map<Long, GuildAudio> audios = shards.get(shardId);
+		GuildAudio audio = audios == null ? null : audios.remove(guildId);
+		if (audio != null) {
+			live.decrementAndGet();
+			if (journal != null)
+				journal.untrack(audio);
+			audio.destroy();
+		}
+	}
+
+	/**
+	 * Removes and destroys the given engine if it's still the engine of its guild
+	 *
+	 * @param shardId the id of the shard the guild belongs to
+	 * @param audio the engine to remove
+	 */
+	public void remove(int shardId, GuildAudio audio) {
+		Map<Long, GuildAudio> audios = shards.get(shardId);
+		if (audios != null)
+			evict(audios, audio);
+	}
+
+	/**
+	 * @return a snapshot of all currently alive engines
+	 */
+	public List<GuildAudio> getAll() {
+		List<GuildAudio> all = new ArrayList<>(live.get());
+		for (Map<Long, GuildAudio> audios : shards.values())
+			all.addAll(audios.values());
+		return all;
+	}
+
+	/**
+	 * @param shardId the id of the shard
+	 * @return a snapshot of the currently alive engines of the guilds of the given shard
+	 */
+	public List<GuildAudio> getShard(int shardId) {
+		Map<Long, GuildAudio> audios = shards.get(shardId);
+		return audios == null ? new ArrayList<>() : new ArrayList<>(audios.values());
+	}
+
+	/**
+	 * @return the frames currently buffered by the prefetching send handlers of all engines
+	 */
+	public long getPrefetchedFrames() {
+		long frames = 0;
+		for (Map<Long, GuildAudio> audios : shards.values()) {
+			for (GuildAudio audio : audios.values()) {
+				if (audio.getSendHandler() instanceof PrefetchingAudioSendHandler)
+					frames += ((PrefetchingAudioSendHandler) audio.getSendHandler()).getFillLevel();
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * @return the number of currently alive AudioPlayers, two per engine while preloading
+	 */
+	public int getPlayerCount() {
+		return live.get() * playersPerEngine;
+	}
+
+	/**
+	 * @return the number of currently alive engines
+	 */
+	public int size() {
+		return live.get();
+	}
+
+	/**
+	 * Stops the sweeper and destroys every engine
+	 */
+	public void shutdown() {
+		sweeper.shutdownNow();
+		shards.forEach((shardId, audios) -> audios.keySet().forEach(guildId -> remove(shardId, guildId)));
+	}
+
+	private Map<Long, GuildAudio> shard(int shardId) {
+		Map<Long, GuildAudio> audios = shards.get(shardId);
+		return audios != null ? audios : shards.computeIfAbsent(shardId, id -> new ConcurrentHashMap<>());
+	}
+
+	private GuildAudio create(long guildId) {
+		// reserve a slot before creating the player so the limit holds even if several guilds race for the last one
+		if (live.incrementAndGet() > maxEngines) {
+			live.decrementAndGet();
+			return null;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Creating AudioPlayer for Guild {}", guildId);
+		AudioPlayer first = null;
+		AudioPlayer second = null;
+		GuildAudio audio = null;
+		try {
+			first = playerManager.createPlayer();
+			/* preloading needs a second AudioPlayer per guild that is started a few seconds before a track ends */
+			if (preloadWindow > 0)
+				second = playerManager.createPlayer();
+			AudioPlayer player = second != null ? new GaplessAudioPlayer(first, second, preloadWindow) : first;
+			audio = new GuildAudio(guildId, player, prefetchFrames, messages);
+			if (searchIndex != null)
+				audio.getScheduler().setSearchIndex(searchIndex);
+			if (journal != null)
+				journal.track(audio);
+			return audio;
+		} catch (RuntimeException e) {
+			/* give the slot and the players back, otherwise every failed attempt leaks one of them */
+			live.decrementAndGet();
+			if (audio != null) {
+				audio.destroy();
+			} else {
+				if (first != null)
+					first.destroy();
+				if (second != null)
+					second.destroy();
+			}
+			logger.error("Failed to create the AudioPlayer of Guild " + guildId, e);
+			return null;
+		}
+	}
+
+	private void evict(Map<Long, GuildAudio> audios, GuildAudio audio) {
+		if (audios.remove(audio.getGuildId(), audio)) {
+			live.decrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Evicting idle AudioPlayer of Guild {}", audio.getGuildId());
+			if (journal != null)
+				journal.untrack(audio);
+			audio.destroy();
+		}
+	}
+
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		try {
+			for (Map<Long, GuildAudio> audios : shards.values()) {
+				for (GuildAudio audio : audios.values()) {
+					if (audio.isIdle(now, idleTimeout))
+						evict(audios, audio);
+				}
+			}
+		} catch (RuntimeException e) {
+			logger.error("Failed to evict idle AudioPlayers", e);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used idle engine that wasn't used within {@link #EVICTION_GRACE}. Evicts nothing if no
+	 * engine qualifies, the new guild is refused then
+	 */
+	private void evictLeastRecentlyUsed() {
+		long now = System.currentTimeMillis();
+		GuildAudio oldest = null;
+		Map<Long, GuildAudio> oldestShard = null;
+		for (Map<Long, GuildAudio> audios : shards.values()) {
+			for (GuildAudio audio : audios.values()) {
+				if (audio.isIdle(now, EVICTION_GRACE) && (oldest == null || audio.getLastUsed() < oldest.getLastUsed())) {
+					oldest = audio;
+					oldestShard = audios;
+				}
+			}
+		}
+		if (oldest != null)
+			evict(oldestShard, oldest);
+	}
+}
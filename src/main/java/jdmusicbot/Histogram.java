@@ -0,0 +1,125 @@
+package jdmusicbot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with logarithmic buckets in the style of HdrHistogram. Every power of two is split into 4 linear
+ * sub-buckets, so a recorded value is off by at most 25% and the whole long range fits into 248 buckets. Recording is
+ * one lock-free increment of the value's bucket plus a striped add to the sum and never allocates.
+ *
+ * Values are recorded as longs in the histogram's unit (e.g. nanoseconds), the scale converts them to the unit that is
+ * exported (e.g. seconds). Prometheus gets one bucket per power of two between 2^minExponent and 2^maxExponent.
+ */
+public class Histogram extends Metric {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final double scale;
+	private final int minExponent;
+	private final int maxExponent;
+
+	/**
+	 * @param scale factor from the recorded unit to the exported unit
+	 * @param minExponent the smallest exported bucket is 2^minExponent recorded units
+	 * @param maxExponent the biggest exported bucket (besides +Inf) is 2^maxExponent recorded units
+	 */
+	Histogram(String name, String help, String labels, double scale, int minExponent, int maxExponent) {
+		super(name, help, labels);
+		this.scale = scale;
+		this.minExponent = minExponent;
+		this.maxExponent = maxExponent;
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(0, value);
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		return SUB_BUCKETS * (msb - SUB_BUCKET_BITS + 1) + (int) ((value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the highest value that falls into the bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * @param value the value in the recorded unit. Negative values count as 0
+	 */
+	public void record(long value) {
+		buckets.incrementAndGet(index(value));
+		sum.add(Math.max(0, value));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += buckets.get(i);
+		return count;
+	}
+
+	/**
+	 * @return the sum of all recorded values in the exported unit
+	 */
+	public double getSum() {
+		return sum.sum() * scale;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, e.g. 0.99
+	 * @return the upper bound of the bucket the quantile falls into in the exported unit, 0 if nothing was recorded
+	 */
+	public double getQuantile(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts[i] = buckets.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return upperBound(i) * scale;
+		}
+		return upperBound(BUCKETS - 1) * scale;
+	}
+
+	@Override
+	protected String type() {
+		return "histogram";
+	}
+
+	@Override
+	protected void write(StringBuilder out) {
+		long cumulative = 0;
+		int i = 0;
+		for (int exponent = minExponent; exponent <= maxExponent; exponent++) {
+			/* all buckets below 2^exponent */
+			int end = index(1L << exponent);
+			for (; i < end; i++)
+				cumulative += buckets.get(i);
+			appendSeries(out, "_bucket", "le=\"" + (1L << exponent) * scale + "\"");
+			appendValue(out, cumulative);
+		}
+		for (; i < BUCKETS; i++)
+			cumulative += buckets.get(i);
+		appendSeries(out, "_bucket", "le=\"+Inf\"");
+		appendValue(out, cumulative);
+		appendSeries(out, "_sum", null);
+		appendValue(out, getSum());
+		appendSeries(out, "_count", null);
+		appendValue(out, cumulative);
+	}
+}
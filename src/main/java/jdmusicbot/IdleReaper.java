@@ -0,0 +1,265 @@
+package jdmusicbot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.VoiceChannel;
+import net.dv8tion.jda.api.events.guild.voice.GuildVoiceJoinEvent;
+import net.dv8tion.jda.api.events.guild.voice.GuildVoiceLeaveEvent;
+import net.dv8tion.jda.api.events.guild.voice.GuildVoiceMoveEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.managers.AudioManager;
+
+/**
+ * Frees the resources of guilds that don't use the bot anymore. For every guild with an engine it tracks since when
+ * nothing is played and since when the voice channel of the bot is empty (or the bot isn't connected at all). Once
+ * either lasted for the timeout, the voice connection is closed and the engine is removed from the registry, which
+ * destroys its AudioPlayer, releases its frame buffers and parks its queue in the journal until the guild comes back.
+ *
+ * A guild listening to a broadcast isn't idle while somebody is in its voice channel, even though its own player is
+ * silent. Once the channel is empty it leaves the broadcast and is reaped like any other guild.
+ *
+ * Nothing is polled: a guild only has a timeout on the {@link TimerWheel} while it is idle, any activity cancels it.
+ * Reaping runs on the guild's command lane so it can't interleave with a command of that guild.
+ */
+public class IdleReaper extends ListenerAdapter {
+
+	private final Logger logger = new Logger("IdleReaper-Logger");
+
+	private final GuildAudioRegistry registry;
+	private final BroadcastHub broadcastHub;
+	private final CommandExecutor executor;
+	private final long timeout;
+	private final TimerWheel wheel;
+	private final Map<Long, GuildState> guilds = new ConcurrentHashMap<>();
+	private final Counter reaped = Metrics.counter("jdmusicbot_idle_reaped_total", "Idle guilds whose voice connection and AudioPlayer were freed");
+
+	/**
+	 * @param registry the registry holding the engines
+	 * @param broadcastHub knows which guilds listen to a broadcast, may be null
+	 * @param executor runs the reaping on the lane of the guild
+	 * @param timeout milliseconds a guild has to be idle before it's reaped
+	 */
+	public IdleReaper(GuildAudioRegistry registry, BroadcastHub broadcastHub, CommandExecutor executor, long timeout) {
+		this.registry = registry;
+		this.broadcastHub = broadcastHub;
+		this.executor = executor;
+		this.timeout = timeout;
+		this.wheel = new TimerWheel("IdleReaper-Wheel", 1, TimeUnit.SECONDS, 512);
+	}
+
+	/**
+	 * Starts watching the engine of a guild. Called whenever a command uses the engine, only the first call for an engine
+	 * has an effect
+	 *
+	 * @param jda the shard of the guild
+	 * @param shardId the id of the shard
+	 * @param audio the engine of the guild
+	 */
+	public void watch(JDA jda, int shardId, GuildAudio audio) {
+		GuildState state = guilds.get(audio.getGuildId());
+		if (state != null && state.audio == audio)
+			return;
+		GuildState created = new GuildState(jda, shardId, audio);
+		if (state != null ? !guilds.replace(audio.getGuildId(), state, created) : guilds.putIfAbsent(audio.getGuildId(), created) != null)
+			return;
+		audio.getPlayer().addListener(created.listener);
+		synchronized (created) {
+			created.playing = audio.getPlayer().getPlayingTrack() != null && !audio.getPlayer().isPaused();
+			created.occupied = isOccupied(jda.getGuildById(audio.getGuildId()));
+			reschedule(created);
+		}
+	}
+
+	/**
+	 * Stops the timer thread, nothing is reaped anymore
+	 */
+	public void shutdown() {
+		wheel.stop();
+	}
+
+	@Override
+	public void onGuildVoiceJoin(GuildVoiceJoinEvent event) {
+		voiceChanged(event.getGuild());
+	}
+
+	@Override
+	public void onGuildVoiceLeave(GuildVoiceLeaveEvent event) {
+		voiceChanged(event.getGuild());
+	}
+
+	@Override
+	public void onGuildVoiceMove(GuildVoiceMoveEvent event) {
+		voiceChanged(event.getGuild());
+	}
+
+	private void voiceChanged(Guild guild) {
+		GuildState state = guilds.get(guild.getIdLong());
+		if (state == null)
+			return;
+		boolean occupied = isOccupied(guild);
+		synchronized (state) {
+			if (state.occupied == occupied)
+				return;
+			state.occupied = occupied;
+			if (!occupied)
+				state.emptySince = System.currentTimeMillis();
+			reschedule(state);
+		}
+	}
+
+	/**
+	 * @return true if the bot is connected to a voice channel in which at least one member isn't a bot
+	 */
+	private static boolean isOccupied(Guild guild) {
+		if (guild == null)
+			return false;
+		VoiceChannel channel = guild.getAudioManager().getConnectedChannel();
+		if (channel == null)
+			return false;
+		for (Member member : channel.getMembers()) {
+			if (!member.getUser().isBot())
+				return true;
+		}
+		return false;
+	}
+
+	private void playbackChanged(GuildState state, boolean playing) {
+		synchronized (state) {
+			if (state.playing == playing)
+				return;
+			state.playing = playing;
+			if (!playing)
+				state.silentSince = System.currentTimeMillis();
+			reschedule(state);
+		}
+	}
+
+	/**
+	 * Moves the timeout of the guild to the moment it has been idle for long enough. Must hold the lock of the state
+	 */
+	private void reschedule(GuildState state) {
+		if (state.check != null) {
+			state.check.cancel();
+			state.check = null;
+		}
+		long deadline = state.deadline();
+		if (deadline == Long.MAX_VALUE)
+			return;
+		long delay = Math.max(0, deadline - System.currentTimeMillis());
+		state.check = wheel.schedule(delay, TimeUnit.MILLISECONDS, () -> expired(state));
+	}
+
+	private void expired(GuildState state) {
+		synchronized (state) {
+			state.check = null;
+			if (guilds.get(state.audio.getGuildId()) != state)
+				return;
+			if (System.currentTimeMillis() < state.deadline()) {
+				reschedule(state);
+				return;
+			}
+		}
+		if (!executor.submit(state.audio.getGuildId(), () -> reap(state))) {
+			/* the lane is full, the guild is obviously busy */
+			synchronized (state) {
+				state.silentSince = state.emptySince = System.currentTimeMillis();
+				reschedule(state);
+			}
+		}
+	}
+
+	private void reap(GuildState state) {
+		long guildId = state.audio.getGuildId();
+		synchronized (state) {
+			/* a command may have used the guild while the reaping waited in its lane */
+			long now = System.currentTimeMillis();
+			if (guilds.get(guildId) != state || now < state.deadline())
+				return;
+			if (state.occupied && broadcastHub != null && broadcastHub.getSubscriber(guildId) != null) {
+				/* only its own AudioPlayer is silent, somebody listens to the broadcast */
+				state.silentSince = now;
+				reschedule(state);
+				return;
+			}
+			guilds.remove(guildId, state);
+		}
+		if (broadcastHub != null && broadcastHub.leave(guildId))
+			logger.debug("Guild {} left its broadcast", guildId);
+		Guild guild = state.jda.getGuildById(guildId);
+		if (guild != null) {
+			AudioManager audioManager = guild.getAudioManager();
+			if (audioManager.getSendingHandler() == state.audio.getSendHandler() || audioManager.getSendingHandler() instanceof Broadcast.Subscriber)
+				audioManager.setSendingHandler(null);
+			if (audioManager.isConnected())
+				audioManager.closeAudioConnection();
+		}
+		state.audio.getPlayer().removeListener(state.listener);
+		registry.remove(state.shardId, state.audio);
+		reaped.increment();
+		logger.info("Freed the voice connection and AudioPlayer of idle Guild {}", guildId);
+	}
+
+	private final class GuildState {
+		final JDA jda;
+		final int shardId;
+		final GuildAudio audio;
+		final AudioEventAdapter listener = new AudioEventAdapter() {
+			@Override
+			public void onTrackStart(AudioPlayer player, AudioTrack track) {
+				playbackChanged(GuildState.this, !player.isPaused());
+			}
+
+			@Override
+			public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+				/* the next track usually starts right away, it only counts as silence if it doesn't */
+				if (player.getPlayingTrack() == null)
+					playbackChanged(GuildState.this, false);
+			}
+
+			@Override
+			public void onPlayerPause(AudioPlayer player) {
+				playbackChanged(GuildState.this, false);
+			}
+
+			@Override
+			public void onPlayerResume(AudioPlayer player) {
+				playbackChanged(GuildState.this, player.getPlayingTrack() != null);
+			}
+		};
+		/* all following fields are guarded by the lock of this state */
+		boolean playing;
+		boolean occupied;
+		long silentSince;
+		long emptySince;
+		TimerWheel.Timeout check;
+
+		GuildState(JDA jda, int shardId, GuildAudio audio) {
+			this.jda = jda;
+			this.shardId = shardId;
+			this.audio = audio;
+			this.silentSince = this.emptySince = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return when this guild is reaped if nothing changes, Long.MAX_VALUE if it's in use
+		 */
+		long deadline() {
+			long deadline = Long.MAX_VALUE;
+			if (!playing)
+				deadline = silentSince + timeout;
+			if (!occupied)
+				deadline = Math.min(deadline, emptySince + timeout);
+			return deadline;
+		}
+	}
+}
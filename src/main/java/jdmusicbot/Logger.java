@@ -1,32 +1,80 @@
 package jdmusicbot;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
-import java.util.LinkedList;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
 public class Logger {
 
 	/* ------------------------ STATIC ------------------------ */
 
-	private static LinkedList<PrintStream>	out			= new LinkedList<PrintStream>();
-	private static Calendar					cal			= new GregorianCalendar();
-	private static Loglevel					loglevel	= Loglevel.DEBUG;
+	private static List<PrintStream>		out			= new CopyOnWriteArrayList<PrintStream>();
+	private static List<FileChannel>		files		= new CopyOnWriteArrayList<FileChannel>();
+	private static volatile Loglevel		loglevel	= Loglevel.DEBUG;
+	private static volatile AsyncLogWriter	async;
+	/* set once shutdown() closed the outputs, later records are dropped */
+	private static volatile boolean			closed;
 
 	private static Logger LOG = new Logger("Logger");
 
 	static {
-		Runtime.getRuntime().addShutdownHook(new Thread(() -> Logger.out.forEach(i -> i.close())));
 		Logger.out.add(System.out);
 	}
 
+	/**
+	 * Switches to asynchronous logging. From now on logging threads only hand their records over to a bounded ring
+	 * buffer and a background thread formats and writes them. Calling this more than once has no effect
+	 *
+	 * @param capacity
+	 *            how many records the ring buffer can hold
+	 * @param overflow
+	 *            whether records get dropped or the logging thread blocks while the ring buffer is full
+	 */
+	public static synchronized void startAsync(int capacity, Overflow overflow) {
+		if (Logger.async != null)
+			return;
+		AsyncLogWriter writer = new AsyncLogWriter(capacity, overflow);
+		writer.start();
+		Logger.async = writer;
+	}
+
+	/**
+	 * Writes every pending record and closes all underlying streams and files. Records logged afterwards are dropped.
+	 * Runs last in the shutdown hook of the App, after everything that logs while shutting down
+	 */
+	public static synchronized void shutdown() {
+		if (Logger.closed)
+			return;
+		AsyncLogWriter writer = Logger.async;
+		if (writer != null) {
+			Logger.async = null;
+			writer.shutdown(5000);
+		}
+		synchronized (Logger.out) {
+			Logger.closed = true;
+			Logger.flush();
+			Logger.out.forEach(i -> i.close());
+			for (FileChannel file : Logger.files)
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		}
+	}
+
 	/**
 	 * Adds a printing stream to log to
 	 *
@@ -35,9 +83,7 @@ public class Logger {
 	 */
 	public static void addPrintStream(PrintStream outStream) {
 		if (outStream != null)
-			synchronized (Logger.out) {
-				Logger.out.add(outStream);
-			}
+			Logger.out.add(outStream);
 	}
 
 	/**
@@ -48,13 +94,11 @@ public class Logger {
 	 */
 	public static void removePrintStream(PrintStream outStream) {
 		if (outStream != null)
-			synchronized (Logger.out) {
-				Logger.out.remove(outStream);
-			}
+			Logger.out.remove(outStream);
 	}
 
 	/**
-	 * Adds a FileOutputStream for the given File to the list of output streams
+	 * Opens a FileChannel for the given File and adds it to the list of log files
 	 *
 	 * @param file
 	 *            the file to log to
@@ -64,7 +108,7 @@ public class Logger {
 	}
 
 	/**
-	 * Adds a FileOutputStream for the given File to the list of output streams
+	 * Opens a FileChannel for the given File and adds it to the list of log files
 	 *
 	 * @param file
 	 *            the file to log to
@@ -98,8 +142,7 @@ public class Logger {
 					Files.createDirectories(parent.toPath());
 				Files.createFile(file.toPath());
 			}
-			PrintStream stream = new PrintStream(new FileOutputStream(file));
-			Logger.addPrintStream(stream);
+			Logger.files.add(FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND));
 		} catch (IOException e) {
 			Logger.LOG.error("Failed to open file for writing", e);
 		}
@@ -116,36 +159,118 @@ public class Logger {
 			Logger.loglevel = loglevel;
 	}
 
+	/**
+	 * @return the minimum logging level
+	 */
+	public static Loglevel getLoglevel() {
+		return Logger.loglevel;
+	}
+
+	/**
+	 * @param level
+	 *            the logging level to check
+	 * @return true if records of the given level are currently logged
+	 */
+	public static boolean isEnabled(Loglevel level) {
+		return Logger.loglevel.id <= level.id;
+	}
+
+	/**
+	 * Replaces every "{}" in format with the next argument. Surplus placeholders stay as they are
+	 *
+	 * @param format
+	 *            the message containing "{}" placeholders
+	 * @param args
+	 *            the values to insert
+	 * @return the formatted message
+	 */
+	static String format(String format, Object... args) {
+		StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+		int start = 0;
+		int arg = 0;
+		int index;
+		while (arg < args.length && (index = format.indexOf("{}", start)) >= 0) {
+			builder.append(format, start, index).append(args[arg++]);
+			start = index + 2;
+		}
+		builder.append(format, start, format.length());
+		return builder.toString();
+	}
+
 	/**
 	 * Flushes all underlying output streams
 	 */
 	public static void flush() {
 		Logger.out.forEach(i -> i.flush());
+		for (FileChannel file : Logger.files)
+			try {
+				file.force(false);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+
+	static List<PrintStream> getPrintStreams() {
+		return Logger.out;
+	}
+
+	static List<FileChannel> getFileChannels() {
+		return Logger.files;
 	}
 
 	/**
-	 * Prints the given String to all underlying PrintStreams
+	 * Writes "[HH:MM:SS] " of the given time in the default time zone into the first 11 chars of target
 	 *
-	 * @param s
-	 *            the tring to print
+	 * @param millis
+	 *            the time in milliseconds since epoch
+	 * @param target
+	 *            array of at least 11 chars
 	 */
-	private static void print(String s) {
-		Logger.cal.setTimeInMillis(System.currentTimeMillis());
-		String o = String.format("[%02d:%02d:%02d] %s", Logger.cal.get(Calendar.HOUR_OF_DAY),
-				Logger.cal.get(Calendar.MINUTE), Logger.cal.get(Calendar.SECOND), s);
-		synchronized (Logger.out) {
-			Logger.out.forEach(i -> i.print(o));
-		}
+	static void formatClock(long millis, char[] target) {
+		long local = millis + TimeZone.getDefault().getOffset(millis);
+		int seconds = (int) Math.floorMod(local / 1000, 86400L);
+		int hour = seconds / 3600;
+		int minute = (seconds / 60) % 60;
+		int second = seconds % 60;
+		target[0] = '[';
+		target[1] = (char) ('0' + hour / 10);
+		target[2] = (char) ('0' + hour % 10);
+		target[3] = ':';
+		target[4] = (char) ('0' + minute / 10);
+		target[5] = (char) ('0' + minute % 10);
+		target[6] = ':';
+		target[7] = (char) ('0' + second / 10);
+		target[8] = (char) ('0' + second % 10);
+		target[9] = ']';
+		target[10] = ' ';
 	}
 
 	/**
-	 * Prints the given String to all underlying Printstreams and appends '\n'
+	 * Prints the given String prefixed with the current time to all underlying PrintStreams and log files
 	 *
 	 * @param s
 	 *            the String to print
 	 */
-	private static void println(String s) {
-		Logger.print(s + '\n');
+	private static void print(String s) {
+		char[] clock = new char[11];
+		Logger.formatClock(System.currentTimeMillis(), clock);
+		String o = new String(clock) + s;
+		synchronized (Logger.out) {
+			if (Logger.closed)
+				return;
+			Logger.out.forEach(i -> i.print(o));
+			if (!Logger.files.isEmpty()) {
+				ByteBuffer bytes = ByteBuffer.wrap(o.getBytes(StandardCharsets.UTF_8));
+				for (FileChannel file : Logger.files)
+					try {
+						bytes.rewind();
+						while (bytes.hasRemaining())
+							file.write(bytes);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+			}
+		}
 	}
 
 	/* ---------------------- END STATIC ---------------------- */
@@ -162,6 +287,33 @@ public class Logger {
 		this.name = name;
 	}
 
+	/**
+	 * Writes a log record either through the asynchronous writer or synchronously if logging isn't asynchronous
+	 *
+	 * @param level
+	 *            the level of the record
+	 * @param msg
+	 *            the message or null
+	 * @param t
+	 *            the Throwable whose stack trace gets logged or null
+	 */
+	private void log(Loglevel level, Object msg, Throwable t) {
+		if (!Logger.isEnabled(level))
+			return;
+		String text = msg != null ? msg.toString() : null;
+		AsyncLogWriter writer = Logger.async;
+		if (writer != null && writer.publish(System.currentTimeMillis(), level, this.name, text, t))
+			return;
+		if (text != null)
+			Logger.print("[" + level.tag + "] [" + this.name + "] " + text + '\n');
+		if (t != null) {
+			StringWriter sw = new StringWriter();
+			PrintWriter ps = new PrintWriter(sw, true);
+			t.printStackTrace(ps);
+			Logger.print("[" + level.tag + "] [" + this.name + "] " + sw);
+		}
+	}
+
 	public void debug(Object msg) {
 		this.debug(msg, null);
 	}
@@ -171,16 +323,35 @@ public class Logger {
 	}
 
 	public void debug(Object msg, Throwable t) {
-		if (Logger.loglevel.id <= Loglevel.DEBUG.id) {
-			if (msg != null)
-				Logger.println(String.format("[DEBUG] [%s] %s", this.name, msg));
-			if (t != null) {
-				StringWriter sw = new StringWriter();
-				PrintWriter ps = new PrintWriter(sw, true);
-				t.printStackTrace(ps);
-				Logger.print(String.format("[DEBUG] [%s] %s", this.name, sw));
-			}
-		}
+		this.log(Loglevel.DEBUG, msg, t);
+	}
+
+	public void debug(String msg, Throwable t) {
+		this.log(Loglevel.DEBUG, msg, t);
+	}
+
+	public void debug(Supplier<?> msg) {
+		if (Logger.isEnabled(Loglevel.DEBUG))
+			this.log(Loglevel.DEBUG, msg.get(), null);
+	}
+
+	public void debug(String format, Object arg) {
+		if (Logger.isEnabled(Loglevel.DEBUG))
+			this.log(Loglevel.DEBUG, Logger.format(format, arg), null);
+	}
+
+	public void debug(String format, Object arg1, Object arg2) {
+		if (Logger.isEnabled(Loglevel.DEBUG))
+			this.log(Loglevel.DEBUG, Logger.format(format, arg1, arg2), null);
+	}
+
+	public void debug(String format, Object... args) {
+		if (Logger.isEnabled(Loglevel.DEBUG))
+			this.log(Loglevel.DEBUG, Logger.format(format, args), null);
+	}
+
+	public boolean isDebugEnabled() {
+		return Logger.isEnabled(Loglevel.DEBUG);
 	}
 
 	public void info(Object msg) {
@@ -192,16 +363,35 @@ public class Logger {
 	}
 
 	public void info(Object msg, Throwable t) {
-		if (Logger.loglevel.id <= Loglevel.INFO.id) {
-			if (msg != null)
-				Logger.println(String.format("[INFO] [%s] %s", this.name, msg));
-			if (t != null) {
-				StringWriter sw = new StringWriter();
-				PrintWriter ps = new PrintWriter(sw, true);
-				t.printStackTrace(ps);
-				Logger.print(String.format("[INFO] [%s] %s", this.name, sw));
-			}
-		}
+		this.log(Loglevel.INFO, msg, t);
+	}
+
+	public void info(String msg, Throwable t) {
+		this.log(Loglevel.INFO, msg, t);
+	}
+
+	public void info(Supplier<?> msg) {
+		if (Logger.isEnabled(Loglevel.INFO))
+			this.log(Loglevel.INFO, msg.get(), null);
+	}
+
+	public void info(String format, Object arg) {
+		if (Logger.isEnabled(Loglevel.INFO))
+			this.log(Loglevel.INFO, Logger.format(format, arg), null);
+	}
+
+	public void info(String format, Object arg1, Object arg2) {
+		if (Logger.isEnabled(Loglevel.INFO))
+			this.log(Loglevel.INFO, Logger.format(format, arg1, arg2), null);
+	}
+
+	public void info(String format, Object... args) {
+		if (Logger.isEnabled(Loglevel.INFO))
+			this.log(Loglevel.INFO, Logger.format(format, args), null);
+	}
+
+	public boolean isInfoEnabled() {
+		return Logger.isEnabled(Loglevel.INFO);
 	}
 
 	public void warn(Object msg) {
@@ -213,16 +403,35 @@ public class Logger {
 	}
 
 	public void warn(Object msg, Throwable t) {
-		if (Logger.loglevel.id <= Loglevel.WARNING.id) {
-			if (msg != null)
-				Logger.println(String.format("[WARN] [%s] %s", this.name, msg));
-			if (t != null) {
-				StringWriter sw = new StringWriter();
-				PrintWriter ps = new PrintWriter(sw, true);
-				t.printStackTrace(ps);
-				Logger.print(String.format("[WARN] [%s] %s", this.name, sw));
-			}
-		}
+		this.log(Loglevel.WARNING, msg, t);
+	}
+
+	public void warn(String msg, Throwable t) {
+		this.log(Loglevel.WARNING, msg, t);
+	}
+
+	public void warn(Supplier<?> msg) {
+		if (Logger.isEnabled(Loglevel.WARNING))
+			this.log(Loglevel.WARNING, msg.get(), null);
+	}
+
+	public void warn(String format, Object arg) {
+		if (Logger.isEnabled(Loglevel.WARNING))
+			this.log(Loglevel.WARNING, Logger.format(format, arg), null);
+	}
+
+	public void warn(String format, Object arg1, Object arg2) {
+		if (Logger.isEnabled(Loglevel.WARNING))
+			this.log(Loglevel.WARNING, Logger.format(format, arg1, arg2), null);
+	}
+
+	public void warn(String format, Object... args) {
+		if (Logger.isEnabled(Loglevel.WARNING))
+			this.log(Loglevel.WARNING, Logger.format(format, args), null);
+	}
+
+	public boolean isWarnEnabled() {
+		return Logger.isEnabled(Loglevel.WARNING);
 	}
 
 	public void error(Object msg) {
@@ -234,16 +443,35 @@ public class Logger {
 	}
 
 	public void error(Object msg, Throwable t) {
-		if (Logger.loglevel.id <= Loglevel.ERROR.id) {
-			if (msg != null)
-				Logger.println(String.format("[ERROR] [%s] %s", this.name, msg));
-			if (t != null) {
-				StringWriter sw = new StringWriter();
-				PrintWriter ps = new PrintWriter(sw, true);
-				t.printStackTrace(ps);
-				Logger.print(String.format("[ERROR] [%s] %s", this.name, sw));
-			}
-		}
+		this.log(Loglevel.ERROR, msg, t);
+	}
+
+	public void error(String msg, Throwable t) {
+		this.log(Loglevel.ERROR, msg, t);
+	}
+
+	public void error(Supplier<?> msg) {
+		if (Logger.isEnabled(Loglevel.ERROR))
+			this.log(Loglevel.ERROR, msg.get(), null);
+	}
+
+	public void error(String format, Object arg) {
+		if (Logger.isEnabled(Loglevel.ERROR))
+			this.log(Loglevel.ERROR, Logger.format(format, arg), null);
+	}
+
+	public void error(String format, Object arg1, Object arg2) {
+		if (Logger.isEnabled(Loglevel.ERROR))
+			this.log(Loglevel.ERROR, Logger.format(format, arg1, arg2), null);
+	}
+
+	public void error(String format, Object... args) {
+		if (Logger.isEnabled(Loglevel.ERROR))
+			this.log(Loglevel.ERROR, Logger.format(format, args), null);
+	}
+
+	public boolean isErrorEnabled() {
+		return Logger.isEnabled(Loglevel.ERROR);
 	}
 
 	public void fatal(Object msg) {
@@ -255,26 +483,57 @@ public class Logger {
 	}
 
 	public void fatal(Object msg, Throwable t) {
-		if (Logger.loglevel.id <= Loglevel.FATAL.id) {
-			if (msg != null)
-				Logger.println(String.format("[FATAL] [%s] %s", this.name, msg));
-			if (t != null) {
-				StringWriter sw = new StringWriter();
-				PrintWriter ps = new PrintWriter(sw, true);
-				t.printStackTrace(ps);
-				Logger.print(String.format("[FATAL] [%s] %s", this.name, sw));
-			}
-		}
+		this.log(Loglevel.FATAL, msg, t);
+	}
+
+	public void fatal(String msg, Throwable t) {
+		this.log(Loglevel.FATAL, msg, t);
+	}
+
+	public void fatal(Supplier<?> msg) {
+		if (Logger.isEnabled(Loglevel.FATAL))
+			this.log(Loglevel.FATAL, msg.get(), null);
+	}
+
+	public void fatal(String format, Object arg) {
+		if (Logger.isEnabled(Loglevel.FATAL))
+			this.log(Loglevel.FATAL, Logger.format(format, arg), null);
+	}
+
+	public void fatal(String format, Object arg1, Object arg2) {
+		if (Logger.isEnabled(Loglevel.FATAL))
+			this.log(Loglevel.FATAL, Logger.format(format, arg1, arg2), null);
+	}
+
+	public void fatal(String format, Object... args) {
+		if (Logger.isEnabled(Loglevel.FATAL))
+			this.log(Loglevel.FATAL, Logger.format(format, args), null);
+	}
+
+	public boolean isFatalEnabled() {
+		return Logger.isEnabled(Loglevel.FATAL);
 	}
 
 	public enum Loglevel {
-		DEBUG(0), INFO(1), WARNING(2), ERROR(3), FATAL(4);
+		DEBUG(0, "DEBUG"), INFO(1, "INFO"), WARNING(2, "WARN"), ERROR(3, "ERROR"), FATAL(4, "FATAL");
 
 		public final int id;
+		public final String tag;
 
-		Loglevel(int id) {
+		Loglevel(int id, String tag) {
 			this.id = id;
+			this.tag = tag;
 		}
 	}
 
+	/**
+	 * What asynchronous logging does with new records while its buffer is full
+	 */
+	public enum Overflow {
+		/** the record is discarded and counted, the logging thread never waits */
+		DROP,
+		/** the logging thread waits until the writer made room */
+		BLOCK
+	}
+
 }
@@ -0,0 +1,106 @@
+package jdmusicbot;
+
+import java.util.function.Consumer;
+
+/**
+ * Writes lines of text straight into chunks that fit into one Discord message. A chunk is only ever split on a line
+ * boundary (lines longer than a whole chunk are the exception), every finished chunk is handed to the sink right away
+ * and the same StringBuilder is reused for all chunks, so the cost is linear in the length of the output.
+ *
+ * Not thread safe, every thread needs its own instance.
+ */
+public class MessageChunker {
+
+	private final StringBuilder buffer;
+	private final int maxLength;
+	private Consumer<? super String> sink;
+	/* index in the buffer where the line currently being written starts */
+	private int lineStart;
+
+	/**
+	 * @param maxLength the maximum length of a chunk
+	 */
+	public MessageChunker(int maxLength) {
+		this.maxLength = maxLength;
+		this.buffer = new StringBuilder(maxLength + 256);
+	}
+
+	/**
+	 * Starts a new output. Anything not finished of the last output is discarded
+	 *
+	 * @param sink receives every chunk of the output in order
+	 * @return this
+	 */
+	public MessageChunker begin(Consumer<? super String> sink) {
+		this.sink = sink;
+		this.buffer.setLength(0);
+		this.lineStart = 0;
+		return this;
+	}
+
+	public MessageChunker append(CharSequence text) {
+		buffer.append(text);
+		return this;
+	}
+
+	public MessageChunker append(char c) {
+		buffer.append(c);
+		return this;
+	}
+
+	public MessageChunker append(long value) {
+		buffer.append(value);
+		return this;
+	}
+
+	/**
+	 * Appends a duration as minutes and seconds, e.g. 4:05
+	 *
+	 * @param millis the duration in milliseconds
+	 * @return this
+	 */
+	public MessageChunker appendDuration(long millis) {
+		long seconds = (millis / 1000) % 60;
+		buffer.append((millis / 1000) / 60).append(':');
+		if (seconds < 10)
+			buffer.append('0');
+		buffer.append(seconds);
+		return this;
+	}
+
+	/**
+	 * Ends the current line. If the line doesn't fit into the current chunk anymore, the chunk is handed to the sink
+	 * and the line becomes the start of the next chunk
+	 *
+	 * @return this
+	 */
+	public MessageChunker endLine() {
+		if (buffer.length() > maxLength) {
+			if (lineStart > 0) {
+				/* everything before the line without the line break in front of it */
+				sink.accept(buffer.substring(0, lineStart - 1));
+				buffer.delete(0, lineStart);
+			}
+			while (buffer.length() > maxLength) {
+				sink.accept(buffer.substring(0, maxLength));
+				buffer.delete(0, maxLength);
+			}
+		}
+		buffer.append('\n');
+		lineStart = buffer.length();
+		return this;
+	}
+
+	/**
+	 * Ends the current line if there is one and hands the last chunk to the sink
+	 */
+	public void finish() {
+		if (buffer.length() > lineStart)
+			endLine();
+		if (lineStart > 1)
+			sink.accept(buffer.substring(0, lineStart - 1));
+		buffer.setLength(0);
+		lineStart = 0;
+		sink = null;
+	}
+}
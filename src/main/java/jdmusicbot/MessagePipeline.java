@@ -0,0 +1,253 @@
+package jdmusicbot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.dv8tion.jda.api.entities.MessageChannel;
+
+/**
+ * Outbound status messages. Lines posted to a channel within a short window are sent together as one message, a line
+ * posted with a key replaces a still pending line with the same key (e.g. an older "Started next Track") and every
+ * channel has at most one message in flight. While a message is in flight or held back by Discord's rate limit, new
+ * lines keep coalescing into the next message instead of piling up in JDA's request queue.
+ */
+public class MessagePipeline {
+
+	/* Discord's limit for the content of a single message */
+	public static final int MAX_MESSAGE_LENGTH = 2000;
+	/* room left for the lines of a message between MSG_PREFIX and MSG_POSTFIX */
+	public static final int MAX_BODY_LENGTH = MAX_MESSAGE_LENGTH - App.MSG_PREFIX.length() - App.MSG_POSTFIX.length();
+
+	private final Logger logger = new Logger("MessagePipeline-Logger");
+
+	private final Map<Long, Outbox> outboxes = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+	private final long window;
+	/* only used on the flusher thread. JDA copies the content when the message is created */
+	private final StringBuilder body = new StringBuilder(MAX_MESSAGE_LENGTH);
+
+	private final AtomicInteger depth = new AtomicInteger();
+	private final Counter postedLines = Metrics.counter("jdmusicbot_message_posted_lines_total", "Status lines posted by the TrackSchedulers");
+	private final Counter sentLines = Metrics.counter("jdmusicbot_message_sent_lines_total", "Status lines Discord accepted");
+	private final Counter sentMessages = Metrics.counter("jdmusicbot_messages_sent_total", "Batched status messages Discord accepted");
+	private final Counter supersededLines = Metrics.counter("jdmusicbot_message_superseded_lines_total", "Status lines replaced by a newer one before they were sent");
+	private final Counter failedMessages = Metrics.counter("jdmusicbot_messages_failed_total", "Batched status messages Discord rejected or that couldn't be sent");
+	private final LongAdder latencyTotal = new LongAdder();
+	private final AtomicLong latencyMax = new AtomicLong();
+
+	/**
+	 * @param window milliseconds lines are collected after the first one before they are sent together
+	 */
+	public MessagePipeline(long window) {
+		this.window = window;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "MessagePipeline-Flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Sends a line to the channel as part of the next message
+	 *
+	 * @param channel the channel to send to
+	 * @param line the text of the line without MSG_PREFIX and MSG_POSTFIX
+	 */
+	public void post(MessageChannel channel, String line) {
+		post(channel, line, null);
+	}
+
+	/**
+	 * Sends a line to the channel as part of the next message. A line with the same key that wasn't sent yet is
+	 * dropped, because this one supersedes it
+	 *
+	 * @param channel the channel to send to
+	 * @param line the text of the line without MSG_PREFIX and MSG_POSTFIX
+	 * @param key identifies lines that supersede each other, null if the line never gets superseded
+	 */
+	public void post(MessageChannel channel, String line, String key) {
+		long now = System.nanoTime();
+		while (true) {
+			Outbox outbox = outboxes.computeIfAbsent(channel.getIdLong(), id -> new Outbox(channel));
+			synchronized (outbox) {
+				/* the outbox was drained and removed in the meantime */
+				if (outbox.closed)
+					continue;
+				if (key != null)
+					supersede(outbox, key);
+				/* lines that don't fit into a message at all are split, everything else is only split on line boundaries */
+				for (int from = 0; from < line.length() || from == 0; from += MAX_BODY_LENGTH) {
+					outbox.lines.add(new Line(line.substring(from, Math.min(line.length(), from + MAX_BODY_LENGTH)), key, now));
+					depth.incrementAndGet();
+					postedLines.increment();
+				}
+				if (!outbox.busy) {
+					outbox.busy = true;
+					flusher.schedule(() -> flush(outbox), window, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+		}
+	}
+
+	private void supersede(Outbox outbox, String key) {
+		Iterator<Line> it = outbox.lines.iterator();
+		while (it.hasNext()) {
+			if (key.equals(it.next().key)) {
+				it.remove();
+				depth.decrementAndGet();
+				supersededLines.increment();
+			}
+		}
+	}
+
+	/**
+	 * Sends as many pending lines of the outbox as fit into one message. Called on the flusher thread only
+	 */
+	private void flush(Outbox outbox) {
+		body.setLength(0);
+		body.append(App.MSG_PREFIX);
+		List<Line> batch = new ArrayList<>();
+		synchronized (outbox) {
+			Line line;
+			while ((line = outbox.lines.peek()) != null) {
+				int length = body.length() - App.MSG_PREFIX.length();
+				if (length > 0 && length + 1 + line.text.length() > MAX_BODY_LENGTH)
+					break;
+				if (length > 0)
+					body.append('\n');
+				body.append(line.text);
+				batch.add(outbox.lines.poll());
+			}
+			if (batch.isEmpty()) {
+				close(outbox);
+				return;
+			}
+		}
+		depth.addAndGet(-batch.size());
+		body.append(App.MSG_POSTFIX);
+		try {
+			outbox.channel.sendMessage(body).queue(message -> sent(outbox, batch), error -> failed(outbox, batch, error));
+		} catch (RuntimeException e) {
+			/* e.g. missing permissions are thrown right away instead of failing the request */
+			failed(outbox, batch, e);
+		}
+	}
+
+	private void sent(Outbox outbox, List<Line> batch) {
+		long now = System.nanoTime();
+		for (Line line : batch) {
+			long latency = now - line.posted;
+			latencyTotal.add(latency);
+			long max;
+			while (latency > (max = latencyMax.get()) && !latencyMax.compareAndSet(max, latency));
+		}
+		sentLines.add(batch.size());
+		sentMessages.increment();
+		next(outbox);
+	}
+
+	private void failed(Outbox outbox, List<Line> batch, Throwable error) {
+		failedMessages.increment();
+		logger.warn("Failed to send {} lines to channel {}: {}", batch.size(), outbox.channel.getName(), error.getMessage());
+		next(outbox);
+	}
+
+	/**
+	 * Sends the lines that piled up while the last message was in flight right away, or closes the outbox if there are none
+	 */
+	private void next(Outbox outbox) {
+		synchronized (outbox) {
+			if (outbox.lines.isEmpty())
+				close(outbox);
+			else
+				flusher.execute(() -> flush(outbox));
+		}
+	}
+
+	private void close(Outbox outbox) {
+		outbox.busy = false;
+		outbox.closed = true;
+		outboxes.remove(outbox.channel.getIdLong(), outbox);
+	}
+
+	/**
+	 * @return number of lines waiting to be sent over all channels
+	 */
+	public int getQueueDepth() {
+		return depth.get();
+	}
+
+	public long getPostedLines() {
+		return postedLines.get();
+	}
+
+	public long getSentLines() {
+		return sentLines.get();
+	}
+
+	public long getSentMessages() {
+		return sentMessages.get();
+	}
+
+	/**
+	 * @return number of lines that were dropped because a newer line with the same key replaced them
+	 */
+	public long getSupersededLines() {
+		return supersededLines.get();
+	}
+
+	public long getFailedMessages() {
+		return failedMessages.get();
+	}
+
+	/**
+	 * @return average milliseconds from posting a line until Discord accepted the message containing it
+	 */
+	public double getAverageLatency() {
+		long lines = sentLines.get();
+		return lines == 0 ? 0 : latencyTotal.sum() / (double) lines / 1_000_000;
+	}
+
+	/**
+	 * @return the highest milliseconds from posting a line until Discord accepted the message containing it
+	 */
+	public double getMaxLatency() {
+		return latencyMax.get() / 1_000_000.0;
+	}
+
+	private static final class Line {
+		final String text;
+		final String key;
+		final long posted;
+
+		Line(String text, String key, long posted) {
+			this.text = text;
+			this.key = key;
+			this.posted = posted;
+		}
+	}
+
+	private static final class Outbox {
+		final MessageChannel channel;
+		final ArrayDeque<Line> lines = new ArrayDeque<>();
+		/* a flush is scheduled or a message is in flight */
+		boolean busy;
+		/* removed from the outboxes, new lines have to go to a new one */
+		boolean closed;
+
+		Outbox(MessageChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
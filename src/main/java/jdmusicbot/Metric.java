@@ -0,0 +1,74 @@
+package jdmusicbot;
+
+/**
+ * A single time series (or a group of series that share their name) that can be written in the Prometheus text
+ * format. See {@link Metrics} for the registry.
+ */
+public abstract class Metric {
+
+	protected final String name;
+	protected final String help;
+	/* rendered labels without the braces, e.g. command="play". Empty if the metric has no labels */
+	protected final String labels;
+
+	/**
+	 * @param name the name of the metric, e.g. jdmusicbot_frames_provided_total
+	 * @param help a one line description
+	 * @param labels rendered labels as returned by {@link Metrics#labels}
+	 */
+	protected Metric(String name, String help, String labels) {
+		this.name = name;
+		this.help = help;
+		this.labels = labels;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the Prometheus type: counter, gauge or histogram
+	 */
+	protected abstract String type();
+
+	/**
+	 * Appends the sample lines of this metric, without the HELP and TYPE lines
+	 */
+	protected abstract void write(StringBuilder out);
+
+	/**
+	 * Appends the name, the labels of this metric and the given extra label
+	 */
+	protected void appendSeries(StringBuilder out, String suffix, String extraLabel) {
+		out.append(name).append(suffix);
+		if (!labels.isEmpty() || extraLabel != null) {
+			out.append('{').append(labels);
+			if (extraLabel != null) {
+				if (!labels.isEmpty())
+					out.append(',');
+				out.append(extraLabel);
+			}
+			out.append('}');
+		}
+		out.append(' ');
+	}
+
+	/**
+	 * Appends a sample value the way Prometheus expects it
+	 */
+	protected static void appendValue(StringBuilder out, double value) {
+		if (value == (long) value)
+			out.append((long) value);
+		else if (Double.isNaN(value))
+			out.append("NaN");
+		else if (Double.isInfinite(value))
+			out.append(value > 0 ? "+Inf" : "-Inf");
+		else
+			out.append(value);
+		out.append('\n');
+	}
+}
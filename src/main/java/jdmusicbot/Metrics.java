@@ -0,0 +1,158 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of all metrics of the bot. Metrics with the same name (and different labels) form a family that is written
+ * with one HELP and TYPE line. Registering only happens during startup or when something new shows up (e.g. a command),
+ * recording never touches the registry.
+ */
+public final class Metrics {
+
+	private static final Map<String, List<Metric>> families = new LinkedHashMap<>();
+
+	/* nanoseconds exported as seconds, buckets from ~1us to ~68s */
+	private static final double NANOS = 1e-9;
+	private static final int NANOS_MIN_EXPONENT = 10;
+	private static final int NANOS_MAX_EXPONENT = 36;
+
+	public static final Counter FRAMES_PROVIDED = counter("jdmusicbot_frames_provided_total",
+			"Opus frames handed to JDA");
+	public static final Counter FRAMES_MISSED = counter("jdmusicbot_frames_missed_total",
+			"20ms slots without a frame while a track was playing and not paused");
+	public static final Counter TRACKS_STUCK = counter("jdmusicbot_tracks_stuck_total",
+			"Tracks that got stuck and were skipped");
+	public static final Counter TRACK_EXCEPTIONS = counter("jdmusicbot_track_exceptions_total",
+			"Tracks that threw an exception while playing");
+	public static final Histogram LOAD_DURATION = latency("jdmusicbot_load_duration_seconds",
+			"Time lavaplayer took to resolve an url or search query that wasn't cached");
+	public static final Histogram TRACK_GAP = latency("jdmusicbot_track_gap_seconds",
+			"Time from the last frame of a track to the first frame of the track started after it");
+	public static final Counter PRELOADED_TRACKS = counter("jdmusicbot_preloaded_tracks_total",
+			"Tracks that were preloaded and started without a gap");
+
+	private Metrics() {
+	}
+
+	/**
+	 * Adds a metric to the registry. A metric with the same name and labels is replaced
+	 *
+	 * @return the metric
+	 */
+	public static synchronized <T extends Metric> T register(T metric) {
+		List<Metric> family = families.computeIfAbsent(metric.getName(), name -> new ArrayList<>());
+		family.removeIf(m -> m.getLabels().equals(metric.getLabels()));
+		family.add(metric);
+		return metric;
+	}
+
+	private static synchronized Metric find(String name, String labels) {
+		List<Metric> family = families.get(name);
+		if (family != null)
+			for (Metric metric : family)
+				if (metric.getLabels().equals(labels))
+					return metric;
+		return null;
+	}
+
+	public static Counter counter(String name, String help) {
+		return counter(name, help, "", "");
+	}
+
+	/**
+	 * @return the counter with the given name and label, created if it doesn't exist yet
+	 */
+	public static synchronized Counter counter(String name, String help, String label, String value) {
+		String labels = labels(label, value);
+		Metric existing = find(name, labels);
+		if (existing instanceof Counter)
+			return (Counter) existing;
+		return register(new Counter(name, help, labels));
+	}
+
+	public static Histogram latency(String name, String help) {
+		return latency(name, help, "", "");
+	}
+
+	/**
+	 * @return the histogram of nanoseconds (exported as seconds) with the given name and label, created if it doesn't
+	 *         exist yet
+	 */
+	public static synchronized Histogram latency(String name, String help, String label, String value) {
+		String labels = labels(label, value);
+		Metric existing = find(name, labels);
+		if (existing instanceof Histogram)
+			return (Histogram) existing;
+		return register(new Histogram(name, help, labels, NANOS, NANOS_MIN_EXPONENT, NANOS_MAX_EXPONENT));
+	}
+
+	/**
+	 * Registers a gauge that is read every time the metrics are written
+	 */
+	public static void gauge(String name, String help, DoubleSupplier value) {
+		gauge(name, help, "", "", value);
+	}
+
+	/**
+	 * Registers a gauge with a label that is read every time the metrics are written
+	 */
+	public static void gauge(String name, String help, String label, String labelValue, DoubleSupplier value) {
+		register(new Metric(name, help, labels(label, labelValue)) {
+			@Override
+			protected String type() {
+				return "gauge";
+			}
+
+			@Override
+			protected void write(StringBuilder out) {
+				appendSeries(out, "", null);
+				appendValue(out, value.getAsDouble());
+			}
+		});
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text format (version 0.0.4)
+	 */
+	public static void writePrometheus(StringBuilder out) {
+		List<List<Metric>> snapshot;
+		synchronized (Metrics.class) {
+			snapshot = new ArrayList<>(families.size());
+			for (List<Metric> family : families.values())
+				snapshot.add(new ArrayList<>(family));
+		}
+		for (List<Metric> family : snapshot) {
+			if (family.isEmpty())
+				continue;
+			Metric first = family.get(0);
+			out.append("# HELP ").append(first.getName()).append(' ').append(first.help).append('\n');
+			out.append("# TYPE ").append(first.getName()).append(' ').append(first.type()).append('\n');
+			for (Metric metric : family)
+				metric.write(out);
+		}
+	}
+
+	/**
+	 * @return the label rendered as name="value" with the value escaped, or an empty String if name is empty
+	 */
+	public static String labels(String name, String value) {
+		if (name.isEmpty())
+			return "";
+		StringBuilder builder = new StringBuilder(name.length() + value.length() + 3);
+		builder.append(name).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				builder.append('\\').append(c);
+			else if (c == '\n')
+				builder.append("\\n");
+			else
+				builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+}
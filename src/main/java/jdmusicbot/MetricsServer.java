@@ -0,0 +1,71 @@
+package jdmusicbot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link Metrics} in the Prometheus text format at /metrics, using the HTTP server that ships with the JDK.
+ */
+public class MetricsServer {
+
+	private final Logger logger = new Logger("MetricsServer-Logger");
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * @param port the port to listen on, on all interfaces
+	 * @throws IOException if the port can't be bound
+	 */
+	public MetricsServer(int port) throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Metrics-Http");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server.setExecutor(executor);
+		this.server.createContext("/metrics", this::handle);
+	}
+
+	public void start() {
+		server.start();
+		logger.info("Serving metrics on port {} at /metrics", server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringBuilder builder = new StringBuilder(16384);
+			Metrics.writePrometheus(builder);
+			byte[] body = builder.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			if (method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package jdmusicbot;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+/**
+ * AudioSendHandler with a jitter buffer. A shared prefetch thread pulls frames from the AudioPlayer ahead of time into
+ * a fixed ring of preallocated direct ByteBuffers, so a stall in decoding or network reads is absorbed by the buffer
+ * instead of dropping a frame on JDA's 20ms send thread. canProvide() and provide20MsAudio() only hand out the next
+ * ready slot and never allocate.
+ */
+public class PrefetchingAudioSendHandler implements AudioSendHandler {
+
+	/* how often the ring of every handler gets topped up */
+	private static final long FILL_INTERVAL_MS = 10;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+	private static final ScheduledExecutorService PREFETCHER = Executors.newScheduledThreadPool(
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+				Thread thread = new Thread(r, "Audio-Prefetcher-" + THREAD_COUNT.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	public static final Counter UNDERRUNS = Metrics.counter("jdmusicbot_prefetch_underruns_total", "Frames JDA asked for while a track was playing but the prefetch buffer was empty");
+
+	private final Logger logger = new Logger("PrefetchingAudioSendHandler-Logger");
+
+	private final AudioPlayer audioPlayer;
+	private final MutableAudioFrame frame;
+	private final ByteBuffer[] slots;
+	private final int depth;
+	private final ScheduledFuture<?> task;
+
+	/* written by the prefetch thread only */
+	private volatile long written;
+	/* written by the JDA send thread only */
+	private volatile long read;
+	private boolean handedOut;
+
+	/**
+	 * @param audioPlayer Audio player to wrap.
+	 * @param depth how many 20ms frames are buffered ahead
+	 */
+	public PrefetchingAudioSendHandler(AudioPlayer audioPlayer, int depth) {
+		if (depth < 2)
+			throw new IllegalArgumentException("Prefetch depth must be at least 2 frames");
+		this.audioPlayer = audioPlayer;
+		this.depth = depth;
+		this.frame = new MutableAudioFrame();
+		this.slots = new ByteBuffer[depth];
+		int frameSize = StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize();
+		for (int i = 0; i < depth; i++)
+			slots[i] = ByteBuffer.allocateDirect(frameSize);
+		this.task = PREFETCHER.scheduleAtFixedRate(this::fill, 0, FILL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Pulls frames from the player until the ring is full or the player has nothing to provide right now
+	 */
+	private void fill() {
+		try {
+			long w = written;
+			while (w - read < depth) {
+				ByteBuffer slot = slots[(int) (w % depth)];
+				slot.clear();
+				frame.setBuffer(slot);
+				if (!audioPlayer.provide(frame))
+					break;
+				slot.position(0);
+				slot.limit(frame.getDataLength());
+				// publishing the new write index makes the slot visible to the send thread
+				written = ++w;
+			}
+		} catch (RuntimeException e) {
+			// the scheduled fill must survive a failing provide, otherwise the guild stays mute until its engine is recreated
+			logger.error("Failed to prefetch audio frames", e);
+		}
+	}
+
+	@Override
+	public boolean canProvide() {
+		if (handedOut) {
+			// JDA is done with the slot handed out last time, give it back to the prefetch thread
+			handedOut = false;
+			read = read + 1;
+		}
+		if (read == written) {
+			if (audioPlayer.getPlayingTrack() != null && !audioPlayer.isPaused()) {
+				UNDERRUNS.increment();
+				Metrics.FRAMES_MISSED.increment();
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public ByteBuffer provide20MsAudio() {
+		long r = read;
+		if (r == written)
+			return null;
+		handedOut = true;
+		Metrics.FRAMES_PROVIDED.increment();
+		return slots[(int) (r % depth)];
+	}
+
+	@Override
+	public boolean isOpus() {
+		return true;
+	}
+
+	/**
+	 * @return how many frames are currently buffered
+	 */
+	public int getFillLevel() {
+		return (int) (written - read);
+	}
+
+	/**
+	 * @return the capacity of the buffer in frames
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Stops prefetching. The handler must not be used afterwards
+	 */
+	public void close() {
+		task.cancel(false);
+	}
+}
@@ -0,0 +1,436 @@
+package jdmusicbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Persists the queues of all guilds so they survive a restart. Every change only marks the guild as dirty, a single
+ * background thread periodically takes a {@link QueueState} of the dirty guilds and appends it as a record of
+ * lavaplayer encoded tracks to a memory mapped journal file. Positions of playing tracks are appended as small extra
+ * records. Once the journal grew well beyond its live content it's compacted into a fresh file containing only the
+ * latest state of each guild. Restoring decodes the encoded tracks locally, no url has to be resolved again.
+ *
+ * Record layout: int payload length (0 marks the end), int CRC32 of the payload, payload.
+ */
+public class QueueJournal {
+
+	private static final byte SNAPSHOT = 1;
+	private static final byte POSITION = 2;
+	private static final int HEADER = 8;
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	private static final int COMPACT_MIN_SIZE = 4 * 1024 * 1024;
+
+	private final Logger logger = new Logger("QueueJournal-Logger");
+
+	private final Path path;
+	private final AudioPlayerManager playerManager;
+	private final long flushInterval;
+	private final ScheduledExecutorService writer;
+
+	/* the latest state of each guild as read from or written to the journal. Only touched by the writer thread after open() */
+	private final Map<Long, Snapshot> snapshots = new HashMap<>();
+	/* states loaded at startup that still wait for their guild to become active */
+	private final Map<Long, Snapshot> pending = new ConcurrentHashMap<>();
+	private final Map<Long, GuildAudio> tracked = new ConcurrentHashMap<>();
+	private final Map<Long, GuildAudio> dirty = new ConcurrentHashMap<>();
+
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int liveBytes;
+
+	/**
+	 * @param file the journal file
+	 * @param playerManager used to encode and decode the tracks
+	 * @param flushInterval milliseconds between two writes of the dirty guilds
+	 */
+	public QueueJournal(File file, AudioPlayerManager playerManager, long flushInterval) {
+		this.path = file.toPath();
+		this.playerManager = playerManager;
+		this.flushInterval = flushInterval;
+		this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "QueueJournal-Writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Reads the existing journal, keeps its states until the guilds become active and starts the background writer
+	 *
+	 * @throws IOException if the journal can't be opened
+	 */
+	public void open() throws IOException {
+		long start = System.nanoTime();
+		File parent = path.toFile().getParentFile();
+		if (parent != null)
+			Files.createDirectories(parent.toPath());
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+		readRecords();
+		pending.putAll(snapshots);
+		logger.info("Read {} saved Queues from the journal in {}ms", snapshots.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		writer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts persisting the queue of the given engine. Cheap enough to be called while the engine is created
+	 *
+	 * @param audio a freshly created engine
+	 */
+	public void track(GuildAudio audio) {
+		long guildId = audio.getGuildId();
+		tracked.put(guildId, audio);
+		audio.getScheduler().setChangeListener(() -> dirty.put(guildId, audio));
+	}
+
+	/**
+	 * Restores the saved queue of the given engine if there is one. Decoding a long queue takes a while, so this is
+	 * called after the engine was published instead of while it is created. Only the first call for a guild restores
+	 * anything
+	 *
+	 * @param audio a tracked engine
+	 */
+	public void restore(GuildAudio audio) {
+		Snapshot snapshot = pending.remove(audio.getGuildId());
+		if (snapshot != null) {
+			QueueState state = decode(snapshot);
+			if (state != null)
+				audio.getScheduler().restore(state);
+		}
+	}
+
+	/**
+	 * Writes the last state of the given engine and stops persisting it. The state is kept until the guild becomes
+	 * active again, so an engine that gets destroyed while it still has a queue doesn't lose it
+	 *
+	 * @param audio an engine that is about to be destroyed
+	 */
+	public void untrack(GuildAudio audio) {
+		if (tracked.remove(audio.getGuildId(), audio)) {
+			long guildId = audio.getGuildId();
+			Snapshot snapshot;
+			try {
+				snapshot = encode(audio.getScheduler().getState());
+			} catch (IOException e) {
+				logger.error("Failed to save the Queue of Guild " + guildId, e);
+				return;
+			}
+			if (snapshot != null)
+				pending.put(guildId, snapshot);
+			try {
+				writer.execute(() -> append(guildId, snapshot));
+			} catch (RejectedExecutionException e) {
+				// already shut down, the final write contained this guild
+			}
+		}
+	}
+
+	/**
+	 * Writes the state of every active guild including the position of its playing track and closes the journal
+	 */
+	public synchronized void shutdown() {
+		if (writer.isShutdown())
+			return;
+		writer.execute(() -> {
+			for (GuildAudio audio : tracked.values())
+				append(audio.getGuildId(), audio.getScheduler().getState());
+			dirty.clear();
+			map.force();
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+			channel.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			logger.error("Failed to close the journal", e);
+		}
+	}
+
+	private void flush() {
+		try {
+			for (Long guildId : new ArrayList<>(dirty.keySet())) {
+				GuildAudio audio = dirty.remove(guildId);
+				if (audio != null)
+					append(guildId, audio.getScheduler().getState());
+			}
+			// keep the positions of playing tracks reasonably fresh without rewriting their queues
+			for (GuildAudio audio : tracked.values()) {
+				AudioTrack current = audio.getPlayer().getPlayingTrack();
+				Snapshot snapshot = snapshots.get(audio.getGuildId());
+				if (current != null && snapshot != null && snapshot.current != null)
+					appendPosition(audio.getGuildId(), current.getPosition());
+			}
+			map.force();
+			if (map.position() > COMPACT_MIN_SIZE && map.position() > 4 * liveBytes)
+				compact();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Failed to write the Queue journal", e);
+		}
+	}
+
+	private void append(long guildId, QueueState state) {
+		try {
+			append(guildId, encode(state));
+		} catch (IOException e) {
+			logger.error("Failed to append to the Queue journal", e);
+		}
+	}
+
+	private void append(long guildId, Snapshot snapshot) {
+		try {
+			if (snapshot == null) {
+				// nothing to restore anymore, an empty snapshot makes the guild disappear from the journal
+				snapshot = new Snapshot(null, 0, false, null, null, new byte[0][]);
+			}
+			byte[] payload = snapshot.toPayload(guildId);
+			writeRecord(payload);
+			Snapshot previous = snapshot.isEmpty() ? snapshots.remove(guildId) : snapshots.put(guildId, snapshot);
+			if (previous != null)
+				liveBytes -= previous.size;
+			if (!snapshot.isEmpty()) {
+				snapshot.size = payload.length + HEADER;
+				liveBytes += snapshot.size;
+			}
+		} catch (IOException e) {
+			logger.error("Failed to append to the Queue journal", e);
+		}
+	}
+
+	private void appendPosition(long guildId, long position) throws IOException {
+		Snapshot snapshot = snapshots.get(guildId);
+		if (snapshot.position == position)
+			return;
+		snapshot.position = position;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(POSITION);
+		out.writeLong(guildId);
+		out.writeLong(position);
+		writeRecord(bytes.toByteArray());
+	}
+
+	private void writeRecord(byte[] payload) throws IOException {
+		int needed = HEADER + payload.length + 4;
+		if (map.remaining() < needed) {
+			int position = map.position();
+			long size = Math.max((long) map.capacity() * 2, (long) position + needed);
+			map.force();
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			map.position(position);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		map.putInt(payload.length);
+		map.putInt((int) crc.getValue());
+		map.put(payload);
+		// the end marker is overwritten by the next record
+		map.putInt(map.position(), 0);
+	}
+
+	private void readRecords() throws IOException {
+		while (map.remaining() >= HEADER) {
+			int start = map.position();
+			int length = map.getInt();
+			int checksum = map.getInt();
+			if (length <= 0 || length > map.remaining()) {
+				map.position(start);
+				break;
+			}
+			byte[] payload = new byte[length];
+			map.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				// a record torn by a crash, everything behind it is unreliable
+				logger.warn("Queue journal is corrupted at offset {}, ignoring the rest", start);
+				map.position(start);
+				break;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = in.readByte();
+			long guildId = in.readLong();
+			if (type == SNAPSHOT) {
+				Snapshot snapshot = Snapshot.read(in);
+				snapshot.size = length + HEADER;
+				Snapshot previous = snapshot.isEmpty() ? snapshots.remove(guildId) : snapshots.put(guildId, snapshot);
+				if (previous != null)
+					liveBytes -= previous.size;
+				if (!snapshot.isEmpty())
+					liveBytes += snapshot.size;
+			} else if (type == POSITION) {
+				Snapshot snapshot = snapshots.get(guildId);
+				if (snapshot != null)
+					snapshot.position = in.readLong();
+			}
+		}
+	}
+
+	private void compact() throws IOException {
+		long start = System.nanoTime();
+		Path temp = path.resolveSibling(path.getFileName() + ".compact");
+		int before = map.position();
+		FileChannel old = channel;
+		// write the compacted journal next to the old one, which stays valid until it's replaced
+		channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, (long) liveBytes * 2));
+		liveBytes = 0;
+		for (Map.Entry<Long, Snapshot> entry : snapshots.entrySet()) {
+			Snapshot snapshot = entry.getValue();
+			byte[] payload = snapshot.toPayload(entry.getKey());
+			writeRecord(payload);
+			snapshot.size = payload.length + HEADER;
+			liveBytes += snapshot.size;
+		}
+		map.force();
+		old.close();
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Compacted Queue journal from {} to {} bytes in {}ms", before, map.position(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	private Snapshot encode(QueueState state) throws IOException {
+		if (state.isEmpty())
+			return null;
+		byte[][] queue = new byte[state.queue.size()][];
+		for (int i = 0; i < queue.length; i++)
+			queue[i] = encode(state.queue.get(i));
+		return new Snapshot(encode(state.current), state.position, state.loop, encode(state.loopTrack),
+				encode(state.lastTrack), queue);
+	}
+
+	private byte[] encode(AudioTrack track) throws IOException {
+		if (track == null)
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		playerManager.encodeTrack(new MessageOutput(out), track);
+		return out.toByteArray();
+	}
+
+	private QueueState decode(Snapshot snapshot) {
+		long start = System.nanoTime();
+		try {
+			List<AudioTrack> queue = new ArrayList<>(snapshot.queue.length);
+			for (byte[] track : snapshot.queue)
+				queue.add(decode(track));
+			QueueState state = new QueueState(queue, decode(snapshot.current), snapshot.position, snapshot.loop,
+					decode(snapshot.loopTrack), decode(snapshot.lastTrack));
+			logger.debug("Decoded {} saved AudioTracks in {}us", queue.size(),
+					TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			return state;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Failed to restore saved Queue", e);
+			return null;
+		}
+	}
+
+	private AudioTrack decode(byte[] track) throws IOException {
+		if (track == null)
+			return null;
+		return playerManager.decodeTrack(new MessageInput(new ByteArrayInputStream(track))).decodedTrack;
+	}
+
+	/**
+	 * Encoded state of a single guild
+	 */
+	private static class Snapshot {
+		final byte[] current;
+		long position;
+		final boolean loop;
+		final byte[] loopTrack;
+		final byte[] lastTrack;
+		final byte[][] queue;
+		/* bytes this snapshot occupies in the journal */
+		int size;
+
+		Snapshot(byte[] current, long position, boolean loop, byte[] loopTrack, byte[] lastTrack, byte[][] queue) {
+			this.current = current;
+			this.position = position;
+			this.loop = loop;
+			this.loopTrack = loopTrack;
+			this.lastTrack = lastTrack;
+			this.queue = queue;
+		}
+
+		boolean isEmpty() {
+			return current == null && loopTrack == null && lastTrack == null && queue.length == 0;
+		}
+
+		byte[] toPayload(long guildId) throws IOException {
+			int size = 64;
+			for (byte[] track : queue)
+				size += track.length + 4;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(SNAPSHOT);
+			out.writeLong(guildId);
+			out.writeBoolean(loop);
+			out.writeLong(position);
+			writeBytes(out, current);
+			writeBytes(out, loopTrack);
+			writeBytes(out, lastTrack);
+			out.writeInt(queue.length);
+			for (byte[] track : queue)
+				writeBytes(out, track);
+			return bytes.toByteArray();
+		}
+
+		static Snapshot read(DataInputStream in) throws IOException {
+			boolean loop = in.readBoolean();
+			long position = in.readLong();
+			byte[] current = readBytes(in);
+			byte[] loopTrack = readBytes(in);
+			byte[] lastTrack = readBytes(in);
+			byte[][] queue = new byte[in.readInt()][];
+			for (int i = 0; i < queue.length; i++)
+				queue[i] = readBytes(in);
+			return new Snapshot(current, position, loop, loopTrack, lastTrack, queue);
+		}
+
+		private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+			if (bytes == null) {
+				out.writeInt(-1);
+				return;
+			}
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private static byte[] readBytes(DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0)
+				return null;
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package jdmusicbot;
+
+import java.util.List;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Point in time copy of everything a {@link TrackScheduler} needs to continue where it stopped: the queued tracks,
+ * the playing track and its position as well as the loop and last track.
+ */
+public class QueueState {
+
+	public final List<AudioTrack> queue;
+	/* null if nothing was playing */
+	public final AudioTrack current;
+	public final long position;
+	public final boolean loop;
+	public final AudioTrack loopTrack;
+	public final AudioTrack lastTrack;
+
+	public QueueState(List<AudioTrack> queue, AudioTrack current, long position, boolean loop, AudioTrack loopTrack,
+			AudioTrack lastTrack) {
+		this.queue = queue;
+		this.current = current;
+		this.position = position;
+		this.loop = loop;
+		this.loopTrack = loopTrack;
+		this.lastTrack = lastTrack;
+	}
+
+	/**
+	 * @return true if there is nothing worth restoring
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty() && current == null && loopTrack == null && lastTrack == null;
+	}
+}
@@ -0,0 +1,264 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Sends a search query to several search sources ("ytsearch:", "scsearch:", ...) at the same time. The first source
+ * that finds something answers the search and the loads of the other sources are cancelled. If no source found
+ * anything within the deadline, the search fails instead of waiting for a slow provider. The answer time is recorded
+ * per source for every source that answered before the search was decided, including empty answers and failures.
+ * Sources that hadn't answered when another source won or the deadline passed are counted as cancelled per source, so
+ * a slow provider shows up there instead of in the answer times.
+ */
+public class SearchFanout {
+
+	private final Logger logger = new Logger("SearchFanout-Logger");
+
+	private final TrackCache trackCache;
+	private final List<String> sources;
+	private final long deadline;
+	private final ScheduledExecutorService timer;
+	private final Histogram[] latencies;
+	private final Counter[] wins;
+	private final Counter[] cancelled;
+	private final Counter timeouts = Metrics.counter("jdmusicbot_search_timeouts_total", "Searches no source answered within the deadline");
+
+	/**
+	 * @param trackCache loads the queries, so repeated searches are answered from the cache
+	 * @param sources the search prefixes without colon, e.g. ytsearch and scsearch
+	 * @param deadline milliseconds after which a search without result fails
+	 */
+	public SearchFanout(TrackCache trackCache, List<String> sources, long deadline) {
+		this.trackCache = trackCache;
+		this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+		this.deadline = deadline;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "SearchFanout-Timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.latencies = new Histogram[sources.size()];
+		this.wins = new Counter[sources.size()];
+		this.cancelled = new Counter[sources.size()];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = Metrics.latency("jdmusicbot_search_duration_seconds", "Time a search source needed to answer a query", "source", this.sources.get(i));
+			wins[i] = Metrics.counter("jdmusicbot_search_wins_total", "Searches answered by a source", "source", this.sources.get(i));
+			cancelled[i] = Metrics.counter("jdmusicbot_search_cancelled_total", "Searches a source hadn't answered when another source won or the deadline passed", "source", this.sources.get(i));
+		}
+	}
+
+	/**
+	 * Searches all sources. The handler is called exactly once: with the first result that contains a track, with
+	 * noMatches if every source answered without one, or with loadFailed if all sources failed or the deadline passed
+	 *
+	 * @param query the words to search for
+	 * @param handler receives the result
+	 */
+	public void search(String query, AudioLoadResultHandler handler) {
+		Search search = new Search(query, handler);
+		synchronized (search) {
+			search.timeout = timer.schedule(search::timedOut, deadline, TimeUnit.MILLISECONDS);
+		}
+		for (int i = 0; i < sources.size() && search.ask(i); i++)
+			search.started(trackCache.loadItem(sources.get(i) + ":" + query, search.new SourceHandler(i)));
+	}
+
+	public List<String> getSources() {
+		return sources;
+	}
+
+	/**
+	 * @return the answer times of the source
+	 */
+	public Histogram getLatency(int source) {
+		return latencies[source];
+	}
+
+	/**
+	 * @return how many searches were answered by the source
+	 */
+	public long getWins(int source) {
+		return wins[source].get();
+	}
+
+	/**
+	 * @return how many searches were decided before the source answered
+	 */
+	public long getCancelled(int source) {
+		return cancelled[source].get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Stops the timer, running searches never time out
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private class Search {
+		private final String query;
+		private final AudioLoadResultHandler handler;
+		private final long start = System.nanoTime();
+		/* all following fields are guarded by the lock of this search */
+		private final List<Future<?>> loads = new ArrayList<>(sources.size());
+		private Future<?> timeout;
+		private boolean finished;
+		private int remaining = sources.size();
+		private boolean nothingFound;
+		private FriendlyException failure;
+		/* sources the query was sent to and sources that answered it */
+		private final boolean[] asked = new boolean[sources.size()];
+		private final boolean[] answered = new boolean[sources.size()];
+
+		Search(String query, AudioLoadResultHandler handler) {
+			this.query = query;
+			this.handler = handler;
+		}
+
+		/**
+		 * @return false if the search is decided already and the source doesn't have to be asked anymore
+		 */
+		synchronized boolean ask(int source) {
+			if (finished)
+				return false;
+			asked[source] = true;
+			return true;
+		}
+
+		/**
+		 * @return false if the answer came after the search was decided
+		 */
+		synchronized boolean answer(int source) {
+			if (finished)
+				return false;
+			answered[source] = true;
+			return true;
+		}
+
+		synchronized void started(Future<?> load) {
+			if (finished)
+				load.cancel(true);
+			else
+				loads.add(load);
+		}
+
+		/**
+		 * @return true if the caller answers the search, false if it was answered already
+		 */
+		synchronized boolean finish() {
+			if (finished)
+				return false;
+			finished = true;
+			for (int i = 0; i < asked.length; i++) {
+				if (asked[i] && !answered[i])
+					cancelled[i].increment();
+			}
+			for (Future<?> load : loads)
+				load.cancel(true);
+			loads.clear();
+			if (timeout != null)
+				timeout.cancel(false);
+			return true;
+		}
+
+		void timedOut() {
+			if (!finish())
+				return;
+			timeouts.increment();
+			logger.debug("No source answered {} within {}ms", query, deadline);
+			handler.loadFailed(new FriendlyException("No search source answered within " + deadline + "ms", FriendlyException.Severity.COMMON, null));
+		}
+
+		/**
+		 * Called once per source that answered without a track
+		 *
+		 * @param exception why the source failed or null if it found nothing
+		 */
+		void empty(FriendlyException exception) {
+			FriendlyException failed;
+			synchronized (this) {
+				if (exception == null)
+					nothingFound = true;
+				else
+					failure = exception;
+				if (--remaining > 0)
+					return;
+				/* one source that found nothing makes the search a miss rather than an error */
+				failed = nothingFound ? null : failure;
+			}
+			if (!finish())
+				return;
+			if (failed != null)
+				handler.loadFailed(failed);
+			else
+				handler.noMatches();
+		}
+
+		private class SourceHandler implements AudioLoadResultHandler {
+			private final int source;
+
+			SourceHandler(int source) {
+				this.source = source;
+			}
+
+			private boolean answered() {
+				if (!answer(source))
+					return false;
+				latencies[source].record(System.nanoTime() - start);
+				return true;
+			}
+
+			@Override
+			public void trackLoaded(AudioTrack track) {
+				if (answered() && finish()) {
+					wins[source].increment();
+					logger.debug("{} answered {} first after {}ms", sources.get(source), query, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					handler.trackLoaded(track);
+				}
+			}
+
+			@Override
+			public void playlistLoaded(AudioPlaylist playlist) {
+				if (!answered())
+					return;
+				if (playlist.getTracks().isEmpty()) {
+					empty(null);
+				} else if (finish()) {
+					wins[source].increment();
+					logger.debug("{} answered {} first after {}ms", sources.get(source), query, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					handler.playlistLoaded(playlist);
+				}
+			}
+
+			@Override
+			public void noMatches() {
+				if (answered())
+					empty(null);
+			}
+
+			@Override
+			public void loadFailed(FriendlyException exception) {
+				/* a cancelled load may still report its interruption */
+				if (!answered())
+					return;
+				logger.debug("{} failed to search {}: {}", sources.get(source), query, exception.getMessage());
+				empty(exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,550 @@
+package jdmusicbot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+
+/**
+ * In-process inverted index over every track the bot loaded or played, so #search can answer queries for known songs
+ * without asking YouTube. Title, author and uri are split into lower case tokens. Every token has a posting list of the
+ * tracks containing it (sorted int arrays) and every token is also indexed by its trigrams, which allows prefix
+ * matches for the last word of a query and fuzzy matches for misspelled words.
+ *
+ * A query only counts as a hit if every word of it matched and the best track is clearly described by it, otherwise
+ * the caller falls back to a remote search. The tracks are persisted as lavaplayer encoded tracks in a compact binary
+ * file, the postings are rebuilt when the file is loaded.
+ *
+ * New tracks are encoded and indexed on the writer thread, which is the only thread changing the index once it's
+ * open. The audio threads that report started tracks never wait for it.
+ */
+public class SearchIndex {
+
+	private static final int MAGIC = 0x4A445349; // JDSI
+	private static final int VERSION = 1;
+
+	/* weight of a query word that matched a token exactly, as prefix of a token or fuzzy */
+	private static final float EXACT = 1f;
+	private static final float PREFIX = 0.9f;
+	private static final float FUZZY = 0.8f;
+	/* minimum dice coefficient of the trigrams of two words to count as fuzzy match */
+	private static final float MIN_SIMILARITY = 0.6f;
+	/* tokens considered per query word for prefix and fuzzy matches */
+	private static final int MAX_EXPANSIONS = 32;
+	/* a single word query only hits if it covers this share of the title and author words */
+	private static final float MIN_SINGLE_WORD_COVERAGE = 0.5f;
+	private static final float MIN_SCORE = 0.75f;
+
+	private final Logger logger = new Logger("SearchIndex-Logger");
+
+	private final AudioPlayerManager playerManager;
+	private final Path path;
+	private final int maxTracks;
+	private final ScheduledExecutorService writer;
+
+	/* guarded by the lock of the index, replaced as a whole when the index shrinks */
+	private Postings index = new Postings();
+	private boolean dirty;
+	/* the writer and shutdown() must not write the file at the same time */
+	private final Object fileLock = new Object();
+
+	private final Counter hits = Metrics.counter("jdmusicbot_search_index_hits_total", "#search queries answered by the local index");
+	private final Counter misses = Metrics.counter("jdmusicbot_search_index_misses_total", "#search queries the local index couldn't answer");
+	private final Histogram latency = Metrics.latency("jdmusicbot_search_index_seconds", "Time the local index took to answer a query");
+
+	/**
+	 * @param playerManager used to encode and decode the tracks
+	 * @param file where the index is persisted
+	 * @param maxTracks upper bound of indexed tracks, the least recently used ones are dropped beyond that
+	 * @param flushInterval milliseconds between two writes of a changed index
+	 */
+	public SearchIndex(AudioPlayerManager playerManager, File file, int maxTracks, long flushInterval) {
+		this.playerManager = playerManager;
+		this.path = file.toPath();
+		this.maxTracks = maxTracks;
+		this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "SearchIndex-Writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Metrics.gauge("jdmusicbot_search_index_tracks", "Tracks in the local search index", this::size);
+		writer.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads the persisted index if there is one
+	 */
+	public void open() throws IOException {
+		if (!Files.exists(path))
+			return;
+		long start = System.nanoTime();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				throw new IOException("Not a search index: " + path);
+			int count = in.readInt();
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					String uri = in.readUTF();
+					String title = in.readUTF();
+					String author = in.readUTF();
+					int plays = readVarInt(in);
+					long lastUsed = in.readLong();
+					byte[] encoded = new byte[readVarInt(in)];
+					in.readFully(encoded);
+					index.insert(new Doc(uri, title, author, encoded, plays, lastUsed));
+				}
+			}
+		} catch (EOFException e) {
+			logger.warn("Search index {} is truncated, keeping the tracks read so far", path);
+		}
+		logger.info("Read {} tracks of the search index in {}ms", size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Adds a track to the index or refreshes it if it's known already. Returns right away, the track is indexed on the
+	 * writer thread
+	 *
+	 * @param track a track that was loaded or started
+	 * @param played true if the track started playing
+	 */
+	public void add(AudioTrack track, boolean played) {
+		AudioTrackInfo info = track.getInfo();
+		if (info.isStream || info.uri == null)
+			return;
+		long now = System.currentTimeMillis();
+		try {
+			writer.execute(() -> index(track, played, now));
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	private void index(AudioTrack track, boolean played, long now) {
+		AudioTrackInfo info = track.getInfo();
+		byte[] encoded;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			playerManager.encodeTrack(new MessageOutput(out), track);
+			encoded = out.toByteArray();
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to encode AudioTrack for the search index", e);
+			return;
+		}
+		boolean full;
+		synchronized (this) {
+			dirty = true;
+			Integer known = index.docsByUri.get(info.uri);
+			if (known != null) {
+				Doc doc = index.docs.get(known);
+				doc.encoded = encoded;
+				doc.lastUsed = now;
+				if (played)
+					doc.plays++;
+				return;
+			}
+			index.insert(new Doc(info.uri, info.title, info.author, encoded, played ? 1 : 0, now));
+			full = index.docs.size() > maxTracks;
+		}
+		if (full)
+			shrink();
+	}
+
+	/**
+	 * Looks the query up in the index
+	 *
+	 * @param query the words of a #search
+	 * @return a fresh track that matches the query well or null if the query should be sent to a remote search
+	 */
+	public AudioTrack search(String query) {
+		long start = System.nanoTime();
+		byte[] encoded = find(query);
+		AudioTrack track = null;
+		if (encoded != null) {
+			try {
+				track = playerManager.decodeTrack(new MessageInput(new ByteArrayInputStream(encoded))).decodedTrack;
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Failed to decode AudioTrack of the search index", e);
+			}
+		}
+		latency.record(System.nanoTime() - start);
+		if (track != null)
+			hits.increment();
+		else
+			misses.increment();
+		return track;
+	}
+
+	public synchronized int size() {
+		return index.docs.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the encoded track that matches the query best or null if no track matches well enough
+	 */
+	synchronized byte[] find(String query) {
+		List<String> words = tokenize(query);
+		List<Doc> docs = index.docs;
+		if (words.isEmpty() || docs.isEmpty())
+			return null;
+		/* the tokens every word may stand for with their weights */
+		List<Map<Integer, Float>> expansions = new ArrayList<>(words.size());
+		int rarest = -1;
+		int rarestCount = Integer.MAX_VALUE;
+		for (int i = 0; i < words.size(); i++) {
+			Map<Integer, Float> expansion = expand(words.get(i), i == words.size() - 1);
+			if (expansion.isEmpty())
+				return null;
+			expansions.add(expansion);
+			int count = 0;
+			for (int token : expansion.keySet())
+				count += index.postings.get(token).size;
+			if (count < rarestCount) {
+				rarestCount = count;
+				rarest = i;
+			}
+		}
+		/* only tracks containing the rarest word are candidates, every other word is checked against their tokens */
+		Doc best = null;
+		float bestScore = 0;
+		float bestCoverage = 0;
+		BitSet seen = new BitSet(docs.size());
+		for (int token : expansions.get(rarest).keySet()) {
+			IntList list = index.postings.get(token);
+			for (int i = 0; i < list.size; i++) {
+				int docId = list.data[i];
+				if (seen.get(docId))
+					continue;
+				seen.set(docId);
+				Doc doc = docs.get(docId);
+				float score = 0;
+				int matched = 0;
+				for (Map<Integer, Float> expansion : expansions) {
+					float weight = 0;
+					for (int docToken : doc.tokens) {
+						Float w = expansion.get(docToken);
+						if (w != null && w > weight)
+							weight = w;
+					}
+					if (weight == 0) {
+						score = -1;
+						break;
+					}
+					score += weight;
+					matched++;
+				}
+				if (score < 0)
+					continue;
+				score /= words.size();
+				float coverage = Math.min(1f, (float) matched / Math.max(1, doc.words));
+				if (best == null || score > bestScore || score == bestScore && (coverage > bestCoverage
+						|| coverage == bestCoverage && doc.plays > best.plays)) {
+					best = doc;
+					bestScore = score;
+					bestCoverage = coverage;
+				}
+			}
+		}
+		if (best == null || bestScore < MIN_SCORE || words.size() == 1 && bestCoverage < MIN_SINGLE_WORD_COVERAGE)
+			return null;
+		return best.encoded;
+	}
+
+	/**
+	 * @return the tokens a query word may stand for: the word itself, words starting with it if it's the last word of the
+	 *         query (which may be incomplete) and, if the word isn't known at all, words with similar trigrams
+	 */
+	private Map<Integer, Float> expand(String word, boolean last) {
+		Map<Integer, Float> expansion = new HashMap<>();
+		TreeMap<String, Integer> tokenIds = index.tokenIds;
+		Integer exact = tokenIds.get(word);
+		if (exact != null)
+			expansion.put(exact, EXACT);
+		if (last && word.length() >= 2) {
+			for (Integer token : tokenIds.subMap(word, false, word + Character.MAX_VALUE, false).values()) {
+				if (expansion.size() >= MAX_EXPANSIONS)
+					break;
+				expansion.put(token, PREFIX);
+			}
+		}
+		if (exact == null && word.length() >= 3) {
+			List<String> grams = trigramsOf(word);
+			Map<Integer, Integer> shared = new HashMap<>();
+			for (String gram : grams) {
+				IntList list = index.trigrams.get(gram);
+				if (list != null)
+					for (int i = 0; i < list.size; i++)
+						shared.merge(list.data[i], 1, Integer::sum);
+			}
+			List<Map.Entry<Integer, Integer>> candidates = new ArrayList<>(shared.entrySet());
+			candidates.sort(Comparator.comparing(Map.Entry<Integer, Integer>::getValue).reversed());
+			for (Map.Entry<Integer, Integer> candidate : candidates) {
+				if (expansion.size() >= MAX_EXPANSIONS)
+					break;
+				int other = trigramCount(index.tokens.get(candidate.getKey()));
+				float similarity = 2f * candidate.getValue() / (grams.size() + other);
+				if (similarity >= MIN_SIMILARITY)
+					expansion.merge(candidate.getKey(), FUZZY * similarity, Math::max);
+			}
+		}
+		return expansion;
+	}
+
+	/* ------------------------ BUILDING ------------------------ */
+
+	/**
+	 * Drops the least recently used tenth of the tracks. The postings of the remaining tracks are rebuilt without the
+	 * lock, so searches go on with the old postings meanwhile. Only called on the writer thread, which is the only one
+	 * changing the index, so nothing is added in between
+	 */
+	private void shrink() {
+		long start = System.nanoTime();
+		List<Doc> kept;
+		synchronized (this) {
+			kept = new ArrayList<>(index.docs.size());
+			for (Doc doc : index.docs)
+				kept.add(new Doc(doc.uri, doc.title, doc.author, doc.encoded, doc.plays, doc.lastUsed));
+		}
+		kept.sort(Comparator.comparingLong((Doc doc) -> doc.lastUsed).reversed());
+		kept = kept.subList(0, maxTracks - maxTracks / 10);
+		kept.sort(Comparator.comparingLong((Doc doc) -> doc.lastUsed));
+		Postings rebuilt = new Postings();
+		for (Doc doc : kept)
+			rebuilt.insert(doc);
+		synchronized (this) {
+			index = rebuilt;
+		}
+		logger.info("Shrank the search index to {} tracks in {}ms", kept.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Splits text into lower case words of letters and digits
+	 */
+	static List<String> tokenize(String text) {
+		List<String> words = new ArrayList<>();
+		if (text == null)
+			return words;
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * @return the trigrams of the word with a marker at both ends, so short words and word boundaries count too
+	 */
+	private static List<String> trigramsOf(String word) {
+		String padded = "^" + word + "$";
+		List<String> grams = new ArrayList<>(padded.length() - 2);
+		for (int i = 0; i + 3 <= padded.length(); i++) {
+			String gram = padded.substring(i, i + 3);
+			if (!grams.contains(gram))
+				grams.add(gram);
+		}
+		return grams;
+	}
+
+	private static int trigramCount(String word) {
+		return trigramsOf(word).size();
+	}
+
+	/* ------------------------ PERSISTENCE ------------------------ */
+
+	/**
+	 * Stops the background writer and writes the index if it changed since the last write
+	 */
+	public void shutdown() {
+		writer.shutdown();
+		flush();
+	}
+
+	private void flush() {
+		synchronized (fileLock) {
+			write();
+		}
+	}
+
+	private void write() {
+		List<Doc> snapshot;
+		synchronized (this) {
+			if (!dirty)
+				return;
+			dirty = false;
+			snapshot = new ArrayList<>(index.docs.size());
+			for (Doc doc : index.docs)
+				snapshot.add(new Doc(doc.uri, doc.title, doc.author, doc.encoded, doc.plays, doc.lastUsed));
+		}
+		long start = System.nanoTime();
+		try {
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				out.writeInt(snapshot.size());
+				for (Doc doc : snapshot) {
+					out.writeUTF(doc.uri);
+					out.writeUTF(doc.title);
+					out.writeUTF(doc.author);
+					writeVarInt(out, doc.plays);
+					out.writeLong(doc.lastUsed);
+					writeVarInt(out, doc.encoded.length);
+					out.write(doc.encoded);
+				}
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			logger.debug("Wrote {} tracks of the search index in {}ms", snapshot.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (IOException e) {
+			logger.error("Failed to write the search index", e);
+			synchronized (this) {
+				dirty = true;
+			}
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static final class Doc {
+		final String uri;
+		final String title;
+		final String author;
+		byte[] encoded;
+		int plays;
+		long lastUsed;
+		/* ids of the distinct tokens of title, author and uri */
+		int[] tokens;
+		/* number of distinct words in title and author */
+		int words;
+
+		Doc(String uri, String title, String author, byte[] encoded, int plays, long lastUsed) {
+			this.uri = uri;
+			this.title = title != null ? title : "";
+			this.author = author != null ? author : "";
+			this.encoded = encoded;
+			this.plays = plays;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/**
+	 * The indexed tracks with the postings of their tokens and the trigrams of the tokens
+	 */
+	private static final class Postings {
+		final List<Doc> docs = new ArrayList<>();
+		final Map<String, Integer> docsByUri = new HashMap<>();
+		/* sorted so prefixes are a range */
+		final TreeMap<String, Integer> tokenIds = new TreeMap<>();
+		final List<String> tokens = new ArrayList<>();
+		final List<IntList> postings = new ArrayList<>();
+		final Map<String, IntList> trigrams = new HashMap<>();
+
+		void insert(Doc doc) {
+			int docId = docs.size();
+			docs.add(doc);
+			docsByUri.put(doc.uri, docId);
+			List<String> words = tokenize(doc.title + " " + doc.author);
+			List<String> all = new ArrayList<>(words);
+			all.addAll(tokenize(doc.uri));
+			int[] ids = new int[all.size()];
+			int count = 0;
+			for (String word : all) {
+				int token = tokenId(word);
+				/* a track is in the postings of a token only once */
+				IntList list = postings.get(token);
+				if (list.size > 0 && list.data[list.size - 1] == docId)
+					continue;
+				list.add(docId);
+				ids[count++] = token;
+			}
+			doc.tokens = Arrays.copyOf(ids, count);
+			doc.words = (int) words.stream().distinct().count();
+		}
+
+		private int tokenId(String word) {
+			Integer id = tokenIds.get(word);
+			if (id != null)
+				return id;
+			id = tokens.size();
+			tokenIds.put(word, id);
+			tokens.add(word);
+			postings.add(new IntList());
+			for (String gram : trigramsOf(word))
+				trigrams.computeIfAbsent(gram, g -> new IntList()).add(id);
+			return id;
+		}
+	}
+
+	/**
+	 * Growable array of ints, used for the postings
+	 */
+	private static final class IntList {
+		int[] data = new int[4];
+		int size;
+
+		void add(int value) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = value;
+		}
+	}
+}
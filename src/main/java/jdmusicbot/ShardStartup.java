@@ -0,0 +1,130 @@
+package jdmusicbot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+
+/**
+ * Reports how long every shard took from the start of the bot until it was ready and when all shards of this process
+ * are ready. The times are logged and exported as jdmusicbot_shard_ready_seconds{shard="..."} and
+ * jdmusicbot_startup_seconds.
+ *
+ * Once all shards are ready the heap is measured after a full GC and logged and exported as heap per guild, which is
+ * dominated by JDA's entity caches and shows what a gateway configuration costs.
+ */
+public class ShardStartup extends ListenerAdapter {
+
+	private final Logger logger = new Logger("ShardStartup-Logger");
+
+	private final long started;
+	/* nanoseconds from start until ready per shard id */
+	private final Map<Integer, Long> readyAfter = new ConcurrentSkipListMap<>();
+	private final Map<Integer, JDA> shards = new ConcurrentSkipListMap<>();
+	private final AtomicBoolean allReady = new AtomicBoolean();
+	private volatile int expected;
+	private volatile long startupDuration;
+	/* used heap after the full GC that followed the startup divided by the guilds at that time */
+	private volatile long heapPerGuild;
+
+	/**
+	 * @param started System.nanoTime() when the bot was started
+	 */
+	public ShardStartup(long started) {
+		this.started = started;
+		Metrics.gauge("jdmusicbot_shards_ready", "Shards of this process that are ready", () -> readyAfter.size());
+		Metrics.gauge("jdmusicbot_startup_seconds", "Time from the start of the bot until all of its shards were ready", () -> startupDuration / 1e9);
+		Metrics.gauge("jdmusicbot_guilds", "Guilds of all ready shards of this process", this::getGuilds);
+		Metrics.gauge("jdmusicbot_heap_per_guild_bytes", "Used heap after the full GC at startup divided by the guilds of this process", this::getHeapPerGuild);
+	}
+
+	/**
+	 * @param shards how many shards this process starts
+	 */
+	public void expect(int shards) {
+		this.expected = shards;
+		checkAllReady();
+	}
+
+	@Override
+	public void onReady(ReadyEvent event) {
+		long elapsed = System.nanoTime() - started;
+		JDA.ShardInfo shard = event.getJDA().getShardInfo();
+		if (readyAfter.putIfAbsent(shard.getShardId(), elapsed) != null)
+			return;
+		shards.put(shard.getShardId(), event.getJDA());
+		Metrics.gauge("jdmusicbot_shard_ready_seconds", "Time from the start of the bot until the shard was ready", "shard",
+				String.valueOf(shard.getShardId()), () -> elapsed / 1e9);
+		logger.info("Shard {} ready after {} ms with {} guilds", shard.getShardString(), TimeUnit.NANOSECONDS.toMillis(elapsed), event.getGuildTotalCount());
+		checkAllReady();
+	}
+
+	private void checkAllReady() {
+		int shards = expected;
+		if (shards <= 0 || readyAfter.size() < shards || !allReady.compareAndSet(false, true))
+			return;
+		long slowest = 0;
+		for (long elapsed : readyAfter.values())
+			slowest = Math.max(slowest, elapsed);
+		startupDuration = slowest;
+		logger.info("All {} shards ready after {} ms", shards, TimeUnit.NANOSECONDS.toMillis(slowest));
+		/* the GC stalls for a moment, not on the event thread of the last shard */
+		Thread measurement = new Thread(this::logHeapPerGuild, "ShardStartup-Heap");
+		measurement.setDaemon(true);
+		measurement.start();
+	}
+
+	private void logHeapPerGuild() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		memory.gc();
+		long used = memory.getHeapMemoryUsage().getUsed();
+		int guilds = getGuilds();
+		heapPerGuild = guilds == 0 ? 0 : used / guilds;
+		logger.info("Heap after startup: {} MiB for {} guilds, {} KiB per guild", used >> 20, guilds, guilds == 0 ? 0 : (used / guilds) >> 10);
+	}
+
+	/**
+	 * @return the number of guilds of all ready shards
+	 */
+	public int getGuilds() {
+		int guilds = 0;
+		for (JDA jda : shards.values())
+			guilds += (int) jda.getGuildCache().size();
+		return guilds;
+	}
+
+	/**
+	 * @return the used heap in bytes after the full GC at startup divided by the number of guilds, 0 until it was
+	 *         measured or without any guild
+	 */
+	public long getHeapPerGuild() {
+		return heapPerGuild;
+	}
+
+	/**
+	 * @return how many shards are ready
+	 */
+	public int getReadyShards() {
+		return readyAfter.size();
+	}
+
+	/**
+	 * @return how many shards this process starts, 0 if not known yet
+	 */
+	public int getExpectedShards() {
+		return expected;
+	}
+
+	/**
+	 * @return milliseconds from the start of the bot until all of its shards were ready, 0 if they aren't ready yet
+	 */
+	public long getStartupDuration() {
+		return TimeUnit.NANOSECONDS.toMillis(startupDuration);
+	}
+}
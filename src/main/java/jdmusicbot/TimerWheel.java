@@ -0,0 +1,143 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for a large number of coarse timeouts that are mostly cancelled or moved before they expire, like
+ * one idle timeout per guild. Scheduling and cancelling are O(1), a single thread advances the wheel one slot per tick
+ * and runs the expired timeouts. A timeout fires on the first tick at or after its delay, so it fires up to one tick
+ * late but never early.
+ */
+public class TimerWheel {
+
+	private final Logger logger = new Logger("TimerWheel-Logger");
+
+	private final long tickNanos;
+	/* every slot is the head of a doubly linked list of timeouts, an empty slot is null */
+	private final Timeout[] slots;
+	private final Thread worker;
+	/* System.nanoTime() of tick 0, tick n is processed n ticks later */
+	private final long start = System.nanoTime();
+	/* last tick that was processed, only changed while holding the lock */
+	private long current;
+	private volatile boolean stopped;
+
+	/**
+	 * @param name name of the thread advancing the wheel
+	 * @param tick duration of a tick
+	 * @param slots number of slots, timeouts longer than slots * tick wait for more than one round
+	 */
+	public TimerWheel(String name, long tick, TimeUnit unit, int slots) {
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		this.slots = new Timeout[slots];
+		this.worker = new Thread(this::run, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * @param delay time until the task runs
+	 * @param task runs on the thread of the wheel, so it has to be short
+	 * @return the timeout that can be cancelled until it fired
+	 */
+	public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+		long due = System.nanoTime() - start + unit.toNanos(delay);
+		Timeout timeout = new Timeout(task);
+		synchronized (this) {
+			/* the first tick that is processed at or after the due time */
+			long deadline = Math.max(current + 1, (due + tickNanos - 1) / tickNanos);
+			timeout.rounds = (deadline - current - 1) / slots.length;
+			timeout.slot = (int) (deadline % slots.length);
+			timeout.next = slots[timeout.slot];
+			if (timeout.next != null)
+				timeout.next.prev = timeout;
+			slots[timeout.slot] = timeout;
+		}
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel, pending timeouts never fire
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private synchronized boolean unlink(Timeout timeout) {
+		if (timeout.slot < 0)
+			return false;
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		return true;
+	}
+
+	private void run() {
+		List<Timeout> expired = new ArrayList<>();
+		while (!stopped) {
+			try {
+				long wait = (current + 1) * tickNanos - (System.nanoTime() - start);
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+					continue;
+				}
+			} catch (InterruptedException e) {
+				continue;
+			}
+			synchronized (this) {
+				current++;
+				Timeout timeout = slots[(int) (current % slots.length)];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.rounds == 0) {
+						unlink(timeout);
+						expired.add(timeout);
+					} else {
+						timeout.rounds--;
+					}
+					timeout = next;
+				}
+			}
+			for (Timeout timeout : expired) {
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					logger.error("Timeout failed", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * A scheduled task of a {@link TimerWheel}
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		/* slot of the wheel or -1 once the timeout fired or was cancelled */
+		private int slot;
+		private long rounds;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * @return true if the timeout was cancelled, false if it already fired or was cancelled before
+		 */
+		public boolean cancel() {
+			return unlink(this);
+		}
+	}
+}
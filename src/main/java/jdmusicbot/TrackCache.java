@@ -0,0 +1,277 @@
+package jdmusicbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist;
+
+/**
+ * Cache of resolved items in front of {@link AudioPlayerManager#loadItem}. Results are stored as lavaplayer encoded
+ * tracks under the normalized identifier, so loading the same url or search query again is answered locally by
+ * decoding the tracks instead of asking YouTube/SoundCloud again. The cache is bounded by the number of cached tracks
+ * (least recently used entries go first) and every entry expires after a fixed time.
+ */
+public class TrackCache {
+
+	private final Logger logger = new Logger("TrackCache-Logger");
+
+	private final AudioPlayerManager playerManager;
+	private final int maxTracks;
+	private final long ttl;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private int cachedTracks;
+
+	private final Counter hits = Metrics.counter("jdmusicbot_track_cache_hits_total", "Items answered from the track cache");
+	private final Counter misses = Metrics.counter("jdmusicbot_track_cache_misses_total", "Items resolved by lavaplayer");
+	private final Counter evictions = Metrics.counter("jdmusicbot_track_cache_evictions_total", "Track cache entries dropped because they expired or the cache was full");
+
+	/**
+	 * @param playerManager the manager resolving and encoding the tracks
+	 * @param maxTracks how many tracks may be cached in total over all entries
+	 * @param ttl milliseconds after which a cached entry is resolved again
+	 */
+	public TrackCache(AudioPlayerManager playerManager, int maxTracks, long ttl) {
+		this.playerManager = playerManager;
+		this.maxTracks = maxTracks;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Loads the given item. On a cache hit the handler is called directly on the calling thread, on a miss the item is
+	 * resolved by lavaplayer and the result gets cached before it's passed on to the handler
+	 *
+	 * @param identifier url or search query as accepted by {@link AudioPlayerManager#loadItem}
+	 * @param handler receives the result
+	 * @return the running load that can be cancelled, already completed on a cache hit
+	 */
+	public Future<Void> loadItem(String identifier, AudioLoadResultHandler handler) {
+		String key = normalize(identifier);
+		Entry entry = get(key);
+		if (entry != null) {
+			List<AudioTrack> tracks = decode(entry);
+			if (tracks != null) {
+				hits.increment();
+				logger.debug("Cache hit for: {}", key);
+				if (entry.playlistName == null)
+					handler.trackLoaded(tracks.get(0));
+				else
+					handler.playlistLoaded(new BasicAudioPlaylist(entry.playlistName, tracks,
+							entry.selected >= 0 ? tracks.get(entry.selected) : null, entry.searchResult));
+				return CompletableFuture.completedFuture(null);
+			}
+			// entries that can't be decoded anymore are useless
+			remove(key);
+		}
+		misses.increment();
+		return playerManager.loadItem(identifier, new CachingHandler(key, handler, System.nanoTime()));
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how many entries were dropped because they expired or the cache was full
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of tracks over all cached entries
+	 */
+	public synchronized int getCachedTracks() {
+		return cachedTracks;
+	}
+
+	/**
+	 * Normalizes an identifier so equivalent requests share one cache entry. Surrounding and repeated whitespace is
+	 * removed and search queries ("ytsearch:", "scsearch:") are compared case insensitive. URLs keep their case since
+	 * video ids are case sensitive
+	 *
+	 * @param identifier the identifier as given by the user
+	 * @return the cache key
+	 */
+	static String normalize(String identifier) {
+		String trimmed = identifier.trim();
+		StringBuilder builder = new StringBuilder(trimmed.length());
+		boolean space = false;
+		for (int i = 0; i < trimmed.length(); i++) {
+			char c = trimmed.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if (space)
+				builder.append(' ');
+			space = false;
+			builder.append(c);
+		}
+		String key = builder.toString();
+		int colon = key.indexOf(':');
+		if (colon > 0 && key.regionMatches(true, colon - 6, "search", 0, 6)) {
+			int start = colon + 1;
+			while (start < key.length() && key.charAt(start) == ' ')
+				start++;
+			key = key.substring(0, colon + 1).toLowerCase() + key.substring(start).toLowerCase();
+		}
+		return key;
+	}
+
+	private synchronized Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+			entries.remove(key);
+			cachedTracks -= entry.tracks.length;
+			evictions.increment();
+			return null;
+		}
+		return entry;
+	}
+
+	private synchronized void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			cachedTracks -= entry.tracks.length;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		if (entry.tracks.length > maxTracks)
+			return;
+		Entry previous = entries.put(key, entry);
+		if (previous != null)
+			cachedTracks -= previous.tracks.length;
+		cachedTracks += entry.tracks.length;
+		Iterator<Entry> it = entries.values().iterator();
+		while (cachedTracks > maxTracks && it.hasNext()) {
+			Entry eldest = it.next();
+			if (eldest == entry)
+				continue;
+			it.remove();
+			cachedTracks -= eldest.tracks.length;
+			evictions.increment();
+		}
+	}
+
+	private Entry encode(List<AudioTrack> tracks, String playlistName, int selected, boolean searchResult) {
+		byte[][] encoded = new byte[tracks.size()][];
+		try {
+			for (int i = 0; i < encoded.length; i++) {
+				AudioTrack track = tracks.get(i);
+				// the url of a live stream may expire at any time
+				if (track.getInfo().isStream)
+					return null;
+				ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+				playerManager.encodeTrack(new MessageOutput(out), track);
+				encoded[i] = out.toByteArray();
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to encode AudioTrack for the cache", e);
+			return null;
+		}
+		return new Entry(encoded, playlistName, selected, searchResult, System.currentTimeMillis() + ttl);
+	}
+
+	private List<AudioTrack> decode(Entry entry) {
+		List<AudioTrack> tracks = new ArrayList<>(entry.tracks.length);
+		try {
+			for (byte[] bytes : entry.tracks)
+				tracks.add(playerManager.decodeTrack(new MessageInput(new ByteArrayInputStream(bytes))).decodedTrack);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to decode cached AudioTrack", e);
+			return null;
+		}
+		return tracks;
+	}
+
+	private static class Entry {
+		final byte[][] tracks;
+		/* null if the entry is a single track */
+		final String playlistName;
+		final int selected;
+		final boolean searchResult;
+		final long expiresAt;
+
+		Entry(byte[][] tracks, String playlistName, int selected, boolean searchResult, long expiresAt) {
+			this.tracks = tracks;
+			this.playlistName = playlistName;
+			this.selected = selected;
+			this.searchResult = searchResult;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Stores successful results in the cache and passes every result on to the actual handler
+	 */
+	private class CachingHandler implements AudioLoadResultHandler {
+		private final String key;
+		private final AudioLoadResultHandler handler;
+		private final long start;
+
+		CachingHandler(String key, AudioLoadResultHandler handler, long start) {
+			this.key = key;
+			this.handler = handler;
+			this.start = start;
+		}
+
+		private void resolved() {
+			Metrics.LOAD_DURATION.record(System.nanoTime() - start);
+		}
+
+		@Override
+		public void trackLoaded(AudioTrack track) {
+			resolved();
+			List<AudioTrack> tracks = new ArrayList<>(1);
+			tracks.add(track);
+			Entry entry = encode(tracks, null, -1, false);
+			// encode before handing the track on, the handler may start playing it right away
+			if (entry != null)
+				put(key, entry);
+			handler.trackLoaded(track);
+		}
+
+		@Override
+		public void playlistLoaded(AudioPlaylist playlist) {
+			resolved();
+			List<AudioTrack> tracks = playlist.getTracks();
+			if (!tracks.isEmpty()) {
+				Entry entry = encode(tracks, playlist.getName(), tracks.indexOf(playlist.getSelectedTrack()),
+						playlist.isSearchResult());
+				if (entry != null)
+					put(key, entry);
+			}
+			handler.playlistLoaded(playlist);
+		}
+
+		@Override
+		public void noMatches() {
+			resolved();
+			handler.noMatches();
+		}
+
+		@Override
+		public void loadFailed(FriendlyException exception) {
+			resolved();
+			handler.loadFailed(exception);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package jdmusicbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Queue of AudioTracks with random access. Internally an implicit treap: a randomized balanced binary tree ordered by
+ * position in which every node knows the size and the summed duration of its subtree. This gives O(log n) access,
+ * insertion, removal and moves at any index, O(1) total duration and an O(n) in-place shuffle. All methods are
+ * thread-safe.
+ */
+public class TrackQueue {
+
+	private Node root;
+
+	/* results of the last split, only valid inside a synchronized method */
+	private Node splitLeft;
+	private Node splitRight;
+
+	/**
+	 * Appends the track to the end of the queue
+	 *
+	 * @param track the track to append
+	 */
+	public synchronized void offer(AudioTrack track) {
+		root = merge(root, new Node(track));
+	}
+
+	/**
+	 * Appends all tracks in order as one batch. The new tracks are built into a balanced subtree in O(k) outside of the
+	 * lock and then attached with a single O(log n) merge
+	 *
+	 * @param tracks the tracks to append
+	 * @return the summed length of the appended tracks in milliseconds. Streams count as 0
+	 */
+	public long offerAll(List<AudioTrack> tracks) {
+		Node batch = build(tracks);
+		if (batch == null)
+			return 0;
+		// read before merging, the batch's root may become an inner node of the queue
+		long duration = batch.duration;
+		synchronized (this) {
+			root = merge(root, batch);
+		}
+		return duration;
+	}
+
+	/**
+	 * Puts the track at the head of the queue
+	 *
+	 * @param track the track to play next
+	 */
+	public synchronized void offerFirst(AudioTrack track) {
+		root = merge(new Node(track), root);
+	}
+
+	/**
+	 * Removes and returns the head of the queue
+	 *
+	 * @return the first track or null if the queue is empty
+	 */
+	public synchronized AudioTrack poll() {
+		if (root == null)
+			return null;
+		split(root, 1);
+		Node right = splitRight;
+		AudioTrack track = splitLeft.track;
+		root = right;
+		return track;
+	}
+
+	/**
+	 * @return the first track without removing it or null if the queue is empty
+	 */
+	public synchronized AudioTrack peek() {
+		Node node = root;
+		if (node == null)
+			return null;
+		while (node.left != null)
+			node = node.left;
+		return node.track;
+	}
+
+	/**
+	 * @param index position in the queue, starting at 0
+	 * @return the track at the given position
+	 */
+	public synchronized AudioTrack get(int index) {
+		checkIndex(index);
+		Node node = root;
+		for (;;) {
+			int leftSize = size(node.left);
+			if (index < leftSize) {
+				node = node.left;
+			} else if (index == leftSize) {
+				return node.track;
+			} else {
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * Removes the track at the given position
+	 *
+	 * @param index position in the queue, starting at 0
+	 * @return the removed track
+	 */
+	public synchronized AudioTrack remove(int index) {
+		checkIndex(index);
+		split(root, index);
+		Node left = splitLeft;
+		split(splitRight, 1);
+		AudioTrack track = splitLeft.track;
+		root = merge(left, splitRight);
+		return track;
+	}
+
+	/**
+	 * Moves the track at position from so it ends up at position to. Both positions start at 0
+	 *
+	 * @param from current position of the track
+	 * @param to new position of the track
+	 * @return the moved track
+	 */
+	public synchronized AudioTrack move(int from, int to) {
+		checkIndex(from);
+		checkIndex(to);
+		split(root, from);
+		Node left = splitLeft;
+		split(splitRight, 1);
+		Node moved = splitLeft;
+		Node rest = merge(left, splitRight);
+		split(rest, to);
+		root = merge(merge(splitLeft, moved), splitRight);
+		return moved.track;
+	}
+
+	/**
+	 * Shuffles the queue in place
+	 *
+	 * @param random the source of randomness
+	 */
+	public synchronized void shuffle(Random random) {
+		int size = size(root);
+		if (size < 2)
+			return;
+		AudioTrack[] tracks = new AudioTrack[size];
+		collect(root, tracks, 0);
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			AudioTrack tmp = tracks[i];
+			tracks[i] = tracks[j];
+			tracks[j] = tmp;
+		}
+		// the shape of the tree stays the same, only the tracks of the nodes change
+		assign(root, tracks, 0);
+	}
+
+	/**
+	 * Removes every track
+	 */
+	public synchronized void clear() {
+		root = null;
+	}
+
+	public synchronized int size() {
+		return size(root);
+	}
+
+	public synchronized boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * @return the summed length of all queued tracks in milliseconds. Streams count as 0
+	 */
+	public synchronized long getTotalDuration() {
+		return root == null ? 0 : root.duration;
+	}
+
+	/**
+	 * @param from position of the first track, starting at 0
+	 * @param count maximum number of tracks
+	 * @return a copy of the tracks at positions [from, from + count)
+	 */
+	public synchronized List<AudioTrack> page(int from, int count) {
+		int size = size(root);
+		int to = (int) Math.min(size, (long) from + count);
+		List<AudioTrack> tracks = new ArrayList<>(Math.max(0, to - from));
+		if (from < to)
+			collect(root, from, to, 0, tracks);
+		return tracks;
+	}
+
+	/**
+	 * @return a copy of all queued tracks in order
+	 */
+	public synchronized List<AudioTrack> toList() {
+		return page(0, size(root));
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size(root))
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size(root));
+	}
+
+	/* ------------------------ TREAP ------------------------ */
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	private static long duration(Node node) {
+		return node == null ? 0 : node.duration;
+	}
+
+	/**
+	 * Splits the tree into the first count nodes (splitLeft) and the rest (splitRight)
+	 */
+	private void split(Node node, int count) {
+		if (node == null) {
+			splitLeft = null;
+			splitRight = null;
+			return;
+		}
+		int leftSize = size(node.left);
+		if (count <= leftSize) {
+			split(node.left, count);
+			node.left = splitRight;
+			node.update();
+			splitRight = node;
+		} else {
+			split(node.right, count - leftSize - 1);
+			node.right = splitLeft;
+			node.update();
+			splitLeft = node;
+		}
+	}
+
+	private static Node merge(Node left, Node right) {
+		if (left == null)
+			return right;
+		if (right == null)
+			return left;
+		if (left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			left.update();
+			return left;
+		}
+		right.left = merge(left, right.left);
+		right.update();
+		return right;
+	}
+
+	/**
+	 * Builds a treap of the tracks in their order in O(k). Uses the classic stack construction of a cartesian tree:
+	 * the right spine of the tree is kept on a stack and every new node becomes the right child of the last spine node
+	 * with a higher priority, adopting the popped nodes as its left subtree
+	 */
+	private static Node build(List<AudioTrack> tracks) {
+		int count = tracks.size();
+		if (count == 0)
+			return null;
+		Node[] spine = new Node[count];
+		int top = -1;
+		for (int i = 0; i < count; i++) {
+			Node node = new Node(tracks.get(i));
+			Node last = null;
+			while (top >= 0 && spine[top].priority < node.priority)
+				last = spine[top--];
+			node.left = last;
+			if (top >= 0)
+				spine[top].right = node;
+			spine[++top] = node;
+		}
+		Node root = spine[0];
+		updateAll(root);
+		return root;
+	}
+
+	private static void updateAll(Node node) {
+		if (node == null)
+			return;
+		updateAll(node.left);
+		updateAll(node.right);
+		node.update();
+	}
+
+	private static int collect(Node node, AudioTrack[] target, int offset) {
+		if (node == null)
+			return offset;
+		offset = collect(node.left, target, offset);
+		target[offset++] = node.track;
+		return collect(node.right, target, offset);
+	}
+
+	private static int assign(Node node, AudioTrack[] tracks, int offset) {
+		if (node == null)
+			return offset;
+		offset = assign(node.left, tracks, offset);
+		node.track = tracks[offset++];
+		offset = assign(node.right, tracks, offset);
+		node.update();
+		return offset;
+	}
+
+	/**
+	 * Adds the tracks of the subtree at [from, to) to target. offset is the position of the subtree's first node
+	 */
+	private static void collect(Node node, int from, int to, int offset, List<AudioTrack> target) {
+		if (node == null || offset >= to || offset + node.size <= from)
+			return;
+		int index = offset + size(node.left);
+		collect(node.left, from, to, offset, target);
+		if (index >= from && index < to)
+			target.add(node.track);
+		collect(node.right, from, to, index + 1, target);
+	}
+
+	private static long length(AudioTrack track) {
+		return track.getInfo().isStream ? 0 : track.getInfo().length;
+	}
+
+	private static final class Node {
+		AudioTrack track;
+		final int priority;
+		Node left;
+		Node right;
+		int size;
+		long duration;
+
+		Node(AudioTrack track) {
+			this.track = track;
+			this.priority = ThreadLocalRandom.current().nextInt();
+			this.size = 1;
+			this.duration = length(track);
+		}
+
+		void update() {
+			size = 1 + TrackQueue.size(left) + TrackQueue.size(right);
+			duration = length(track) + TrackQueue.duration(left) + TrackQueue.duration(right);
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package jdmusicbot;
 
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
@@ -18,28 +18,132 @@ import net.dv8tion.jda.api.entities.MessageChannel;
 
 //import discord4j.core.object.entity.MessageChannel;
 
+/**
+ * Plays the Queue of a guild. Commands arrive on JDA's threads while track events arrive on lavaplayer's threads, so
+ * everything that decides which track plays is kept in one immutable {@link State} that is replaced with
+ * compareAndSet. The scheduler is
+ * <ul>
+ * <li>IDLE: nothing is playing</li>
+ * <li>PLAYING: the current track is playing</li>
+ * <li>ADVANCING: one thread claimed the right to start the next track, it picks it from the loop or the Queue</li>
+ * <li>STARTING: the picked track is being started</li>
+ * </ul>
+ * Only the thread that moved the scheduler to ADVANCING starts a track. Skips and track ends that arrive meanwhile are
+ * folded into that transition instead of skipping a second time, a track end or a stop that concerns the track being
+ * started is remembered as pending and handled by the same thread once the track started. Events of tracks that aren't
+ * current anymore are ignored.
+ */
 public class TrackScheduler extends AudioEventAdapter implements AudioLoadResultHandler {
 
+	/* number of tracks shown per page of #list */
+	public static final int PAGE_SIZE = 10;
+	/* number of tracks appended to the queue in one step when ingesting playlists */
+	public static final int INGEST_PAGE_SIZE = 500;
+
 	private final AudioPlayer player;
-	private final BlockingQueue<AudioTrack> queue;
-	private MessageChannel outputChannel;
+	private final TrackQueue queue;
+	private final MessagePipeline messages;
+	private volatile MessageChannel outputChannel;
 	private Logger logger = new Logger("TrackScheduler-Logger");
-	private boolean loop = false;
-	private AudioTrack loopTrack;
-    private AudioTrack lastTrack;
+	private final AtomicReference<State> state = new AtomicReference<>(State.INITIAL);
+	private volatile Runnable changeListener = () -> {};
+	private volatile SearchIndex searchIndex;
+	private final MessageChunker chunker = new MessageChunker(MessagePipeline.MAX_BODY_LENGTH);
+	private final Consumer<String> queueSink = chunk -> send(chunk);
+
+	/* status lines with the same key supersede each other while they wait in the MessagePipeline */
+	private static final String TRACK_START_KEY = "track-start";
+	private static final String PLAYER_STATE_KEY = "player-state";
 
 	/**
 	 * @param player The audio player this scheduler uses
+	 * @param messages sends the status messages of this scheduler
 	 */
-	public TrackScheduler(AudioPlayer player) {
+	public TrackScheduler(AudioPlayer player, MessagePipeline messages) {
 		this.player = player;
-		this.queue = new LinkedBlockingQueue<>();
+		this.queue = new TrackQueue();
+		this.messages = messages;
 	}
 
 	public void setOutputChannel(MessageChannel outputChannel) {
 		this.outputChannel = outputChannel;
 	}
 
+	/**
+	 * @param changeListener called whenever the queue, the playing track or the loop state changed
+	 */
+	public void setChangeListener(Runnable changeListener) {
+		this.changeListener = changeListener;
+	}
+
+	/**
+	 * @param searchIndex learns every track that is loaded or started, so #search can find it locally next time
+	 */
+	public void setSearchIndex(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+
+	private void changed() {
+		changeListener.run();
+	}
+
+	/**
+	 * @return a copy of the current queue, playing track and loop state
+	 */
+	public QueueState getState() {
+		State s = state.get();
+		AudioTrack current = player.getPlayingTrack();
+		return new QueueState(queue.toList(), current, current != null ? current.getPosition() : 0, s.loop,
+				s.loopTrack, s.lastTrack);
+	}
+
+	/**
+	 * Puts a previously saved state back into this scheduler. The track that was playing is put at the head of the
+	 * queue at its old position, so it continues with the next #resume or #play
+	 *
+	 * @param state the state to restore
+	 */
+	public void restore(QueueState state) {
+		if (state.current != null) {
+			if (state.current.isSeekable())
+				state.current.setPosition(state.position);
+			queue.offer(state.current);
+		}
+		queue.offerAll(state.queue);
+		this.state.updateAndGet(s -> s.withLoop(state.loop && state.loopTrack != null, state.loopTrack).withLastTrack(state.lastTrack));
+		logger.info("Restored Queue with {} AudioTracks", queue.size());
+	}
+
+	/**
+	 * @return true if there is no AudioTrack waiting in the Queue
+	 */
+	public boolean isQueueEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * @return the AudioTrack {@link #nextTrack} is going to start, without taking it from the Queue. Used to preload it
+	 */
+	public AudioTrack peekNext() {
+		while (true) {
+			State s = state.get();
+			if (!s.loop)
+				return queue.peek();
+			if (s.nextLoopClone != null)
+				return s.nextLoopClone;
+			AudioTrack clone = s.loopTrack.makeClone();
+			if (state.compareAndSet(s, s.withNextLoopClone(clone)))
+				return clone;
+		}
+	}
+
+	/**
+	 * @return the number of AudioTracks waiting in the Queue
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
 	private long getSeconds(long milliseconds) {
 		return (milliseconds / 1000) % 60;
 	}
@@ -49,31 +153,100 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 	}
 
 	/**
-	 * Print the Current Track-Queue
-	 * @param number of next Queue Entrys to show
+	 * Print one page of the Current Track-Queue
+	 * @param page number of the page to show, starting at 1
 	 */
-	public void showQueue(int count) {
+	public void showQueue(int page) {
+		int size = queue.size();
+		int pages = Math.max(1, (size + PAGE_SIZE - 1) / PAGE_SIZE);
+		page = Math.max(1, Math.min(page, pages));
+		showQueue((page - 1) * PAGE_SIZE, PAGE_SIZE, page, pages);
+	}
+
+	/**
+	 * Print the entire Current Track-Queue
+	 */
+	public void showQueue() {
+		showQueue(0, Integer.MAX_VALUE, 0, 0);
+	}
+
+	private void showQueue(int from, int count, int page, int pages) {
 		AudioTrack ctrack = player.getPlayingTrack();
-		String output = "Currently running Queue:\n";
-		/* get currently Playing track if one is playing */
-		if (ctrack != null) {
-			long pos = ctrack.getPosition();
-			long milli = ctrack.getInfo().length;
-			output += String.format("%s [%d:%02d / %d:%02d]\n", ctrack.getInfo().title, this.getMinutes(pos), this.getSeconds(milli), this.getMinutes(milli), this.getSeconds(pos));
+		List<AudioTrack> tracks = queue.page(from, count);
+		long total = queue.getTotalDuration();
+		logger.debug("Showing Queue in channel: {}", outputChannel.getName());
+		/* The lines are written straight into chunks that fit into a message, every chunk goes to the MessagePipeline as soon as it's full */
+		synchronized (chunker) {
+			chunker.begin(queueSink);
+			chunker.append("Currently running Queue: ").append(queue.size()).append(" Tracks [").appendDuration(total).append(']');
+			if (pages > 0)
+				chunker.append(" - Page ").append(page).append('/').append(pages);
+			chunker.endLine();
+			/* get currently Playing track if one is playing */
+			if (ctrack != null) {
+				chunker.append("Playing: ").append(ctrack.getInfo().title)
+					.append(" [").appendDuration(ctrack.getPosition()).append(" / ").appendDuration(ctrack.getInfo().length).append(']')
+					.endLine();
+			}
+			for (int i = 0; i < tracks.size(); i++) {
+				AudioTrackInfo info = tracks.get(i).getInfo();
+				chunker.append(from + i + 1).append(". ").append(info.title).append(" [").appendDuration(info.length).append(']').endLine();
+			}
+			chunker.finish();
 		}
+	}
 
-		output += queue.stream()
-			.limit(count)
-			.map(track -> String.format("%s [%d:%02d]", track.getInfo().title, getMinutes(track.getInfo().length), getSeconds(track.getInfo().length)))
-			.collect(Collectors.joining("\n"))
-			.toString();
+	/**
+	 * Removes the AudioTrack at the given position of the Queue
+	 * @param position position in the Queue as shown by {@link #showQueue}, starting at 1
+	 */
+	public void remove(int position) {
+		if (position < 1 || position > queue.size()) {
+			send("There is no AudioTrack at position " + position);
+			return;
+		}
+		AudioTrack track = queue.remove(position - 1);
+		changed();
+		String msg = "Removed AudioTrack: " + track.getInfo().title;
+		logger.debug(msg);
+		send(msg);
+	}
 
-		logger.debug(output);
-		/* Split String into Chunks of 1500 size (because of Discords max message length)*/
-		String[] outputs = output.split("(?s)(?<=\\G.{1000})");
-		for (String out : outputs) {
-			outputChannel.sendMessage(App.MSG_PREFIX + out + App.MSG_POSTFIX).queue();
+	/**
+	 * Moves an AudioTrack to another position of the Queue
+	 * @param from current position in the Queue, starting at 1
+	 * @param to new position in the Queue, starting at 1
+	 */
+	public void move(int from, int to) {
+		int size = queue.size();
+		if (from < 1 || from > size || to < 1 || to > size) {
+			send("Positions have to be between 1 and " + size);
+			return;
 		}
+		AudioTrack track = queue.move(from - 1, to - 1);
+		changed();
+		String msg = "Moved AudioTrack: " + track.getInfo().title + " to position " + to;
+		logger.debug(msg);
+		send(msg);
+	}
+
+	/**
+	 * Shuffles the entire Queue
+	 */
+	public void shuffle() {
+		queue.shuffle(ThreadLocalRandom.current());
+		changed();
+		String msg = "Shuffled " + queue.size() + " AudioTracks";
+		logger.debug(msg);
+		send(msg);
+	}
+
+	private void send(String msg) {
+		messages.post(outputChannel, msg);
+	}
+
+	private void send(String msg, String key) {
+		messages.post(outputChannel, msg, key);
 	}
 
 	/**
@@ -81,42 +254,65 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 	 * @param track The track to play or add to queue.
 	 */
 	public void queue(AudioTrack track) {
-		//	Calling startTrack with the noInterrupt set to true will start the track only if nothing is currently playing. If
-		// something is playing, it returns false and does nothing. In that case the player was already playing so this
-		// track goes to the queue instead. Passing null will just stop the current track and return false
-		if (!player.startTrack(track, true)) {
-			logger.debug("Queueing... new AudioTrack: " + track.getInfo().title);
+		// The track only starts right away if nothing is playing. If something is playing, or another thread is just
+		// starting a track, it goes to the queue instead
+		if (!startIfIdle(track)) {
+			logger.debug("Queueing... new AudioTrack: {}", track.getInfo().title);
 			queue.offer(track);
+			changed();
 			String formatted = String.format("Queued new AudioTrack: %s [%d:%02d]", track.getInfo().title, getMinutes(track.getInfo().length), getSeconds(track.getInfo().length));
 			logger.debug(formatted);
-			outputChannel.sendMessage(App.MSG_PREFIX + formatted + App.MSG_POSTFIX).queue();
+			send(formatted);
+			resumeQueue();
 		}
 	}
     
     public void repeat() {
-        if (this.lastTrack != null) {
-            this.queue(this.lastTrack);
+        AudioTrack lastTrack = state.get().lastTrack;
+        if (lastTrack != null) {
+            this.queue(lastTrack.makeClone());
         }
     }
 
 	public void queuePlaylist(AudioPlaylist playlist) {
 		List<AudioTrack> tracks = playlist.getTracks();
-		// Get playing length of entire Playlist in milliseconds
-		long playlistLength = tracks.stream()
-			.mapToLong(track -> track.getInfo().length)
-			.reduce(0, Long::sum);
-		logger.debug("Queueing... new Playlist: " + playlist.getName());
-		//	Calling startTrack with the noInterrupt set to true will start the track only if nothing is currently playing. If
-		// something is playing, it returns false and does nothing. In that case the player was already playing so this
-		// track goes to the queue instead.
-		// If the first Track of the playlist could successfully play, remove it from the tracks to be queued
-		if (player.startTrack(tracks.get(0), true))
-			tracks.remove(0);
-
-		tracks.forEach(track -> queue.offer(track));
+		if (tracks.isEmpty()) {
+			noMatches();
+			return;
+		}
+		logger.debug("Queueing... new Playlist: {}", playlist.getName());
+		// The first track only starts right away if nothing is playing, otherwise it goes to the queue with the rest.
+		// If the first Track of the playlist could successfully play, it's skipped when queueing the rest
+		long playlistLength = 0;
+		int first = 0;
+		if (startIfIdle(tracks.get(0))) {
+			AudioTrackInfo info = tracks.get(0).getInfo();
+			playlistLength += info.isStream ? 0 : info.length;
+			first = 1;
+		}
+		// Get playing length of entire Playlist in milliseconds while appending it in batches
+		playlistLength += queueAll(tracks.subList(first, tracks.size()));
+		resumeQueue();
 		String formatted = String.format("Queued new Playlist: %s [%d:%02d]", playlist.getName(), getMinutes(playlistLength), getSeconds(playlistLength));
 		logger.debug(formatted);
-		outputChannel.sendMessage(App.MSG_PREFIX + formatted + App.MSG_POSTFIX).queue();
+		send(formatted);
+	}
+
+	/**
+	 * Appends many tracks at once. The tracks are appended in pages of {@link #INGEST_PAGE_SIZE}, every page is built
+	 * without holding the queue's lock and attached in one step, so the queue stays responsive while huge playlists
+	 * are ingested. Can be called repeatedly as further pages of a playlist become available
+	 *
+	 * @param tracks the tracks to append in order
+	 * @return the summed length of the tracks in milliseconds. Streams count as 0
+	 */
+	public long queueAll(List<AudioTrack> tracks) {
+		long length = 0;
+		for (int from = 0; from < tracks.size(); from += INGEST_PAGE_SIZE)
+			length += queue.offerAll(tracks.subList(from, Math.min(tracks.size(), from + INGEST_PAGE_SIZE)));
+		if (!tracks.isEmpty())
+			changed();
+		return length;
 	}
 
 	/**
@@ -124,66 +320,91 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 	 */
 	public void clear() {
 		queue.clear();
+		changed();
 
 		String msg = "Cleared Queue";
 		this.logger.debug(msg);
-		this.outputChannel.sendMessage(App.MSG_PREFIX + msg + App.MSG_POSTFIX).queue();
+		send(msg);
 	}
 
 	/**
 	 * Loops the current AudioTrack
 	 */
 	public void loop() {
+		AudioTrack current = player.getPlayingTrack();
+		if (current == null) {
+			send("There is no AudioTrack playing to loop");
+			return;
+		}
 		/* Very Important to use 'makeClone()' because each AudioTrack saves it's current execution state and beacause of that we can't use it twice with the same reference */
-		this.loopTrack = player.getPlayingTrack().makeClone();
-		this.loop = true;
+		AudioTrack loopTrack = current.makeClone();
+		state.updateAndGet(s -> s.withLoop(true, loopTrack));
+		changed();
 
-		String msg = "Looping Track: " + this.loopTrack.getInfo().title;
+		String msg = "Looping Track: " + loopTrack.getInfo().title;
 		this.logger.debug(msg);
-		this.outputChannel.sendMessage(App.MSG_PREFIX + msg + App.MSG_POSTFIX).queue();
+		send(msg);
 	}
 	
 	/**
 	 * Stops the loop for the current AudioTrack
 	 */
 	public void unloop() {
-		this.loop = false;
-
-		String msg = "Stopped looping Track: " + this.loopTrack.getInfo().title;
+		State s;
+		do {
+			s = state.get();
+			if (!s.loop) {
+				send("No AudioTrack is looping");
+				return;
+			}
+		} while (!state.compareAndSet(s, s.withLoop(false, s.loopTrack)));
+		changed();
+
+		String msg = "Stopped looping Track: " + s.loopTrack.getInfo().title;
 		this.logger.debug(msg);
-		this.outputChannel.sendMessage(App.MSG_PREFIX + msg + App.MSG_POSTFIX).queue();
+		send(msg);
 	}
 
 	/**
-	 * Start the next track, stopping the current one if it is playing.
+	 * Start the next track, stopping the current one if it is playing. Does nothing if another thread is starting the
+	 * next track right now, the current track gets skipped by that already
 	 */
 	public void nextTrack() {
-		AudioTrack track;
-		if (loop) {
-		/* Very Important to use 'makeClone()' because each AudioTrack saves it's current execution state and beacause of that we can't use it twice with the same reference */
-			track = this.loopTrack.makeClone();
+		while (true) {
+			State s = state.get();
+			if (s.phase != Phase.IDLE && s.phase != Phase.PLAYING) {
+				logger.debug("Next AudioTrack is already being started");
+				return;
+			}
+			if (state.compareAndSet(s, s.advancing())) {
+				advance();
+				return;
+			}
 		}
-		else {
-			track = queue.poll();
-		}
-
-		if (track != null) {
-			logger.debug("Starting... next AudioTrack: " + track.getInfo().title);
-		}
-		else {
-			logger.debug("Cannot start next Track. Nothing left in the Queue. Stopping the Audioplayer");
-		}
-		// Start the next track, regardless of if something is already playing or not. In case queue was empty, we are
-		// giving null to startTrack, which is a valid argument and will simply stop the player.
-		player.startTrack(track, false);
 	}
 
 	/**
 	 * Stops the Audioplayer. If it is playing a track it skips the track and stops.
 	 */
 	public void stopPlayer() {
-		logger.debug("Stopping...: " + player.getPlayingTrack().getInfo().title);
-		player.stopTrack();
+		while (true) {
+			State s = state.get();
+			if (s.phase == Phase.IDLE) {
+				send("There is no AudioTrack playing");
+				return;
+			}
+			if (s.phase == Phase.PLAYING) {
+				if (state.compareAndSet(s, s.advancing().withPending(Pending.STOP))) {
+					logger.debug("Stopping...: {}", s.current.getInfo().title);
+					advance();
+					return;
+				}
+			} else if (s.pending == Pending.STOP || state.compareAndSet(s, s.withPending(Pending.STOP))) {
+				/* the thread starting the next track stops instead */
+				logger.debug("Stopping...: the AudioTrack that is being started");
+				return;
+			}
+		}
 	} 
 
 	/**
@@ -202,9 +423,130 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 			logger.debug("Player was paused. Resuming...: Audioplayer");
 			player.setPaused(false);
 		}
-		else {
+		else if (claimIdle()) {
 			logger.debug("Audioplayer was stopped:");
-			nextTrack();
+			advance();
+		}
+	}
+
+	/**
+	 * Starts the track if the scheduler is IDLE
+	 *
+	 * @return false if something is playing or being started
+	 */
+	private boolean startIfIdle(AudioTrack track) {
+		while (true) {
+			State s = state.get();
+			if (s.phase != Phase.IDLE)
+				return false;
+			if (state.compareAndSet(s, s.starting(track)))
+				break;
+		}
+		player.startTrack(track, false);
+		changed();
+		if (finish(track))
+			advance();
+		return true;
+	}
+
+	/**
+	 * Starts the Queue if it ran empty and tracks were added meanwhile. Called after adding tracks to the Queue, so a
+	 * thread that found the Queue empty just before can't leave them waiting
+	 */
+	private void resumeQueue() {
+		if (!queue.isEmpty() && claimIdle())
+			advance();
+	}
+
+	/**
+	 * @return true if the scheduler was IDLE and the caller is ADVANCING it now
+	 */
+	private boolean claimIdle() {
+		State s = state.get();
+		while (s.phase == Phase.IDLE) {
+			if (state.compareAndSet(s, s.advancing()))
+				return true;
+			s = state.get();
+		}
+		return false;
+	}
+
+	/**
+	 * Starts the next track from the loop or the Queue. Must only be called by the thread that moved the scheduler to
+	 * ADVANCING
+	 */
+	private void advance() {
+		AudioTrack track;
+		do {
+			State s = state.get();
+			boolean looping = s.loop;
+			/* Very Important to use 'makeClone()' because each AudioTrack saves it's current execution state and beacause of that we can't use it twice with the same reference */
+			track = looping ? (s.nextLoopClone != null ? s.nextLoopClone : s.loopTrack.makeClone()) : queue.poll();
+			if (!publish(track, !looping))
+				return;
+
+			if (track != null) {
+				logger.debug("Starting... next AudioTrack: {}", track.getInfo().title);
+			}
+			else {
+				logger.debug("Cannot start next Track. Nothing left in the Queue. Stopping the Audioplayer");
+			}
+			// Start the next track, regardless of if something is already playing or not. In case queue was empty, we are
+			// giving null to startTrack, which is a valid argument and will simply stop the player.
+			player.startTrack(track, false);
+			changed();
+		} while (finish(track));
+	}
+
+	/**
+	 * Moves the scheduler from ADVANCING to STARTING the given track, or to IDLE if it was stopped meanwhile
+	 *
+	 * @param fromQueue true if the track was taken from the Queue, it's put back if it isn't started
+	 * @return true if the track has to be started
+	 */
+	private boolean publish(AudioTrack track, boolean fromQueue) {
+		while (true) {
+			State s = state.get();
+			if (s.pending == Pending.STOP) {
+				if (fromQueue && track != null)
+					queue.offerFirst(track);
+				player.stopTrack();
+				state.updateAndGet(State::idle);
+				changed();
+				return false;
+			}
+			if (state.compareAndSet(s, s.starting(track)))
+				return true;
+		}
+	}
+
+	/**
+	 * Leaves STARTING once the track was given to the player
+	 *
+	 * @return true if the scheduler is ADVANCING again, because the track ended already or the Queue got new tracks
+	 */
+	private boolean finish(AudioTrack track) {
+		/* a preloaded track plays as a clone, its events carry the clone */
+		AudioTrack playing = track != null ? player.getPlayingTrack() : null;
+		while (true) {
+			State s = state.get();
+			switch (s.pending) {
+			case STOP:
+				player.stopTrack();
+				state.updateAndGet(State::idle);
+				return false;
+			case SKIP:
+				if (state.compareAndSet(s, s.advancing()))
+					return true;
+				break;
+			default:
+				if (track != null) {
+					if (state.compareAndSet(s, s.playing(s.current == track && playing != null ? playing : s.current)))
+						return false;
+				} else if (state.compareAndSet(s, s.idle())) {
+					return !queue.isEmpty() && claimIdle();
+				}
+			}
 		}
 	}
 
@@ -217,18 +559,47 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 		// endReason == CLEANUP: Player hasn't been queried for a while, if you want you can put a clone of this back to your queue
 		
 		if (endReason == AudioTrackEndReason.REPLACED) {
-			logger.debug("OnTrackEnd: Skipped AudioTrack: " + track.getInfo().title);
+			logger.debug("OnTrackEnd: Skipped AudioTrack: {}", track.getInfo().title);
 		}
 		if (endReason == AudioTrackEndReason.STOPPED) {
 			logger.debug("OnTrackEnd: The Player was stopped");
 		}
 		if (endReason == AudioTrackEndReason.CLEANUP) {
 			logger.debug("OnTrackEnd: Audioplayer hasn't been queried  for a while");
+			/* put it back so the next #resume or #play continues where it stopped */
+			AudioTrack clone = track.makeClone();
+			if (clone.isSeekable())
+				clone.setPosition(track.getPosition());
+			queue.offerFirst(clone);
+			changed();
 		}
-		// Only start the next track if the end reason is suitable for it (FINISHED or LOAD_FAILED)
-		if (endReason.mayStartNext) {
-            lastTrack = track.makeClone(); // set the last played track
-			nextTrack();
+		if (endReason == AudioTrackEndReason.REPLACED)
+			return;
+		// Only start the next track if the end reason is suitable for it (FINISHED or LOAD_FAILED), otherwise the
+		// scheduler becomes IDLE
+		AudioTrack lastTrack = endReason.mayStartNext ? track.makeClone() : null;
+		while (true) {
+			State s = state.get();
+			/* a track that isn't current anymore was skipped already */
+			if (s.current != track)
+				return;
+			if (s.phase == Phase.PLAYING) {
+				State next = endReason.mayStartNext ? s.advancing().withLastTrack(lastTrack) : s.idle();
+				if (state.compareAndSet(s, next)) {
+					if (endReason.mayStartNext)
+						advance();
+					else
+						changed();
+					return;
+				}
+			} else if (s.phase == Phase.STARTING && s.pending == Pending.NONE) {
+				/* the track ended while it was started, the starting thread takes care of it */
+				State next = endReason.mayStartNext ? s.withPending(Pending.SKIP).withLastTrack(lastTrack) : s.withPending(Pending.STOP);
+				if (state.compareAndSet(s, next))
+					return;
+			} else {
+				return;
+			}
 		}
 	}
 
@@ -236,30 +607,41 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 	public void onPlayerPause(AudioPlayer player) {
 		// Player was paused
 		logger.debug("Paused Audioplayer");
-		outputChannel.sendMessage(App.MSG_PREFIX + "Paused Audioplayer" + App.MSG_POSTFIX).queue();
+		send("Paused Audioplayer", PLAYER_STATE_KEY);
 	}
 
 	@Override
 	public void onPlayerResume(AudioPlayer player) {
 		// Player was resumed
 		logger.debug("Resumed Audioplayer");
-		outputChannel.sendMessage(App.MSG_PREFIX + "Resumed Audioplayer" + App.MSG_POSTFIX).queue();
+		send("Resumed Audioplayer", PLAYER_STATE_KEY);
 	}
 
 	@Override
 	public void onTrackStart(AudioPlayer player, AudioTrack track) {
+		/* remember the instance that actually plays, a preloaded track is started as a clone */
+		while (true) {
+			State s = state.get();
+			if (s.phase != Phase.STARTING || s.current == track || state.compareAndSet(s, s.withCurrent(track)))
+				break;
+		}
+		changed();
+		SearchIndex index = searchIndex;
+		if (index != null)
+			index.add(track, true);
 		// A track started playing
 		String formatted = String.format("Started next Track: %s [%d:%02d]",track.getInfo().title,  getMinutes(track.getInfo().length), getSeconds(track.getInfo().length));
 		logger.debug(formatted);
 
-		this.outputChannel.sendMessage(App.MSG_PREFIX + formatted + App.MSG_POSTFIX).queue();
+		send(formatted, TRACK_START_KEY);
 	}
 
 	@Override
 	public void onTrackException(AudioPlayer player, AudioTrack track, FriendlyException exception) {
 		// An already playing track threw an exception (track end event will still be received separately)
-		logger.debug("Playing Track: " + track.getInfo().title + " threw an exception: " + exception.getMessage());
-        nextTrack();
+		logger.debug("Playing Track: {} threw an exception: {}", track.getInfo().title, exception.getMessage());
+		Metrics.TRACK_EXCEPTIONS.increment();
+		/* the TrackEndEvent that follows starts the next track */
 	}
 
 	@Override
@@ -267,8 +649,18 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 		// Audio track has been unable to provide us any audio, might want to just start a new track
 		String msg = "Track got stuck: " + track.getInfo().title + " ThresholdMS: " + thresholdMs + " Starting next Track";
 		logger.debug(msg);
-		outputChannel.sendMessage(App.MSG_PREFIX + msg + App.MSG_POSTFIX).queue();
-		nextTrack();
+		Metrics.TRACKS_STUCK.increment();
+		send(msg);
+		/* lavaplayer doesn't end a stuck track, it's skipped unless something else started meanwhile */
+		while (true) {
+			State s = state.get();
+			if (s.phase != Phase.PLAYING || s.current != track)
+				return;
+			if (state.compareAndSet(s, s.advancing())) {
+				advance();
+				return;
+			}
+		}
 	}
 
 
@@ -279,6 +671,9 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 
 	@Override
 	public void trackLoaded(AudioTrack track) {
+		SearchIndex index = searchIndex;
+		if (index != null)
+			index.add(track, false);
 		this.queue(track);
 	}
 
@@ -294,12 +689,90 @@ public class TrackScheduler extends AudioEventAdapter implements AudioLoadResult
 	@Override
 	public void noMatches() {
 		logger.debug("No Match found");
-		this.outputChannel.sendMessage(App.MSG_PREFIX + "No Match found" + App.MSG_POSTFIX).queue();
+		send("No Match found");
 	}
 
 	@Override
 	public void loadFailed(FriendlyException exception) {
-		logger.debug("Load failed: " + exception.getMessage());
-		this.outputChannel.sendMessage(App.MSG_PREFIX + "Load failed: " + exception.getMessage() + App.MSG_POSTFIX).queue();
+		logger.debug("Load failed: {}", exception.getMessage());
+		send("Load failed: " + exception.getMessage());
+	}
+
+	private enum Phase {
+		IDLE, PLAYING, ADVANCING, STARTING
+	}
+
+	/**
+	 * What happened to the track while it was being started
+	 */
+	private enum Pending {
+		NONE,
+		/* it ended and the next track has to be started */
+		SKIP,
+		/* the player was stopped */
+		STOP
+	}
+
+	/**
+	 * Immutable state of a TrackScheduler, replaced as a whole
+	 */
+	private static final class State {
+		static final State INITIAL = new State(Phase.IDLE, null, Pending.NONE, false, null, null, null);
+
+		final Phase phase;
+		/* the playing track, the one that is being started or the one that is being replaced */
+		final AudioTrack current;
+		final Pending pending;
+		final boolean loop;
+		final AudioTrack loopTrack;
+		/* the clone of loopTrack that is started next, created early when it gets preloaded */
+		final AudioTrack nextLoopClone;
+		final AudioTrack lastTrack;
+
+		State(Phase phase, AudioTrack current, Pending pending, boolean loop, AudioTrack loopTrack, AudioTrack nextLoopClone, AudioTrack lastTrack) {
+			this.phase = phase;
+			this.current = current;
+			this.pending = pending;
+			this.loop = loop;
+			this.loopTrack = loopTrack;
+			this.nextLoopClone = nextLoopClone;
+			this.lastTrack = lastTrack;
+		}
+
+		State idle() {
+			return new State(Phase.IDLE, null, Pending.NONE, loop, loopTrack, nextLoopClone, lastTrack);
+		}
+
+		State playing(AudioTrack track) {
+			return new State(Phase.PLAYING, track, Pending.NONE, loop, loopTrack, nextLoopClone, lastTrack);
+		}
+
+		State advancing() {
+			return new State(Phase.ADVANCING, current, Pending.NONE, loop, loopTrack, nextLoopClone, lastTrack);
+		}
+
+		State starting(AudioTrack track) {
+			return new State(Phase.STARTING, track, Pending.NONE, loop, loopTrack, nextLoopClone == track ? null : nextLoopClone, lastTrack);
+		}
+
+		State withCurrent(AudioTrack track) {
+			return new State(phase, track, pending, loop, loopTrack, nextLoopClone, lastTrack);
+		}
+
+		State withPending(Pending pending) {
+			return new State(phase, current, pending, loop, loopTrack, nextLoopClone, lastTrack);
+		}
+
+		State withLoop(boolean loop, AudioTrack loopTrack) {
+			return new State(phase, current, pending, loop, loopTrack, null, lastTrack);
+		}
+
+		State withNextLoopClone(AudioTrack clone) {
+			return new State(phase, current, pending, loop, loopTrack, clone, lastTrack);
+		}
+
+		State withLastTrack(AudioTrack track) {
+			return new State(phase, current, pending, loop, loopTrack, nextLoopClone, track);
+		}
 	}
 }
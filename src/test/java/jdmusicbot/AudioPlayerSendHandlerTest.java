@@ -0,0 +1,92 @@
+package jdmusicbot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.junit.Test;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+/**
+ * Checks that every frame lavaplayer writes is handed to JDA with exactly its own bytes, whatever size the frame and
+ * whatever JDA did with the buffer before.
+ */
+public class AudioPlayerSendHandlerTest {
+
+	private static final int MAX_FRAME = StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize();
+
+	@Test
+	public void providesEveryFrameWithItsBounds() {
+		int[] sizes = { 0, 1, 3, 160, MAX_FRAME, 0, 57, MAX_FRAME - 1, MAX_FRAME, 2 };
+		Queue<byte[]> frames = new ArrayDeque<>();
+		for (int i = 0; i < sizes.length; i++)
+			frames.add(frame(sizes[i], i));
+		AudioPlayerSendHandler handler = new AudioPlayerSendHandler(player(new ArrayDeque<>(frames)));
+
+		assertTrue(handler.isOpus());
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] expected = frames.poll();
+			assertTrue("Frame " + i + " is available", handler.canProvide());
+			ByteBuffer buffer = handler.provide20MsAudio();
+			assertEquals("Position of frame " + i, 0, buffer.position());
+			assertEquals("Limit of frame " + i, sizes[i], buffer.limit());
+			byte[] actual = new byte[buffer.remaining()];
+			/* JDA reads the frame, which leaves the position at the limit */
+			buffer.get(actual);
+			assertArrayEquals("Bytes of frame " + i, expected, actual);
+		}
+		assertFalse("No frame after the last one", handler.canProvide());
+	}
+
+	@Test
+	public void providesTheSameFrameUntilTheNextCanProvide() {
+		AudioPlayerSendHandler handler = new AudioPlayerSendHandler(player(new ArrayDeque<>(Arrays.asList(frame(5, 1), frame(7, 2)))));
+		assertTrue(handler.canProvide());
+		ByteBuffer first = handler.provide20MsAudio();
+		first.get(new byte[3]);
+		/* asking again without canProvide exposes the whole frame again */
+		ByteBuffer again = handler.provide20MsAudio();
+		assertEquals(0, again.position());
+		assertEquals(5, again.limit());
+		assertTrue(handler.canProvide());
+		assertEquals(7, handler.provide20MsAudio().remaining());
+	}
+
+	/**
+	 * @return a frame of the given size whose bytes depend on the index, so frames can't be confused
+	 */
+	private static byte[] frame(int size, int index) {
+		byte[] frame = new byte[size];
+		for (int i = 0; i < size; i++)
+			frame[i] = (byte) (i * 31 + index * 7 + 1);
+		return frame;
+	}
+
+	/**
+	 * @return an AudioPlayer that provides the given frames and then nothing
+	 */
+	private static AudioPlayer player(Queue<byte[]> frames) {
+		return (AudioPlayer) Proxy.newProxyInstance(AudioPlayer.class.getClassLoader(), new Class<?>[] { AudioPlayer.class }, (proxy, method, args) -> {
+			if (method.getName().equals("provide") && args != null && args[0] instanceof MutableAudioFrame) {
+				byte[] frame = frames.poll();
+				if (frame == null)
+					return false;
+				((MutableAudioFrame) args[0]).store(frame, 0, frame.length);
+				return true;
+			}
+			if (method.getReturnType() == boolean.class)
+				return false;
+			return null;
+		});
+	}
+}
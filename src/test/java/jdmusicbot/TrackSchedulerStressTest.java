@@ -0,0 +1,338 @@
+package jdmusicbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventListener;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackEndEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackStartEvent;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+import net.dv8tion.jda.api.entities.MessageChannel;
+
+/**
+ * Runs commands and track events of one TrackScheduler on several threads at once and checks that no queued track
+ * is lost or started twice.
+ */
+public class TrackSchedulerStressTest {
+
+	private static final int RUNS = 300;
+	private static final int TRACKS = 60;
+	private static final int COMMANDS = 150;
+	private static final int EVENTS = 200;
+
+	private final MessagePipeline messages = new SilentPipeline();
+	private Logger.Loglevel loglevel;
+
+	@Before
+	public void quietLogger() {
+		/* the scheduler logs every transition on debug */
+		loglevel = Logger.getLoglevel();
+		Logger.setLoglevel(Logger.Loglevel.INFO);
+	}
+
+	@After
+	public void restoreLogger() {
+		Logger.setLoglevel(loglevel);
+	}
+
+	@Test(timeout = 120000)
+	public void everyQueuedTrackStartsExactlyOnce() throws Exception {
+		for (int run = 0; run < RUNS; run++)
+			run(run);
+	}
+
+	private void run(int run) throws Exception {
+		FakePlayer player = new FakePlayer();
+		TrackScheduler scheduler = new TrackScheduler(player, messages);
+		player.addListener(scheduler);
+		Map<AudioTrack, AtomicInteger> starts = new ConcurrentHashMap<>();
+		player.addListener(new AudioEventAdapter() {
+			@Override
+			public void onTrackStart(AudioPlayer p, AudioTrack track) {
+				/* clones only come from #loop */
+				if (!((FakeTrack) track).clone)
+					starts.computeIfAbsent(track, t -> new AtomicInteger()).incrementAndGet();
+			}
+		});
+		List<AudioTrack> tracks = new ArrayList<>();
+		for (int i = 0; i < TRACKS; i++)
+			tracks.add(new FakeTrack("track " + i, false));
+
+		Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		CyclicBarrier barrier = new CyclicBarrier(4);
+		Thread loader = worker(barrier, errors, () -> {
+			for (AudioTrack track : tracks) {
+				scheduler.trackLoaded(track);
+				Thread.yield();
+			}
+		});
+		Thread commands = worker(barrier, errors, () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < COMMANDS; i++) {
+				switch (random.nextInt(7)) {
+				case 0:
+				case 1:
+					scheduler.nextTrack();
+					break;
+				case 2:
+					scheduler.stopPlayer();
+					break;
+				case 3:
+					scheduler.resumePlayer();
+					break;
+				case 4:
+					scheduler.loop();
+					break;
+				case 5:
+					scheduler.unloop();
+					break;
+				default:
+					scheduler.peekNext();
+				}
+				Thread.yield();
+			}
+		});
+		Thread events = worker(barrier, errors, () -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < EVENTS; i++) {
+				int event = random.nextInt(10);
+				if (event < 7)
+					player.finishCurrent(AudioTrackEndReason.FINISHED);
+				else if (event < 8)
+					player.finishCurrent(AudioTrackEndReason.LOAD_FAILED);
+				else
+					player.stuck();
+				Thread.yield();
+			}
+		});
+		barrier.await();
+		loader.join();
+		commands.join();
+		events.join();
+		assertTrue("Run " + run + " threw " + errors.peek(), errors.isEmpty());
+
+		/* every track was started once or is still waiting in the queue */
+		Set<AudioTrack> queued = new HashSet<>(scheduler.getState().queue);
+		for (AudioTrack track : tracks) {
+			AtomicInteger count = starts.get(track);
+			int started = count != null ? count.get() : 0;
+			assertTrue("Run " + run + ": " + track.getInfo().title + " started " + started + " times", started <= 1);
+			assertTrue("Run " + run + ": " + track.getInfo().title + " was lost", started == 1 || queued.contains(track));
+			assertFalse("Run " + run + ": " + track.getInfo().title + " started and still queued", started == 1 && queued.contains(track));
+		}
+
+		/* playing the rest of the queue to the end starts the remaining tracks */
+		scheduler.unloop();
+		for (int guard = 0; guard < 10 * TRACKS; guard++) {
+			if (player.getPlayingTrack() != null)
+				player.finishCurrent(AudioTrackEndReason.FINISHED);
+			else if (!scheduler.isQueueEmpty())
+				scheduler.resumePlayer();
+			else
+				break;
+		}
+		assertTrue("Run " + run + " didn't drain", player.getPlayingTrack() == null && scheduler.isQueueEmpty());
+		for (AudioTrack track : tracks)
+			assertEquals("Run " + run + ": starts of " + track.getInfo().title, 1, starts.get(track).get());
+	}
+
+	private static Thread worker(CyclicBarrier barrier, Queue<Throwable> errors, Runnable body) {
+		Thread thread = new Thread(() -> {
+			try {
+				barrier.await();
+				body.run();
+			} catch (Throwable t) {
+				errors.add(t);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static final class SilentPipeline extends MessagePipeline {
+		SilentPipeline() {
+			super(10);
+		}
+
+		@Override
+		public void post(MessageChannel channel, String line, String key) {
+		}
+	}
+
+	private static final class FakeTrack extends BaseAudioTrack {
+		final boolean clone;
+
+		FakeTrack(String title, boolean clone) {
+			super(new AudioTrackInfo(title, "author", 1000, title, false, title));
+			this.clone = clone;
+		}
+
+		@Override
+		public AudioTrack makeClone() {
+			return new FakeTrack(trackInfo.title, true);
+		}
+
+		@Override
+		public void process(LocalAudioTrackExecutor executor) {
+		}
+	}
+
+	/**
+	 * Starts and ends tracks like lavaplayer's AudioPlayer, events are delivered on the calling thread
+	 */
+	private static final class FakePlayer implements AudioPlayer {
+		private final List<AudioEventListener> listeners = new CopyOnWriteArrayList<>();
+		private AudioTrack current;
+		private volatile boolean paused;
+
+		private void fire(AudioEvent event) {
+			for (AudioEventListener listener : listeners)
+				listener.onEvent(event);
+		}
+
+		@Override
+		public synchronized AudioTrack getPlayingTrack() {
+			return current;
+		}
+
+		@Override
+		public void playTrack(AudioTrack track) {
+			startTrack(track, false);
+		}
+
+		@Override
+		public boolean startTrack(AudioTrack track, boolean noInterrupt) {
+			AudioTrack previous;
+			synchronized (this) {
+				if (noInterrupt && current != null)
+					return false;
+				previous = current;
+				current = track;
+			}
+			if (previous != null)
+				fire(new TrackEndEvent(this, previous, track == null ? AudioTrackEndReason.STOPPED : AudioTrackEndReason.REPLACED));
+			if (track != null)
+				fire(new TrackStartEvent(this, track));
+			return track != null;
+		}
+
+		@Override
+		public void stopTrack() {
+			startTrack(null, false);
+		}
+
+		void finishCurrent(AudioTrackEndReason reason) {
+			AudioTrack track;
+			synchronized (this) {
+				track = current;
+				if (track == null)
+					return;
+				current = null;
+			}
+			fire(new TrackEndEvent(this, track, reason));
+		}
+
+		void stuck() {
+			AudioTrack track = getPlayingTrack();
+			if (track == null)
+				return;
+			for (AudioEventListener listener : listeners)
+				((AudioEventAdapter) listener).onTrackStuck(this, track, 1000);
+		}
+
+		@Override
+		public int getVolume() {
+			return 100;
+		}
+
+		@Override
+		public void setVolume(int volume) {
+		}
+
+		@Override
+		public void setFilterFactory(PcmFilterFactory factory) {
+		}
+
+		@Override
+		public void setFrameBufferDuration(Integer duration) {
+		}
+
+		@Override
+		public boolean isPaused() {
+			return paused;
+		}
+
+		@Override
+		public void setPaused(boolean paused) {
+			this.paused = paused;
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public void addListener(AudioEventListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeListener(AudioEventListener listener) {
+			listeners.remove(listener);
+		}
+
+		@Override
+		public void checkCleanup(long threshold) {
+		}
+
+		@Override
+		public AudioFrame provide() {
+			return null;
+		}
+
+		@Override
+		public AudioFrame provide(long timeout, TimeUnit unit) {
+			return null;
+		}
+
+		@Override
+		public boolean provide(MutableAudioFrame frame) {
+			return false;
+		}
+
+		@Override
+		public boolean provide(MutableAudioFrame frame, long timeout, TimeUnit unit) {
+			return false;
+		}
+	}
+}